@@ -0,0 +1,397 @@
+package org.surus.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.DoubleBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.surus.io.TimeSeriesStoreReader;
+import org.surus.math.DecompositionCache;
+import org.surus.math.RobustAnomalyDetector;
+import org.surus.math.RobustAnomalyDetector.Decomposition;
+
+/**
+ * Runs RAD over many series outside of Pig.
+ *
+ * Input is either a CSV file with one series per line, series_id,v_1,...,v_n where
+ * n = nRows * nCols, or a binary store written by TimeSeriesStoreWriter (.tss), whose
+ * series are decomposed straight from the memory-mapped file using each series'
+ * own period. Output is a CSV file with one line per value:
+ * series_id,index,value,x_transform,rsvd_l,rsvd_s,rsvd_e. Series with too few
+ * non-zero values are written with empty decomposition fields, as are series that
+ * fail to parse or decompose (e.g. of the wrong length), whose malformed values are
+ * written as NaN; failures are counted apart from skipped series.
+ *
+ * Usage: RADBatchRunner --input in.csv --output out.csv --rows 7 --cols 9
+ *                       [--threads N] [--forceDiff true|false] [--cache N] [--cacheDir dir]
+ *        RADBatchRunner --input in.tss --output out.csv [--threads N] [--forceDiff true|false]
+ *                       [--cache N] [--cacheDir dir]
+ *
+ * --cache and --cacheDir put a DecompositionCache in front of the detector, so reruns
+ * and overlapping inputs do not solve the same series twice.
+ */
+public class RADBatchRunner {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RobustAnomalyDetector detector;
+	private final int numThreads;
+
+	private long numSeries;
+	private long numSkipped;
+	private long numFailed;
+	private long elapsedNanos;
+
+	// Latencies of the series that did not fail, the first numTimed of them
+	private long[] latencies = new long[1024];
+	private long numTimed;
+
+	public RADBatchRunner(RobustAnomalyDetector detector, int numThreads) {
+		this.detector = detector;
+		this.numThreads = numThreads;
+	}
+
+	private static class Result {
+		final String seriesId;
+		final DoubleBuffer values;
+		final Decomposition decomposition;
+		final long latencyNanos;
+		final Exception failure;
+
+		Result(String seriesId, DoubleBuffer values, Decomposition decomposition, long latencyNanos, Exception failure) {
+			this.seriesId = seriesId;
+			this.values = values;
+			this.decomposition = decomposition;
+			this.latencyNanos = latencyNanos;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Decomposes every series read from in and writes the results to out. At most
+	 * 4 * numThreads series are in flight, so memory stays bounded for any input size.
+	 * Results are written in completion order, not input order.
+	 */
+	public void run(final BufferedReader in, Writer out) throws IOException {
+		run(new Iterator<Callable<Result>>() {
+			private String line = nextLine();
+
+			private String nextLine() {
+				try {
+					String next;
+					while ((next = in.readLine()) != null && next.trim().isEmpty()) {}
+					return next;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			public boolean hasNext() {
+				return line != null;
+			}
+
+			public Callable<Result> next() {
+				Callable<Result> task = task(line);
+				line = nextLine();
+				return task;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}, out);
+	}
+
+	/**
+	 * Decomposes every series in a memory-mapped store. Series whose period and length
+	 * match the configured detector use it; others get a detector built from their own
+	 * period, with length / period seasons.
+	 */
+	public void run(final TimeSeriesStoreReader store, Writer out) throws IOException {
+		run(new Iterator<Callable<Result>>() {
+			private int i = 0;
+
+			public boolean hasNext() {
+				return i < store.size();
+			}
+
+			public Callable<Result> next() {
+				Callable<Result> task = task(store.getId(i), store.getPeriod(i), store.getValues(i));
+				i++;
+				return task;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}, out);
+	}
+
+	private void run(Iterator<Callable<Result>> tasks, Writer out) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(this.numThreads);
+		CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executor);
+		int maxInFlight = 4 * this.numThreads;
+		int inFlight = 0;
+
+		long start = System.nanoTime();
+		try {
+			while (tasks.hasNext()) {
+				completionService.submit(tasks.next());
+				inFlight++;
+				if (inFlight >= maxInFlight) {
+					write(completionService.take().get(), out);
+					inFlight--;
+				}
+			}
+			while (inFlight > 0) {
+				write(completionService.take().get(), out);
+				inFlight--;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		out.flush();
+		this.elapsedNanos = System.nanoTime() - start;
+	}
+
+	private Callable<Result> task(final String line) {
+		return new Callable<Result>() {
+			public Result call() {
+				String[] fields = line.split(",");
+				double[] values = new double[fields.length - 1];
+				Exception failure = null;
+				for (int n = 0; n < values.length; n++) {
+					String field = fields[n + 1].trim();
+					try {
+						values[n] = field.isEmpty() ? 0 : Double.parseDouble(field);
+					} catch (NumberFormatException e) {
+						values[n] = Double.NaN;
+						failure = (failure == null) ? e : failure;
+					}
+				}
+				if (failure != null) {
+					return new Result(fields[0], DoubleBuffer.wrap(values), null, 0, failure);
+				}
+				return decompose(fields[0], detector, DoubleBuffer.wrap(values));
+			}
+		};
+	}
+
+	private Callable<Result> task(final String seriesId, final int period, final DoubleBuffer values) {
+		return new Callable<Result>() {
+			public Result call() {
+				RobustAnomalyDetector periodDetector;
+				try {
+					periodDetector = detectorFor(period, values.remaining());
+				} catch (RuntimeException e) {
+					return new Result(seriesId, values, null, 0, e);
+				}
+				return decompose(seriesId, periodDetector, values);
+			}
+		};
+	}
+
+	// A series that fails to decompose only fails its own result, not the whole run
+	private static Result decompose(String seriesId, RobustAnomalyDetector detector, DoubleBuffer values) {
+		long start = System.nanoTime();
+		try {
+			Decomposition decomposition = detector.decompose(values);
+			return new Result(seriesId, values, decomposition, System.nanoTime() - start, null);
+		} catch (RuntimeException e) {
+			return new Result(seriesId, values, null, System.nanoTime() - start, e);
+		}
+	}
+
+	private RobustAnomalyDetector detectorFor(int period, int length) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be positive, got "+period);
+		}
+		if (period == this.detector.getNRows() && length == this.detector.getNRows() * this.detector.getNCols()) {
+			return this.detector;
+		}
+		RobustAnomalyDetector periodDetector = new RobustAnomalyDetector(period, length / period, this.detector.getIsForceDiff());
+		periodDetector.setCache(this.detector.getCache());
+		return periodDetector;
+	}
+
+	private void write(Result result, Writer out) throws IOException {
+		if (this.numTimed == this.latencies.length) {
+			this.latencies = Arrays.copyOf(this.latencies, 2 * this.latencies.length);
+		}
+		this.numSeries++;
+		if (result.failure == null) {
+			this.latencies[(int) this.numTimed++] = result.latencyNanos;
+		}
+		if (result.failure != null) {
+			this.numFailed++;
+			System.err.println("Unable to decompose "+result.seriesId+": "+result.failure);
+		} else if (result.decomposition == null) {
+			this.numSkipped++;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int n = 0; n < result.values.remaining(); n++) {
+			sb.setLength(0);
+			sb.append(result.seriesId).append(',').append(n).append(',').append(result.values.get(n));
+			if (result.decomposition != null) {
+				sb.append(',').append(result.decomposition.getTransformed()[n]);
+				sb.append(',').append(result.decomposition.getL()[n]);
+				sb.append(',').append(result.decomposition.getS()[n]);
+				sb.append(',').append(result.decomposition.getE()[n]);
+			} else {
+				sb.append(",,,,");
+			}
+			sb.append('\n');
+			out.write(sb.toString());
+		}
+	}
+
+	/**
+	 * @param percentile in [0, 100]
+	 * @return decomposition latency in milliseconds at the given percentile, over the series
+	 * that did not fail
+	 */
+	public double getLatencyPercentile(double percentile) {
+		if (this.numTimed == 0) return 0;
+		long[] sorted = Arrays.copyOf(this.latencies, (int) this.numTimed);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	public double getSeriesPerSecond() {
+		return (this.elapsedNanos == 0) ? 0 : this.numSeries / (this.elapsedNanos / 1e9);
+	}
+
+	public long getNumSeries() {
+		return numSeries;
+	}
+
+	public long getNumSkipped() {
+		return numSkipped;
+	}
+
+	public long getNumFailed() {
+		return numFailed;
+	}
+
+	public void report(PrintStream out) {
+		out.println(String.format("series: %d (skipped: %d, failed: %d), elapsed: %.1f s, throughput: %.1f series/sec",
+				this.numSeries, this.numSkipped, this.numFailed, this.elapsedNanos / 1e9, getSeriesPerSecond()));
+		out.println(String.format("latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+				getLatencyPercentile(50), getLatencyPercentile(90), getLatencyPercentile(99), getLatencyPercentile(100)));
+		DecompositionCache cache = this.detector.getCache();
+		if (cache != null) {
+			out.println(String.format("cache: hits=%d (disk: %d) misses=%d",
+					cache.getHits(), cache.getDiskHits(), cache.getMisses()));
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: RADBatchRunner --input in.csv --output out.csv --rows nRows --cols nCols "
+				+ "[--threads N] [--forceDiff true|false] [--cache N] [--cacheDir dir]");
+		System.err.println("       RADBatchRunner --input in.tss --output out.csv [--threads N] [--forceDiff true|false] "
+				+ "[--cache N] [--cacheDir dir]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		String input = null;
+		String output = null;
+		Integer nRows = null;
+		Integer nCols = null;
+		Boolean isForceDiff = null;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		int cacheSize = 0;
+		String cacheDir = null;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String key = args[i];
+			String value = args[i + 1];
+			if (key.equals("--input")) {
+				input = value;
+			} else if (key.equals("--output")) {
+				output = value;
+			} else if (key.equals("--rows")) {
+				nRows = Integer.parseInt(value);
+			} else if (key.equals("--cols")) {
+				nCols = Integer.parseInt(value);
+			} else if (key.equals("--threads")) {
+				numThreads = Integer.parseInt(value);
+			} else if (key.equals("--forceDiff")) {
+				isForceDiff = Boolean.parseBoolean(value);
+			} else if (key.equals("--cache")) {
+				cacheSize = Integer.parseInt(value);
+			} else if (key.equals("--cacheDir")) {
+				cacheDir = value;
+			} else {
+				usage();
+			}
+		}
+		boolean isStore = input != null && input.endsWith(".tss");
+		if (args.length % 2 != 0 || input == null || output == null || (!isStore && (nRows == null || nCols == null))) {
+			usage();
+		}
+
+		DecompositionCache cache = null;
+		if (cacheSize > 0 || cacheDir != null) {
+			cache = new DecompositionCache(cacheSize, (cacheDir == null) ? null : new File(cacheDir));
+		}
+
+		if (isStore) {
+			TimeSeriesStoreReader store = new TimeSeriesStoreReader(new File(input));
+			if (nRows == null) {
+				nRows = (store.size() == 0) ? 1 : store.getPeriod(0);
+			}
+			if (nCols == null) {
+				nCols = (store.size() == 0) ? 1 : store.getLength(0) / nRows;
+			}
+			RobustAnomalyDetector detector = new RobustAnomalyDetector(nRows, nCols, isForceDiff);
+			detector.setCache(cache);
+			RADBatchRunner runner = new RADBatchRunner(detector, numThreads);
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), UTF8), 1 << 16);
+			try {
+				runner.run(store, out);
+			} finally {
+				store.close();
+				out.close();
+			}
+			runner.report(System.err);
+			return;
+		}
+
+		RobustAnomalyDetector detector = new RobustAnomalyDetector(nRows, nCols, isForceDiff);
+		detector.setCache(cache);
+		RADBatchRunner runner = new RADBatchRunner(detector, numThreads);
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), UTF8), 1 << 16);
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), UTF8), 1 << 16);
+		try {
+			runner.run(in, out);
+		} finally {
+			in.close();
+			out.close();
+		}
+		runner.report(System.err);
+	}
+}
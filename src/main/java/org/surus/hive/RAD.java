@@ -0,0 +1,225 @@
+package org.surus.hive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.FloatObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.surus.math.RobustAnomalyDetector;
+import org.surus.math.RobustAnomalyDetector.Decomposition;
+
+/**
+ * Robust anomaly detection as a Hive table generating function, with the same math
+ * as org.surus.pig.RAD.
+ *
+ * Arguments: values, nCols, nRows, [isForceDiff]
+ *
+ * values is an array of numbers ordered in time, e.g. collect_list(metric) over a
+ * group sorted by date, and must hold nRows * nCols elements. One row is emitted per
+ * value: index, x_transform, rsvd_l, rsvd_s, rsvd_e. Groups with too few non-zero
+ * values are emitted with null decomposition fields, as in Pig.
+ *
+ * Object inspectors are resolved once in initialize. Elements are read through the
+ * typed inspector of their primitive category into a reused double[], and output
+ * rows reuse the same writables.
+ */
+@Description(name = "rad",
+	value = "_FUNC_(values, nCols, nRows[, isForceDiff]) - robust anomaly detection over an array of values "
+		+ "ordered in time; returns (index, x_transform, rsvd_l, rsvd_s, rsvd_e) for every value")
+public class RAD extends GenericUDTF {
+
+	private static final int DOUBLE = 0;
+	private static final int FLOAT  = 1;
+	private static final int INT    = 2;
+	private static final int LONG   = 3;
+	private static final int OTHER  = 4;
+
+	private ObjectInspector[] argOIs;
+	private ListObjectInspector listOI;
+	private PrimitiveObjectInspector elementOI;
+	private int elementType;
+
+	// Constant arguments are read once; anything else is read per row
+	private Integer constantNCols;
+	private Integer constantNRows;
+	private Boolean constantIsForceDiff;
+	private boolean hasIsForceDiff;
+
+	private RobustAnomalyDetector detector;
+	private double[] values;
+
+	private final IntWritable    index       = new IntWritable();
+	private final DoubleWritable xTransform  = new DoubleWritable();
+	private final DoubleWritable rsvdL       = new DoubleWritable();
+	private final DoubleWritable rsvdS       = new DoubleWritable();
+	private final DoubleWritable rsvdE       = new DoubleWritable();
+	private final Object[] row = new Object[5];
+
+	@Override
+	public StructObjectInspector initialize(StructObjectInspector argOIs) throws UDFArgumentException {
+		List<? extends StructField> arguments = argOIs.getAllStructFieldRefs();
+		ObjectInspector[] inspectors = new ObjectInspector[arguments.size()];
+		for (int i = 0; i < inspectors.length; i++) {
+			inspectors[i] = arguments.get(i).getFieldObjectInspector();
+		}
+
+		if (inspectors.length < 3 || inspectors.length > 4) {
+			throw new UDFArgumentException("rad takes values, nCols, nRows and an optional isForceDiff");
+		}
+		if (inspectors[0].getCategory() != ObjectInspector.Category.LIST) {
+			throw new UDFArgumentException("rad expects an array of numbers as its first argument");
+		}
+		this.listOI = (ListObjectInspector) inspectors[0];
+		ObjectInspector elementOI = this.listOI.getListElementObjectInspector();
+		if (elementOI.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+			throw new UDFArgumentException("rad expects an array of numbers as its first argument");
+		}
+		this.elementOI = (PrimitiveObjectInspector) elementOI;
+		switch (this.elementOI.getPrimitiveCategory()) {
+			case DOUBLE: this.elementType = DOUBLE; break;
+			case FLOAT:  this.elementType = FLOAT;  break;
+			case INT:    this.elementType = INT;    break;
+			case LONG:   this.elementType = LONG;   break;
+			default:     this.elementType = OTHER;
+		}
+
+		for (int i = 1; i < inspectors.length; i++) {
+			if (inspectors[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+				throw new UDFArgumentException("rad expects primitive nCols, nRows and isForceDiff arguments");
+			}
+		}
+		this.argOIs = inspectors;
+		this.hasIsForceDiff = inspectors.length == 4;
+		if (inspectors[1] instanceof ConstantObjectInspector) {
+			this.constantNCols = readInt(inspectors[1], ((ConstantObjectInspector) inspectors[1]).getWritableConstantValue());
+		}
+		if (inspectors[2] instanceof ConstantObjectInspector) {
+			this.constantNRows = readInt(inspectors[2], ((ConstantObjectInspector) inspectors[2]).getWritableConstantValue());
+		}
+		if (this.hasIsForceDiff && inspectors[3] instanceof ConstantObjectInspector) {
+			this.constantIsForceDiff = readBoolean(inspectors[3], ((ConstantObjectInspector) inspectors[3]).getWritableConstantValue());
+		}
+
+		List<String> fieldNames = new ArrayList<String>(5);
+		List<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>(5);
+		fieldNames.add("index");
+		fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+		for (String name : new String[] {"x_transform", "rsvd_l", "rsvd_s", "rsvd_e"}) {
+			fieldNames.add(name);
+			fieldOIs.add(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+		}
+		return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+	}
+
+	private static Integer readInt(ObjectInspector oi, Object value) {
+		return (value == null) ? null : PrimitiveObjectInspectorUtils.getInt(value, (PrimitiveObjectInspector) oi);
+	}
+
+	private static Boolean readBoolean(ObjectInspector oi, Object value) {
+		if (value == null) {
+			return null;
+		}
+		PrimitiveObjectInspector poi = (PrimitiveObjectInspector) oi;
+		if (poi.getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.STRING) {
+			return Boolean.parseBoolean(PrimitiveObjectInspectorUtils.getString(value, poi));
+		}
+		return PrimitiveObjectInspectorUtils.getBoolean(value, poi);
+	}
+
+	// Reuses the detector while nRows, nCols and isForceDiff are unchanged
+	private RobustAnomalyDetector detector(Object[] args) throws HiveException {
+		Integer nCols = (this.constantNCols != null) ? this.constantNCols : readInt(this.argOIs[1], args[1]);
+		Integer nRows = (this.constantNRows != null) ? this.constantNRows : readInt(this.argOIs[2], args[2]);
+		Boolean isForceDiff = null;
+		if (this.hasIsForceDiff) {
+			isForceDiff = (this.constantIsForceDiff != null) ? this.constantIsForceDiff : readBoolean(this.argOIs[3], args[3]);
+		}
+		if (nCols == null || nRows == null) {
+			throw new HiveException("rad requires non-null nCols and nRows");
+		}
+		if (this.detector == null || this.detector.getNCols() != nCols || this.detector.getNRows() != nRows
+				|| !equals(this.detector.getIsForceDiff(), isForceDiff)) {
+			this.detector = new RobustAnomalyDetector(nRows, nCols, isForceDiff);
+			this.values = new double[nRows * nCols];
+		}
+		return this.detector;
+	}
+
+	private static boolean equals(Boolean a, Boolean b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	@Override
+	public void process(Object[] args) throws HiveException {
+
+		Object list = args[0];
+		if (list == null) {
+			return;
+		}
+		RobustAnomalyDetector detector = detector(args);
+
+		int length = this.listOI.getListLength(list);
+		if (length != this.values.length) {
+			throw new HiveException("ERROR: this.nRows * this.nCols != values.length");
+		}
+		for (int n = 0; n < length; n++) {
+			Object element = this.listOI.getListElement(list, n);
+			if (element == null) {
+				this.values[n] = 0;
+				continue;
+			}
+			switch (this.elementType) {
+				case DOUBLE: this.values[n] = ((DoubleObjectInspector) this.elementOI).get(element); break;
+				case FLOAT:  this.values[n] = ((FloatObjectInspector) this.elementOI).get(element); break;
+				case INT:    this.values[n] = ((IntObjectInspector) this.elementOI).get(element); break;
+				case LONG:   this.values[n] = ((LongObjectInspector) this.elementOI).get(element); break;
+				default:     this.values[n] = PrimitiveObjectInspectorUtils.getDouble(element, this.elementOI);
+			}
+		}
+
+		Decomposition decomposition = detector.decompose(this.values);
+		for (int n = 0; n < length; n++) {
+			this.index.set(n);
+			this.row[0] = this.index;
+			if (decomposition != null) {
+				this.xTransform.set(decomposition.getTransformed()[n]);
+				this.rsvdL.set(decomposition.getL()[n]);
+				this.rsvdS.set(decomposition.getS()[n]);
+				this.rsvdE.set(decomposition.getE()[n]);
+				this.row[1] = this.xTransform;
+				this.row[2] = this.rsvdL;
+				this.row[3] = this.rsvdS;
+				this.row[4] = this.rsvdE;
+			} else {
+				this.row[1] = null;
+				this.row[2] = null;
+				this.row[3] = null;
+				this.row[4] = null;
+			}
+			forward(this.row);
+		}
+	}
+
+	@Override
+	public void close() throws HiveException {
+		this.detector = null;
+		this.values = null;
+	}
+}
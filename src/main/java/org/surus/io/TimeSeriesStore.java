@@ -0,0 +1,30 @@
+package org.surus.io;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Binary columnar layout shared by TimeSeriesStoreWriter and TimeSeriesStoreReader.
+ *
+ * <pre>
+ * header   magic "SRTS" | version int | numSeries int | reserved int | indexOffset long | reserved long
+ * values   float64 values of every series, back to back, starting at VALUES_OFFSET
+ * index    lengths int[numSeries] | periods int[numSeries] | offsets long[numSeries]
+ *          | ids (int byte length followed by UTF-8 bytes) x numSeries
+ * </pre>
+ *
+ * Offsets are counted in values (not bytes) from the start of the values block.
+ * All numbers are little-endian.
+ */
+public final class TimeSeriesStore {
+
+	public static final int MAGIC = 0x53525453;		// "SRTS"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final long VALUES_OFFSET = HEADER_SIZE;
+
+	public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private TimeSeriesStore() {}
+}
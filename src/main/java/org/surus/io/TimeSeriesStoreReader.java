@@ -0,0 +1,136 @@
+package org.surus.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-mapped reader for the binary format described in TimeSeriesStore.
+ * getValues returns a read-only view straight onto the mapped file, so series
+ * are never parsed or copied on the way in.
+ *
+ * The values block is mapped in windows of at most MAX_WINDOW_BYTES, each holding
+ * a run of whole series, so stores larger than 2GB can be read. Views may be used
+ * from any number of threads.
+ */
+public class TimeSeriesStoreReader implements Closeable {
+
+	private static final long MAX_WINDOW_BYTES = 1L << 30;
+
+	private final RandomAccessFile file;
+	private final int numSeries;
+	private final String[] ids;
+	private final int[] lengths;
+	private final int[] periods;
+	private final long[] offsets;
+
+	// Mapped windows, the value offset each one starts at, and the window holding each series
+	private final List<DoubleBuffer> windows = new ArrayList<DoubleBuffer>();
+	private final List<Long> windowOffsets = new ArrayList<Long>();
+	private final int[] seriesWindow;
+
+	public TimeSeriesStoreReader(File path) throws IOException {
+		this.file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = this.file.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(TimeSeriesStore.HEADER_SIZE).order(TimeSeriesStore.BYTE_ORDER);
+			while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {}
+			header.flip();
+			if (header.remaining() < TimeSeriesStore.HEADER_SIZE || header.getInt() != TimeSeriesStore.MAGIC) {
+				throw new IOException(path + " is not a time series store");
+			}
+			int version = header.getInt();
+			if (version != TimeSeriesStore.VERSION) {
+				throw new IOException("Unsupported time series store version: " + version);
+			}
+			this.numSeries = header.getInt();
+			header.getInt();
+			long indexOffset = header.getLong();
+
+			// Index
+			MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset);
+			index.order(TimeSeriesStore.BYTE_ORDER);
+			this.lengths = new int[numSeries];
+			this.periods = new int[numSeries];
+			this.offsets = new long[numSeries];
+			this.ids     = new String[numSeries];
+			for (int i = 0; i < numSeries; i++) lengths[i] = index.getInt();
+			for (int i = 0; i < numSeries; i++) periods[i] = index.getInt();
+			for (int i = 0; i < numSeries; i++) offsets[i] = index.getLong();
+			for (int i = 0; i < numSeries; i++) {
+				byte[] id = new byte[index.getInt()];
+				index.get(id);
+				ids[i] = new String(id, TimeSeriesStore.UTF8);
+			}
+
+			// Values, in windows of whole series
+			this.seriesWindow = new int[numSeries];
+			int start = 0;
+			while (start < numSeries) {
+				int end = start;
+				long windowValues = 0;
+				while (end < numSeries && (end == start || 8 * (windowValues + lengths[end]) <= MAX_WINDOW_BYTES)) {
+					windowValues += lengths[end];
+					seriesWindow[end] = windows.size();
+					end++;
+				}
+				if (8 * windowValues > Integer.MAX_VALUE) {
+					throw new IOException("Series " + ids[start] + " is too large to map");
+				}
+				long byteOffset = TimeSeriesStore.VALUES_OFFSET + 8 * offsets[start];
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, byteOffset, 8 * windowValues);
+				window.order(TimeSeriesStore.BYTE_ORDER);
+				windows.add(window.asDoubleBuffer());
+				windowOffsets.add(offsets[start]);
+				start = end;
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	public int size() {
+		return numSeries;
+	}
+
+	public String getId(int i) {
+		return ids[i];
+	}
+
+	public int getLength(int i) {
+		return lengths[i];
+	}
+
+	public int getPeriod(int i) {
+		return periods[i];
+	}
+
+	/**
+	 * @return a read-only view of series i, positioned at 0 with limit getLength(i)
+	 */
+	public DoubleBuffer getValues(int i) {
+		int w = seriesWindow[i];
+		DoubleBuffer view = windows.get(w).duplicate();
+		int position = (int) (offsets[i] - windowOffsets.get(w));
+		view.limit(position + lengths[i]);
+		view.position(position);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Mappings are released when they are garbage collected; close only releases the file handle.
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
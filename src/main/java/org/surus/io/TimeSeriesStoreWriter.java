@@ -0,0 +1,136 @@
+package org.surus.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes series to the binary format described in TimeSeriesStore. Values are
+ * streamed to disk as they are added; only the per-series index is kept in
+ * memory until close().
+ */
+public class TimeSeriesStoreWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+
+	private final List<String> ids = new ArrayList<String>();
+	private int[]  lengths = new int[1024];
+	private int[]  periods = new int[1024];
+	private long[] offsets = new long[1024];
+	private long   numValues = 0;
+	private boolean closed = false;
+
+	public TimeSeriesStoreWriter(File path) throws IOException {
+		this.file = new RandomAccessFile(path, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE).order(TimeSeriesStore.BYTE_ORDER);
+		this.channel.position(TimeSeriesStore.VALUES_OFFSET);
+	}
+
+	/**
+	 * @param id series identifier
+	 * @param period length of a season, e.g. 7 for daily data with weekly seasonality; positive
+	 * @param values series values, ordered in time
+	 */
+	public void add(String id, int period, double[] values) throws IOException {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be positive, got "+period);
+		}
+		int n = ids.size();
+		if (n == lengths.length) {
+			lengths = Arrays.copyOf(lengths, 2 * n);
+			periods = Arrays.copyOf(periods, 2 * n);
+			offsets = Arrays.copyOf(offsets, 2 * n);
+		}
+		ids.add(id);
+		lengths[n] = values.length;
+		periods[n] = period;
+		offsets[n] = numValues;
+
+		for (int i = 0; i < values.length; i++) {
+			if (buffer.remaining() < 8) {
+				flush();
+			}
+			buffer.putDouble(values[i]);
+		}
+		numValues += values.length;
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void ensureRemaining(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			int numSeries = ids.size();
+			long indexOffset = TimeSeriesStore.VALUES_OFFSET + 8 * numValues;
+
+			for (int i = 0; i < numSeries; i++) {
+				ensureRemaining(4);
+				buffer.putInt(lengths[i]);
+			}
+			for (int i = 0; i < numSeries; i++) {
+				ensureRemaining(4);
+				buffer.putInt(periods[i]);
+			}
+			for (int i = 0; i < numSeries; i++) {
+				ensureRemaining(8);
+				buffer.putLong(offsets[i]);
+			}
+			for (int i = 0; i < numSeries; i++) {
+				byte[] id = ids.get(i).getBytes(TimeSeriesStore.UTF8);
+				ensureRemaining(4);
+				buffer.putInt(id.length);
+				for (int offset = 0; offset < id.length; ) {
+					ensureRemaining(1);
+					int chunk = Math.min(buffer.remaining(), id.length - offset);
+					buffer.put(id, offset, chunk);
+					offset += chunk;
+				}
+			}
+			flush();
+
+			// Header last, so a partially written file is never mistaken for a complete one
+			ByteBuffer header = ByteBuffer.allocate(TimeSeriesStore.HEADER_SIZE).order(TimeSeriesStore.BYTE_ORDER);
+			header.putInt(TimeSeriesStore.MAGIC);
+			header.putInt(TimeSeriesStore.VERSION);
+			header.putInt(numSeries);
+			header.putInt(0);
+			header.putLong(indexOffset);
+			header.putLong(0);
+			header.flip();
+			channel.position(0);
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+		} finally {
+			file.close();
+		}
+	}
+}
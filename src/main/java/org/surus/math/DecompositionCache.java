@@ -0,0 +1,245 @@
+package org.surus.math;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.surus.math.RobustAnomalyDetector.Decomposition;
+
+/**
+ * Content-addressed cache of RobustAnomalyDetector results.
+ *
+ * Entries are keyed by a SHA-256 digest of nRows, nCols, the diff setting, both
+ * penalties and the input values, so a series decomposed with the same parameters
+ * is never solved twice. Lookups go to an in-memory LRU tier first and then to an
+ * optional directory of one file per entry, which can be shipped to tasks through
+ * the distributed cache. Series skipped for having too few non-zero values are
+ * cached as well.
+ *
+ * Returned decompositions are copies, so callers may modify them freely.
+ */
+public class DecompositionCache {
+
+	private static final int FILE_MAGIC = 0x52414443;		// "RADC"
+	private static final String FILE_SUFFIX = ".rad";
+
+	// Stands in for a skipped series in the memory tier
+	private static final Decomposition SKIPPED = new Decomposition(null, null, null, null);
+
+	private final Map<String, Decomposition> memory;
+	private final File directory;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries size of the in-memory tier, 0 to disable it
+	 * @param directory directory for the disk tier, or null to disable it
+	 */
+	public DecompositionCache(final int maxEntries, File directory) {
+		this.memory = new LinkedHashMap<String, Decomposition>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Decomposition> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		this.directory = directory;
+		if (directory != null && !directory.isDirectory()) {
+			directory.mkdirs();
+		}
+	}
+
+	public DecompositionCache(int maxEntries) {
+		this(maxEntries, null);
+	}
+
+	/**
+	 * @return the cache key for values decomposed by detector
+	 */
+	public static String key(RobustAnomalyDetector detector, DoubleBuffer values) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(8 * 512);
+		buffer.putInt(detector.getNRows());
+		buffer.putInt(detector.getNCols());
+		Boolean isForceDiff = detector.getIsForceDiff();
+		buffer.putInt(isForceDiff == null ? -1 : (isForceDiff ? 1 : 0));
+		buffer.putLong(Double.doubleToLongBits(detector.getLpenalty()));
+		buffer.putLong(Double.doubleToLongBits(detector.getSpenalty()));
+		buffer.putInt(values.remaining());
+
+		DoubleBuffer view = values.duplicate();
+		while (view.hasRemaining()) {
+			if (buffer.remaining() < 8) {
+				digest.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+			buffer.putLong(Double.doubleToLongBits(view.get()));
+		}
+		digest.update(buffer.array(), 0, buffer.position());
+
+		byte[] hash = digest.digest();
+		StringBuilder sb = new StringBuilder(2 * hash.length);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the cached decomposition of values, solving and storing it on a miss.
+	 */
+	public Decomposition decompose(RobustAnomalyDetector detector, DoubleBuffer values) {
+		String key = key(detector, values);
+
+		Decomposition cached;
+		synchronized (memory) {
+			cached = memory.get(key);
+		}
+		if (cached == null) {
+			cached = read(key);
+			if (cached != null) {
+				diskHits.incrementAndGet();
+				synchronized (memory) {
+					memory.put(key, cached);
+				}
+			}
+		}
+		if (cached != null) {
+			hits.incrementAndGet();
+			return copy(cached);
+		}
+
+		misses.incrementAndGet();
+		Decomposition decomposition = detector.solve(values);
+		Decomposition stored = (decomposition == null) ? SKIPPED : copy(decomposition);
+		synchronized (memory) {
+			memory.put(key, stored);
+		}
+		write(key, stored);
+		return decomposition;
+	}
+
+	private static Decomposition copy(Decomposition d) {
+		if (d == SKIPPED) {
+			return null;
+		}
+		return new Decomposition(d.getTransformed().clone(), d.getL().clone(), d.getS().clone(), d.getE().clone());
+	}
+
+	private Decomposition read(String key) {
+		if (directory == null) {
+			return null;
+		}
+		File file = new File(directory, key + FILE_SUFFIX);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_MAGIC) {
+					return null;
+				}
+				int length = in.readInt();
+				if (length < 0) {
+					return SKIPPED;
+				}
+				double[][] arrays = new double[4][length];
+				for (double[] array : arrays) {
+					for (int n = 0; n < length; n++) {
+						array[n] = in.readDouble();
+					}
+				}
+				return new Decomposition(arrays[0], arrays[1], arrays[2], arrays[3]);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// A truncated or unreadable entry is just a miss
+			return null;
+		}
+	}
+
+	private void write(String key, Decomposition d) {
+		if (directory == null) {
+			return;
+		}
+		File file = new File(directory, key + FILE_SUFFIX);
+		File temp = new File(directory, key + FILE_SUFFIX + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(FILE_MAGIC);
+				if (d == SKIPPED) {
+					out.writeInt(-1);
+				} else {
+					int length = d.getL().length;
+					out.writeInt(length);
+					for (double[] array : new double[][] {d.getTransformed(), d.getL(), d.getS(), d.getE()}) {
+						for (int n = 0; n < length; n++) {
+							out.writeDouble(array[n]);
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+			// Readers only ever see complete entries
+			if (!temp.renameTo(file)) {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			// The disk tier is best effort, e.g. a read-only shipped directory
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @return lookups served from either tier
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return lookups served from the disk tier, a subset of getHits()
+	 */
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int size() {
+		synchronized (memory) {
+			return memory.size();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
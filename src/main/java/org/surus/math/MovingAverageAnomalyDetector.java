@@ -0,0 +1,115 @@
+package org.surus.math;
+
+import org.surus.math.RobustAnomalyDetector.Decomposition;
+
+/**
+ * Port of AnomalyDetection.ma from the R package: a value is anomalous when it falls
+ * outside mean +/- 1.6 sd of its position in the season, where the mean and sd are
+ * taken over every season but the last.
+ *
+ * Values are laid out as in RobustAnomalyDetector, nRows values per season and nCols
+ * seasons, consecutive values filling a season. The statistics are accumulated in a
+ * single pass over primitive arrays, so the cost is O(nRows * nCols) with no matrix
+ * factorization, which makes it a cheap first tier in front of RPCA.
+ */
+public class MovingAverageAnomalyDetector {
+
+	public static final double WIDTH_DEFAULT = 1.6;
+
+	private final int nRows;
+	private final int nCols;
+	private final double width;
+
+	public MovingAverageAnomalyDetector(int nRows, int nCols) {
+		this(nRows, nCols, WIDTH_DEFAULT);
+	}
+
+	/**
+	 * @param nRows length of a season, e.g. 7 for daily data with weekly seasonality
+	 * @param nCols number of seasons, at least 3 so that the sd is defined
+	 * @param width band half-width in standard deviations
+	 */
+	public MovingAverageAnomalyDetector(int nRows, int nCols, double width) {
+		if (nCols < 3) {
+			throw new IllegalArgumentException("ERROR: nCols must be at least 3");
+		}
+		this.nRows = nRows;
+		this.nCols = nCols;
+		this.width = width;
+	}
+
+	// Per-row mean and sd over the first nCols - 1 seasons, as {means, sds}
+	private double[][] bounds(double[] values) {
+		if (values.length != this.nRows*this.nCols) {
+        	throw new IllegalArgumentException("ERROR: this.nRows * this.nCols != values.length");
+		}
+		// Welford's update, one running mean and sum of squares per row
+		double[] means = new double[this.nRows];
+		double[] m2    = new double[this.nRows];
+		int history = this.nRows * (this.nCols - 1);
+		for (int n = 0; n < history; n++) {
+			int i = n % this.nRows;
+			double count = n / this.nRows + 1;
+			double delta = values[n] - means[i];
+			means[i] += delta / count;
+			m2[i] += delta * (values[n] - means[i]);
+		}
+		double[] sds = new double[this.nRows];
+		for (int i = 0; i < this.nRows; i++) {
+			sds[i] = Math.sqrt(m2[i] / (this.nCols - 2));
+		}
+		return new double[][] {means, sds};
+	}
+
+	/**
+	 * @param values series of length nRows * nCols, ordered in time
+	 * @return true for every value outside its season's band
+	 */
+	public boolean[] detect(double[] values) {
+		double[][] bounds = bounds(values);
+		boolean[] anomalous = new boolean[values.length];
+		for (int n = 0; n < values.length; n++) {
+			int i = n % this.nRows;
+			double band = this.width * bounds[1][i];
+			anomalous[n] = values[n] > bounds[0][i] + band || values[n] < bounds[0][i] - band;
+		}
+		return anomalous;
+	}
+
+	/**
+	 * Expresses the bands in the same shape as RobustAnomalyDetector, so either can back RAD:
+	 * transformed is the input, L the season mean, S the distance beyond the band (0 inside
+	 * it, so S is non-zero exactly where detect is true) and E the remainder x - L - S.
+	 * @param values series of length nRows * nCols, ordered in time
+	 */
+	public Decomposition decompose(double[] values) {
+		double[][] bounds = bounds(values);
+		double[] L = new double[values.length];
+		double[] S = new double[values.length];
+		double[] E = new double[values.length];
+		for (int n = 0; n < values.length; n++) {
+			int i = n % this.nRows;
+			double band = this.width * bounds[1][i];
+			L[n] = bounds[0][i];
+			if (values[n] > L[n] + band) {
+				S[n] = values[n] - (L[n] + band);
+			} else if (values[n] < L[n] - band) {
+				S[n] = values[n] - (L[n] - band);
+			}
+			E[n] = values[n] - L[n] - S[n];
+		}
+		return new Decomposition(values.clone(), L, S, E);
+	}
+
+	public int getNRows() {
+		return nRows;
+	}
+
+	public int getNCols() {
+		return nCols;
+	}
+
+	public double getWidth() {
+		return width;
+	}
+}
@@ -0,0 +1,167 @@
+package org.surus.math;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.math3.linear.BlockRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+/**
+ * Ridge regression of many responses on a single design matrix. X is
+ * decomposed once and every response is fit with blocked matrix products
+ * against the cached factorization, so the marginal cost of a response is
+ * a few matrix-vector products instead of a new SVD.
+ */
+public class MultiResponseRidgeRegression {
+
+	private static final int BLOCK_SIZE = 256;
+
+	private RealMatrix X;
+	private RealMatrix Ut;
+	private RealMatrix V;
+	private double[] singularValues;
+	private double l2penalty;
+
+	// One row per response
+	private double[][] coefficients;
+	private double[][] standarderrors;
+
+	public MultiResponseRidgeRegression(double[][] x) {
+		this.X = new BlockRealMatrix(x);
+		SingularValueDecomposition svd = new SingularValueDecomposition(this.X);
+		this.Ut = new BlockRealMatrix(svd.getUT().getData());
+		this.V = svd.getV();
+		this.singularValues = svd.getSingularValues();
+	}
+
+	/**
+	 * Fits every column of Y against X
+	 * @param Y n by m matrix with one response per column
+	 * @param l2penalty
+	 */
+	public void updateCoefficients(double[][] Y, double l2penalty) {
+		int m = (Y.length == 0) ? 0 : Y[0].length;
+		this.l2penalty = l2penalty;
+		this.coefficients = new double[m][];
+		this.standarderrors = new double[m][];
+
+		RealMatrix Z = penalizedPseudoInverseFactor(l2penalty);
+		double[] variances = unitCoefficientVariances(Z);
+
+		for (int start = 0; start < m; start += BLOCK_SIZE) {
+			int end = Math.min(start + BLOCK_SIZE, m);
+			double[][] block = new double[Y.length][end - start];
+			for (int i = 0; i < Y.length; i++) {
+				System.arraycopy(Y[i], start, block[i], 0, end - start);
+			}
+			fitBlock(new BlockRealMatrix(block), Z, variances, this.coefficients, this.standarderrors, start);
+		}
+	}
+
+	/**
+	 * Fits a stream of response vectors against X, BLOCK_SIZE responses at a time
+	 * @param responses response vectors, each of length n
+	 * @param l2penalty
+	 */
+	public void updateCoefficients(Iterator<double[]> responses, double l2penalty) {
+		this.l2penalty = l2penalty;
+		RealMatrix Z = penalizedPseudoInverseFactor(l2penalty);
+		double[] variances = unitCoefficientVariances(Z);
+
+		List<double[]> coefficientList = new ArrayList<double[]>();
+		List<double[]> standarderrorList = new ArrayList<double[]>();
+		List<double[]> pending = new ArrayList<double[]>(BLOCK_SIZE);
+		while (responses.hasNext()) {
+			pending.add(responses.next());
+			if (pending.size() == BLOCK_SIZE || !responses.hasNext()) {
+				RealMatrix block = new BlockRealMatrix(X.getRowDimension(), pending.size());
+				for (int j = 0; j < pending.size(); j++) {
+					block.setColumn(j, pending.get(j));
+				}
+				double[][] blockCoefficients = new double[pending.size()][];
+				double[][] blockStandarderrors = new double[pending.size()][];
+				fitBlock(block, Z, variances, blockCoefficients, blockStandarderrors, 0);
+				for (int j = 0; j < pending.size(); j++) {
+					coefficientList.add(blockCoefficients[j]);
+					standarderrorList.add(blockStandarderrors[j]);
+				}
+				pending.clear();
+			}
+		}
+		this.coefficients = coefficientList.toArray(new double[coefficientList.size()][]);
+		this.standarderrors = standarderrorList.toArray(new double[standarderrorList.size()][]);
+	}
+
+	/**
+	 * @return V diag(s / (s^2 + l2penalty)), so that coefficients = Z U'Y
+	 */
+	private RealMatrix penalizedPseudoInverseFactor(double l2penalty) {
+		RealMatrix Z = V.copy();
+		for (int k = 0; k < singularValues.length; k++) {
+			double s = singularValues[k];
+			double d = (s == 0) ? 0 : s / (s*s + l2penalty);
+			for (int j = 0; j < Z.getRowDimension(); j++) {
+				Z.multiplyEntry(j, k, d);
+			}
+		}
+		return Z;
+	}
+
+	/**
+	 * Diagonal of Z Z', the coefficient covariance for unit error variance.
+	 * It only depends on X and the penalty, so it is shared by all responses.
+	 */
+	private double[] unitCoefficientVariances(RealMatrix Z) {
+		double[] diag = new double[Z.getRowDimension()];
+		for (int j = 0; j < diag.length; j++) {
+			double[] row = Z.getRow(j);
+			for (int k = 0; k < row.length; k++) {
+				diag[j] += row[k] * row[k];
+			}
+		}
+		return diag;
+	}
+
+	private void fitBlock(RealMatrix Yb, RealMatrix Z, double[] variances,
+			double[][] coefficients, double[][] standarderrors, int offset) {
+		RealMatrix B = Z.multiply(Ut.multiply(Yb));
+		RealMatrix R = Yb.subtract(X.multiply(B));
+
+		int dof = X.getRowDimension() - X.getColumnDimension();
+		for (int j = 0; j < Yb.getColumnDimension(); j++) {
+			double[] residuals = R.getColumn(j);
+			double errorVariance = 0;
+			for (int i = 0; i < residuals.length; i++) {
+				errorVariance += residuals[i] * residuals[i];
+			}
+			errorVariance = errorVariance / dof;
+
+			double[] se = new double[variances.length];
+			for (int i = 0; i < se.length; i++) {
+				se[i] = errorVariance * variances[i];
+			}
+			coefficients[offset + j] = B.getColumn(j);
+			standarderrors[offset + j] = se;
+		}
+	}
+
+	public double getL2penalty() {
+		return l2penalty;
+	}
+
+	/**
+	 * @return coefficients, one row per response
+	 */
+	public double[][] getCoefficients() {
+		return coefficients;
+	}
+
+	/**
+	 * @return standard errors, one row per response
+	 */
+	public double[][] getStandarderrors() {
+		return standarderrors;
+	}
+}
@@ -14,6 +14,7 @@ public class RPCA {
 	
 	private double lpenalty;
 	private double spenalty;
+	private int iterations;
 	
 	private static final int MAX_ITERS = 228;
 	
@@ -60,6 +61,7 @@ public class RPCA {
 			
 			iter = iter + 1;
 		}
+		this.iterations = iter;
 	}
 		
 	private double[] softThreshold(double[] x, double penalty) {
@@ -165,6 +167,10 @@ public class RPCA {
 	public RealMatrix getE() {
 		return E;
 	}
+
+	public int getIterations() {
+		return iterations;
+	}
 	
 	
 	
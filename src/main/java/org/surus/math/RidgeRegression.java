@@ -2,7 +2,6 @@ package org.surus.math;
 
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.linear.SingularValueDecomposition;
 
 public class RidgeRegression {
@@ -17,34 +16,58 @@ public class RidgeRegression {
 	private double[] fitted;
 	private double[] residuals;
 
+	// Cached from X_svd, never modified after decomposition
+	private double[][] U;
+	private double[][] V;
+	private double[] singularValues;
+	private double[] UtY;
+	private double YtY;
+
 	public RidgeRegression(double[][] x, double[] y) {
 		this.X = MatrixUtils.createRealMatrix(x);
 		this.X_svd = null;
 		this.Y = y;
 		this.l2penalty = 0;
 		this.coefficients = null;
-		
+
 		this.fitted = new double[y.length];
 		this.residuals = new double[y.length];
 	}
-	
+
+	/**
+	 * Decomposes X once and caches U, V, the singular values and U'y.
+	 * Everything downstream works from copies of these arrays so that
+	 * repeated calls with different penalties see the same factorization.
+	 */
+	private void decompose() {
+		if (this.X_svd != null) {
+			return;
+		}
+		this.X_svd = new SingularValueDecomposition(X);
+		this.U = this.X_svd.getU().getData();
+		this.V = this.X_svd.getV().getData();
+		this.singularValues = this.X_svd.getSingularValues();
+
+		int r = this.singularValues.length;
+		this.UtY = new double[r];
+		for (int i = 0; i < this.U.length; i++) {
+			for (int k = 0; k < r; k++) {
+				this.UtY[k] += this.U[i][k] * this.Y[i];
+			}
+		}
+		this.YtY = 0;
+		for (int i = 0; i < this.Y.length; i++) {
+			this.YtY += this.Y[i] * this.Y[i];
+		}
+	}
+
 	public void updateCoefficients(double l2penalty) {
-        if (this.X_svd == null) {
-        	this.X_svd = new SingularValueDecomposition(X);
-        }
-	    RealMatrix V = this.X_svd.getV();
-	    double[] s = this.X_svd.getSingularValues();
-	    RealMatrix U = this.X_svd.getU();
-	    
-	    for (int i = 0; i < s.length; i++) {
-	    	s[i] = s[i] / (s[i]*s[i] + l2penalty);
-	    }
-	    RealMatrix S = MatrixUtils.createRealDiagonalMatrix(s);
-	    
-	    RealMatrix Z = V.multiply(S).multiply(U.transpose());
-	    
-	    this.coefficients = Z.operate(this.Y);
-	    
+		decompose();
+		this.l2penalty = l2penalty;
+
+		double[] d = shrinkage(l2penalty);
+		this.coefficients = coefficients(d);
+
 	    this.fitted = this.X.operate(this.coefficients);
 	    double errorVariance = 0;
 	    for (int i = 0; i < residuals.length; i++) {
@@ -52,20 +75,114 @@ public class RidgeRegression {
 	    	errorVariance += this.residuals[i] * this.residuals[i];
 	    }
 	    errorVariance = errorVariance / (X.getRowDimension() - X.getColumnDimension());
-	    
-	    RealMatrix errorVarianceMatrix = MatrixUtils.createRealIdentityMatrix(this.Y.length).scalarMultiply(errorVariance);
-	    RealMatrix coefficientsCovarianceMatrix = Z.multiply(errorVarianceMatrix).multiply(Z.transpose());
-	    this.standarderrors = getDiagonal(coefficientsCovarianceMatrix);
+
+	    this.standarderrors = coefficientVariances(d, errorVariance);
+	}
+
+	/**
+	 * Evaluates the ridge fit for every penalty in l2penalties from a single SVD
+	 * of X. Coefficients and standard errors cost O(p*r) per penalty, generalized
+	 * cross-validation O(r) and leave-one-out error O(n*r).
+	 * @param l2penalties grid of penalties to evaluate
+	 * @return the regularization path, including GCV and LOOCV scores
+	 */
+	public RidgeRegressionPath computePath(double[] l2penalties) {
+		decompose();
+
+		int n = this.Y.length;
+		int p = this.X.getColumnDimension();
+		int r = this.singularValues.length;
+
+		// Part of y'y that lies outside the column space of X
+		double outsideSpan = this.YtY;
+		for (int k = 0; k < r; k++) {
+			outsideSpan -= this.UtY[k] * this.UtY[k];
+		}
+		outsideSpan = Math.max(outsideSpan, 0);
+
+		double[][] pathCoefficients = new double[l2penalties.length][];
+		double[][] pathStandarderrors = new double[l2penalties.length][];
+		double[] gcv = new double[l2penalties.length];
+		double[] loocv = new double[l2penalties.length];
+
+		double[] f = new double[r];
+		double[] fUtY = new double[r];
+		for (int l = 0; l < l2penalties.length; l++) {
+			double[] d = shrinkage(l2penalties[l]);
+
+			// Hat matrix H = U diag(f) U'
+			double rss = outsideSpan;
+			double trace = 0;
+			for (int k = 0; k < r; k++) {
+				f[k] = d[k] * this.singularValues[k];
+				fUtY[k] = f[k] * this.UtY[k];
+				rss += Math.pow((1 - f[k]) * this.UtY[k], 2);
+				trace += f[k];
+			}
+
+			pathCoefficients[l] = coefficients(d);
+			pathStandarderrors[l] = coefficientVariances(d, rss / (n - p));
+			gcv[l] = n * rss / Math.pow(n - trace, 2);
+
+			double press = 0;
+			for (int i = 0; i < n; i++) {
+				double fitted_i = 0;
+				double h_ii = 0;
+				for (int k = 0; k < r; k++) {
+					fitted_i += this.U[i][k] * fUtY[k];
+					h_ii += this.U[i][k] * this.U[i][k] * f[k];
+				}
+				press += Math.pow((this.Y[i] - fitted_i) / (1 - h_ii), 2);
+			}
+			loocv[l] = press / n;
+		}
+
+		return new RidgeRegressionPath(l2penalties.clone(), pathCoefficients, pathStandarderrors, gcv, loocv);
+	}
+
+	/**
+	 * @return s / (s^2 + l2penalty) for each singular value s
+	 */
+	private double[] shrinkage(double l2penalty) {
+		double[] d = new double[this.singularValues.length];
+		for (int k = 0; k < d.length; k++) {
+			double s = this.singularValues[k];
+			d[k] = (s == 0) ? 0 : s / (s*s + l2penalty);
+		}
+		return d;
 	}
-	
-	private double[] getDiagonal(RealMatrix X) {
-		double[] diag = new double[X.getColumnDimension()];
-		for (int i = 0; i < diag.length; i++) {
-			diag[i] = X.getEntry(i, i);
+
+	/**
+	 * @return V diag(d) U'y
+	 */
+	private double[] coefficients(double[] d) {
+		double[] beta = new double[this.V.length];
+		for (int j = 0; j < beta.length; j++) {
+			double sum = 0;
+			for (int k = 0; k < d.length; k++) {
+				sum += this.V[j][k] * d[k] * this.UtY[k];
+			}
+			beta[j] = sum;
+		}
+		return beta;
+	}
+
+	/**
+	 * Diagonal of errorVariance * Z Z' where Z = V diag(d) U'. Since U'U = I
+	 * this is errorVariance * V diag(d^2) V'.
+	 */
+	private double[] coefficientVariances(double[] d, double errorVariance) {
+		double[] diag = new double[this.V.length];
+		for (int j = 0; j < diag.length; j++) {
+			double sum = 0;
+			for (int k = 0; k < d.length; k++) {
+				sum += this.V[j][k] * this.V[j][k] * d[k] * d[k];
+			}
+			diag[j] = errorVariance * sum;
 		}
 		return diag;
 	}
-	
+
 	public double getL2penalty() {
 		return l2penalty;
 	}
@@ -73,11 +190,11 @@ public class RidgeRegression {
 	public void setL2penalty(double l2penalty) {
 		this.l2penalty = l2penalty;
 	}
-	
+
 	public double[] getCoefficients() {
 		return coefficients;
 	}
-	
+
 	public double[] getStandarderrors() {
 		return standarderrors;
 	}
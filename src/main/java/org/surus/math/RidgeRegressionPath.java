@@ -0,0 +1,69 @@
+package org.surus.math;
+
+public class RidgeRegressionPath {
+
+	private final double[] l2penalties;
+	private final double[][] coefficients;
+	private final double[][] standarderrors;
+	private final double[] gcv;
+	private final double[] loocv;
+
+	public RidgeRegressionPath(double[] l2penalties, double[][] coefficients, double[][] standarderrors,
+			double[] gcv, double[] loocv) {
+		this.l2penalties = l2penalties;
+		this.coefficients = coefficients;
+		this.standarderrors = standarderrors;
+		this.gcv = gcv;
+		this.loocv = loocv;
+	}
+
+	private int argmin(double[] x) {
+		int best = 0;
+		for (int i = 1; i < x.length; i++) {
+			if (x[i] < x[best]) best = i;
+		}
+		return best;
+	}
+
+	/**
+	 * @return index into the penalty grid that minimizes generalized cross-validation
+	 */
+	public int getBestGCVIndex() {
+		return argmin(gcv);
+	}
+
+	/**
+	 * @return index into the penalty grid that minimizes leave-one-out error
+	 */
+	public int getBestLOOCVIndex() {
+		return argmin(loocv);
+	}
+
+	public double getBestL2penaltyGCV() {
+		return l2penalties[getBestGCVIndex()];
+	}
+
+	public double getBestL2penaltyLOOCV() {
+		return l2penalties[getBestLOOCVIndex()];
+	}
+
+	public double[] getL2penalties() {
+		return l2penalties;
+	}
+
+	public double[][] getCoefficients() {
+		return coefficients;
+	}
+
+	public double[][] getStandarderrors() {
+		return standarderrors;
+	}
+
+	public double[] getGCV() {
+		return gcv;
+	}
+
+	public double[] getLOOCV() {
+		return loocv;
+	}
+}
@@ -0,0 +1,145 @@
+package org.surus.math;
+
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+/**
+ * Accumulates X'X, X'y, y'y and n for a ridge regression one row at a time.
+ * Partial statistics computed on disjoint subsets of the rows can be merged,
+ * so the fit can be distributed and the full X never has to be in memory.
+ */
+public class RidgeSufficientStatistics {
+
+	private final int p;
+	private long n;
+	private double yty;
+	private final double[] xty;
+	private final double[] xtx;		// upper triangle, packed row by row
+
+	private double[] coefficients;
+	private double[] standarderrors;
+
+	public RidgeSufficientStatistics(int p) {
+		this.p = p;
+		this.n = 0;
+		this.yty = 0;
+		this.xty = new double[p];
+		this.xtx = new double[p * (p + 1) / 2];
+	}
+
+	/**
+	 * Rebuilds partial statistics, e.g. after they have been serialized
+	 * @param n number of rows
+	 * @param yty y'y
+	 * @param xty X'y, length p
+	 * @param xtx upper triangle of X'X packed row by row, length p*(p+1)/2
+	 */
+	public RidgeSufficientStatistics(long n, double yty, double[] xty, double[] xtx) {
+		this.p = xty.length;
+		if (xtx.length != p * (p + 1) / 2) {
+			throw new IllegalArgumentException("Expected "+(p * (p + 1) / 2)+" X'X entries but found "+xtx.length);
+		}
+		this.n = n;
+		this.yty = yty;
+		this.xty = xty;
+		this.xtx = xtx;
+	}
+
+	public void add(double[] x, double y) {
+		if (x.length != p) {
+			throw new IllegalArgumentException("Expected "+p+" predictors but found "+x.length);
+		}
+		int index = 0;
+		for (int i = 0; i < p; i++) {
+			double xi = x[i];
+			for (int j = i; j < p; j++) {
+				xtx[index++] += xi * x[j];
+			}
+			xty[i] += xi * y;
+		}
+		yty += y * y;
+		n++;
+	}
+
+	public void merge(RidgeSufficientStatistics other) {
+		if (other.p != p) {
+			throw new IllegalArgumentException("Cannot merge statistics with "+other.p+" and "+p+" predictors");
+		}
+		for (int i = 0; i < xtx.length; i++) {
+			xtx[i] += other.xtx[i];
+		}
+		for (int i = 0; i < p; i++) {
+			xty[i] += other.xty[i];
+		}
+		yty += other.yty;
+		n += other.n;
+	}
+
+	private RealMatrix getXtXMatrix() {
+		RealMatrix XtX = MatrixUtils.createRealMatrix(p, p);
+		int index = 0;
+		for (int i = 0; i < p; i++) {
+			for (int j = i; j < p; j++) {
+				XtX.setEntry(i, j, xtx[index]);
+				XtX.setEntry(j, i, xtx[index]);
+				index++;
+			}
+		}
+		return XtX;
+	}
+
+	/**
+	 * Solves (X'X + l2penalty I) b = X'y. The error variance is recovered from
+	 * y'y - 2 b'X'y + b'X'X b, so no pass over the rows is needed.
+	 * @param l2penalty
+	 */
+	public void updateCoefficients(double l2penalty) {
+		RealMatrix XtX = getXtXMatrix();
+		RealMatrix A = XtX.add(MatrixUtils.createRealIdentityMatrix(p).scalarMultiply(l2penalty));
+		RealMatrix Ainv = new SingularValueDecomposition(A).getSolver().getInverse();
+
+		RealVector Xty = MatrixUtils.createRealVector(xty);
+		RealVector beta = Ainv.operate(Xty);
+
+		double rss = yty - 2 * beta.dotProduct(Xty) + beta.dotProduct(XtX.operate(beta));
+		double errorVariance = Math.max(rss, 0) / (n - p);
+
+		// Cov(b) = errorVariance * A^-1 X'X A^-1, same as Z Z' with Z = A^-1 X'
+		RealMatrix coefficientsCovarianceMatrix = Ainv.multiply(XtX).multiply(Ainv).scalarMultiply(errorVariance);
+		this.coefficients = beta.toArray();
+		this.standarderrors = new double[p];
+		for (int i = 0; i < p; i++) {
+			this.standarderrors[i] = coefficientsCovarianceMatrix.getEntry(i, i);
+		}
+	}
+
+	public int getP() {
+		return p;
+	}
+
+	public long getN() {
+		return n;
+	}
+
+	public double getYty() {
+		return yty;
+	}
+
+	public double[] getXty() {
+		return xty;
+	}
+
+	public double[] getXtx() {
+		return xtx;
+	}
+
+	public double[] getCoefficients() {
+		return coefficients;
+	}
+
+	public double[] getStandarderrors() {
+		return standarderrors;
+	}
+}
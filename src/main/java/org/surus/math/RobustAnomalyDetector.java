@@ -0,0 +1,235 @@
+package org.surus.math;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * The RAD pipeline without any Pig dependencies: Augmented Dickey Fuller check,
+ * optional differencing, normalization to zero mean and unit variance, reshaping
+ * into an nRows by nCols matrix, RPCA, and denormalization back into input order.
+ */
+public class RobustAnomalyDetector {
+
+	public static final double LPENALTY_DEFAULT = 1;
+	public static final double SPENALTY_DEFAULT = 1.4;
+
+	private static final double EPS = 1e-12;
+
+	private final int nRows;
+	private final int nCols;
+	private final Boolean isForceDiff;
+	private final double lpenalty;
+	private final double spenalty;
+	private final int minRecords;
+	private DecompositionCache cache;
+
+	/**
+	 * @param nRows length of a season, e.g. 7 for daily data with weekly seasonality
+	 * @param nCols number of seasons
+	 * @param isForceDiff true to always difference, false to never difference, null
+	 * to let the Augmented Dickey Fuller test decide
+	 */
+	public RobustAnomalyDetector(int nRows, int nCols, Boolean isForceDiff) {
+		this(nRows, nCols, isForceDiff, LPENALTY_DEFAULT, SPENALTY_DEFAULT / Math.sqrt(Math.max(nCols, nRows)));
+	}
+
+	public RobustAnomalyDetector(int nRows, int nCols, Boolean isForceDiff, double lpenalty, double spenalty) {
+		this.nRows = nRows;
+		this.nCols = nCols;
+		this.isForceDiff = isForceDiff;
+		this.lpenalty = lpenalty;
+		this.spenalty = spenalty;
+		this.minRecords = 2 * nRows;
+	}
+
+	/**
+	 * Transformed input and the denormalized L, S and E components, in input order
+	 */
+	public static class Decomposition {
+		private final double[] transformed;
+		private final double[] L;
+		private final double[] S;
+		private final double[] E;
+		private final int iterations;
+
+		public Decomposition(double[] transformed, double[] L, double[] S, double[] E) {
+			this(transformed, L, S, E, 0);
+		}
+
+		/**
+		 * @param iterations RPCA iterations spent solving this decomposition
+		 */
+		public Decomposition(double[] transformed, double[] L, double[] S, double[] E, int iterations) {
+			this.transformed = transformed;
+			this.L = L;
+			this.S = S;
+			this.E = E;
+			this.iterations = iterations;
+		}
+
+		public double[] getTransformed() {
+			return transformed;
+		}
+
+		public double[] getL() {
+			return L;
+		}
+
+		public double[] getS() {
+			return S;
+		}
+
+		public double[] getE() {
+			return E;
+		}
+
+		/**
+		 * @return RPCA iterations spent solving, 0 if the decomposition was not solved by RPCA
+		 * in this call, e.g. when it came from a DecompositionCache
+		 */
+		public int getIterations() {
+			return iterations;
+		}
+	}
+
+	/**
+	 * Decomposes a single series. The input array is not modified.
+	 * @param values series of length nRows * nCols, ordered in time
+	 * @return the decomposition, or null if the series has fewer than 2 * nRows non-zero values
+	 */
+	public Decomposition decompose(double[] values) {
+		if (values.length != this.nRows*this.nCols) {
+        	throw new IllegalArgumentException("ERROR: this.nRows * this.nCols != values.length");
+		}
+		if (this.cache != null) {
+			return this.cache.decompose(this, DoubleBuffer.wrap(values));
+		}
+		return decomposeInPlace(values.clone());
+	}
+
+	/**
+	 * Decomposes a single series read from a buffer, e.g. a memory-mapped view from
+	 * TimeSeriesStoreReader. The values are bulk-copied once into the working array
+	 * that the transformations need anyway; the buffer's position is not changed.
+	 * @param values series of nRows * nCols remaining values, ordered in time
+	 * @return the decomposition, or null if the series has fewer than 2 * nRows non-zero values
+	 */
+	public Decomposition decompose(DoubleBuffer values) {
+		if (values.remaining() != this.nRows*this.nCols) {
+        	throw new IllegalArgumentException("ERROR: this.nRows * this.nCols != values.remaining()");
+		}
+		if (this.cache != null) {
+			return this.cache.decompose(this, values);
+		}
+		return solve(values);
+	}
+
+	// Always solves, bypassing the cache
+	Decomposition solve(DoubleBuffer values) {
+		double[] inputArray = new double[values.remaining()];
+		values.duplicate().get(inputArray);
+		return decomposeInPlace(inputArray);
+	}
+
+	private Decomposition decomposeInPlace(double[] inputArray) {
+
+		int numNonZeroRecords = 0;
+		for (int n=0; n < inputArray.length; n++) {
+			if (Math.abs(inputArray[n]) > EPS) numNonZeroRecords++;
+		}
+		if (numNonZeroRecords < this.minRecords) {
+			return null;
+		}
+
+		AugmentedDickeyFuller dickeyFullerTest = new AugmentedDickeyFuller(inputArray);
+		double[] inputArrayTransformed = inputArray;
+		if (this.isForceDiff == null && dickeyFullerTest.isNeedsDiff()) {
+			// Auto Diff
+			inputArrayTransformed = dickeyFullerTest.getZeroPaddedDiff();
+		} else if (Boolean.TRUE.equals(this.isForceDiff)) {
+			// Force Diff
+			inputArrayTransformed = dickeyFullerTest.getZeroPaddedDiff();
+		}
+
+		// Calc Mean
+		double mean  = 0;
+		for (int n=0; n < inputArrayTransformed.length; n++) {
+			mean += inputArrayTransformed[n];
+		}
+		mean /= inputArrayTransformed.length;
+
+		// Calc STDEV
+		double stdev = 0;
+		for (int n=0; n < inputArrayTransformed.length; n++) {
+			stdev += Math.pow(inputArrayTransformed[n] - mean,2) ;
+		}
+		stdev = Math.sqrt(stdev / (inputArrayTransformed.length - 1));
+
+		// Transformation: Zero Mean, Unit Variance
+		for (int n=0; n < inputArrayTransformed.length; n++) {
+			inputArrayTransformed[n] = (inputArrayTransformed[n]-mean)/stdev;
+		}
+
+		// Reshape: consecutive values fill a column
+		double[][] input2DArray = vectorToMatrix(inputArrayTransformed, this.nRows, this.nCols);
+
+		RPCA rSVD = new RPCA(input2DArray, this.lpenalty, this.spenalty);
+
+		double[][] outputE = rSVD.getE().getData();
+		double[][] outputS = rSVD.getS().getData();
+		double[][] outputL = rSVD.getL().getData();
+
+		// Denormalize back into input order
+		double[] L = new double[inputArrayTransformed.length];
+		double[] S = new double[inputArrayTransformed.length];
+		double[] E = new double[inputArrayTransformed.length];
+		for (int n=0; n< inputArrayTransformed.length; n++) {
+        	int i = n % this.nRows;
+        	int j = (int) Math.floor(n / this.nRows);
+			L[n] = outputL[i][j] * stdev + mean;
+			S[n] = outputS[i][j] * stdev;
+			E[n] = outputE[i][j] * stdev;
+		}
+		return new Decomposition(inputArrayTransformed, L, S, E, rSVD.getIterations());
+	}
+
+    public static double[][] vectorToMatrix(double[] x, int rows, int cols) {
+        double[][] input2DArray = new double[rows][cols];
+        for (int n= 0; n< x.length; n++) {
+        	int i = n % rows;
+        	int j = (int) Math.floor(n / rows);
+        	input2DArray[i][j] = x[n];
+        }
+        return input2DArray;
+    }
+
+	public int getNRows() {
+		return nRows;
+	}
+
+	public int getNCols() {
+		return nCols;
+	}
+
+	public Boolean getIsForceDiff() {
+		return isForceDiff;
+	}
+
+	public double getLpenalty() {
+		return lpenalty;
+	}
+
+	public double getSpenalty() {
+		return spenalty;
+	}
+
+	public DecompositionCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param cache cache consulted by decompose before solving, or null for none
+	 */
+	public void setCache(DecompositionCache cache) {
+		this.cache = cache;
+	}
+}
@@ -0,0 +1,265 @@
+package org.surus.pig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.surus.math.RidgeSufficientStatistics;
+
+/**
+ * Fits a ridge regression over a bag of (y, x_1, ..., x_p) tuples. Implements
+ * Algebraic so that X'X, X'y, y'y and n are accumulated map-side and only the
+ * p*(p+1)/2 + p + 3 partial statistics (p, n, y'y, X'y and X'X, see toTuple) are
+ * shuffled to the reducer.
+ *
+ * Output: (n, coef_x_1, ..., coef_x_p, se_x_1, ..., se_x_p)
+ */
+public class FitRidgeRegression extends EvalFunc<Tuple> implements Algebraic {
+
+	private static final TupleFactory tf = TupleFactory.getInstance();
+
+	private final double l2penalty;
+
+	// Constructor
+	public FitRidgeRegression() {
+		this("0");
+	}
+
+	// Constructor
+	public FitRidgeRegression(String l2penalty) {
+		this.l2penalty = Double.parseDouble(l2penalty);
+	}
+
+	// Define Output Schema
+    @Override
+    public Schema outputSchema(Schema input) {
+
+        try {
+            if (input.size() != 1) {
+                throw new RuntimeException("Expected input to have only a single field");
+            }
+
+            // Grab Bag Schema
+            Schema.FieldSchema inputFieldSchema = input.getField(0);
+            if (inputFieldSchema.type != DataType.BAG) {
+                throw new RuntimeException("Expected a BAG as input");
+            }
+
+            // Check Bag Schema
+            Schema inputBagSchema = inputFieldSchema.schema;
+            if (inputBagSchema.getField(0).type != DataType.TUPLE) {
+                throw new RuntimeException(String.format("Expected input bag to contain a TUPLE, but instead found %s",
+                        DataType.findTypeName(inputBagSchema.getField(0).type)));
+            }
+
+            // First field is the response, the rest are predictors
+            List<FieldSchema> inputFields = inputBagSchema.getField(0).schema.getFields();
+            if (inputFields.size() < 2) {
+                throw new RuntimeException("Expected input tuples of the form (y, x_1, ..., x_p)");
+            }
+            for (FieldSchema fieldSchema : inputFields) {
+                if (!DataType.isNumberType(fieldSchema.type)) {
+                    throw new RuntimeException(String.format("Data type of %s (%s) is not supported,", fieldSchema.alias,
+                            DataType.findTypeName(fieldSchema.type)));
+                }
+            }
+
+        	// Create List of Tuple Values
+        	List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
+        	fieldSchemas.add(new Schema.FieldSchema("n", DataType.LONG));
+        	for (int i = 1; i < inputFields.size(); i++) {
+        		fieldSchemas.add(new Schema.FieldSchema("coef_" + predictorAlias(inputFields.get(i), i), DataType.DOUBLE));
+        	}
+        	for (int i = 1; i < inputFields.size(); i++) {
+        		fieldSchemas.add(new Schema.FieldSchema("se_" + predictorAlias(inputFields.get(i), i), DataType.DOUBLE));
+        	}
+
+            // Build Tuple
+            FieldSchema tupleFieldSchema = new FieldSchema(this.getClass().getName().toLowerCase().replace(".", "_"), new Schema(fieldSchemas), DataType.TUPLE);
+            return new Schema(tupleFieldSchema);
+
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+
+    }
+
+    private static String predictorAlias(FieldSchema fieldSchema, int position) {
+    	return (fieldSchema.alias == null) ? "x_" + position : fieldSchema.alias;
+    }
+
+    // Define Exec
+	@Override
+	public Tuple exec(Tuple input) throws IOException {
+		RidgeSufficientStatistics statistics = accumulate((DataBag) input.get(0));
+		return (statistics == null) ? null : fit(statistics, this.l2penalty);
+	}
+
+	@Override
+	public String getInitial() {
+		return Initial.class.getName();
+	}
+
+	@Override
+	public String getIntermed() {
+		return Intermediate.class.getName();
+	}
+
+	@Override
+	public String getFinal() {
+		return Final.class.getName();
+	}
+
+	static public class Initial extends EvalFunc<Tuple> {
+
+		public Initial() {}
+
+		public Initial(String l2penalty) {}
+
+		@Override
+		public Tuple exec(Tuple input) throws IOException {
+			RidgeSufficientStatistics statistics = accumulate((DataBag) input.get(0));
+			return (statistics == null) ? null : toTuple(statistics);
+		}
+	}
+
+	static public class Intermediate extends EvalFunc<Tuple> {
+
+		public Intermediate() {}
+
+		public Intermediate(String l2penalty) {}
+
+		@Override
+		public Tuple exec(Tuple input) throws IOException {
+			RidgeSufficientStatistics statistics = merge((DataBag) input.get(0));
+			return (statistics == null) ? null : toTuple(statistics);
+		}
+	}
+
+	static public class Final extends EvalFunc<Tuple> {
+
+		private final double l2penalty;
+
+		public Final() {
+			this("0");
+		}
+
+		public Final(String l2penalty) {
+			this.l2penalty = Double.parseDouble(l2penalty);
+		}
+
+		@Override
+		public Tuple exec(Tuple input) throws IOException {
+			RidgeSufficientStatistics statistics = merge((DataBag) input.get(0));
+			return (statistics == null) ? null : fit(statistics, this.l2penalty);
+		}
+	}
+
+	/**
+	 * Accumulates raw (y, x_1, ..., x_p) rows. Rows with a null in any field are skipped.
+	 */
+	static RidgeSufficientStatistics accumulate(DataBag bag) throws IOException {
+		RidgeSufficientStatistics statistics = null;
+		double[] x = null;
+		Iterator<Tuple> bagIter = bag.iterator();
+		rows:
+		while (bagIter.hasNext()) {
+			Tuple tuple = bagIter.next();
+			if (statistics == null) {
+				statistics = new RidgeSufficientStatistics(tuple.size() - 1);
+				x = new double[tuple.size() - 1];
+			}
+			Object y = tuple.get(0);
+			if (y == null) continue;
+			for (int i = 0; i < x.length; i++) {
+				Object xi = tuple.get(i + 1);
+				if (xi == null) continue rows;
+				x[i] = ((Number) xi).doubleValue();
+			}
+			statistics.add(x, ((Number) y).doubleValue());
+		}
+		return statistics;
+	}
+
+	/**
+	 * Merges a bag of partial statistics produced by toTuple
+	 */
+	static RidgeSufficientStatistics merge(DataBag bag) throws IOException {
+		RidgeSufficientStatistics statistics = null;
+		Iterator<Tuple> bagIter = bag.iterator();
+		while (bagIter.hasNext()) {
+			Tuple tuple = bagIter.next();
+			if (tuple == null) continue;
+			RidgeSufficientStatistics partial = fromTuple(tuple);
+			if (statistics == null) {
+				statistics = partial;
+			} else {
+				statistics.merge(partial);
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Layout: (p, n, y'y, X'y[0..p), X'X upper triangle packed row by row)
+	 */
+	static Tuple toTuple(RidgeSufficientStatistics statistics) throws IOException {
+		double[] xty = statistics.getXty();
+		double[] xtx = statistics.getXtx();
+		Tuple tuple = tf.newTuple(3 + xty.length + xtx.length);
+		int index = 0;
+		tuple.set(index++, statistics.getP());
+		tuple.set(index++, statistics.getN());
+		tuple.set(index++, statistics.getYty());
+		for (int i = 0; i < xty.length; i++) {
+			tuple.set(index++, xty[i]);
+		}
+		for (int i = 0; i < xtx.length; i++) {
+			tuple.set(index++, xtx[i]);
+		}
+		return tuple;
+	}
+
+	static RidgeSufficientStatistics fromTuple(Tuple tuple) throws IOException {
+		int index = 0;
+		int p = (Integer) tuple.get(index++);
+		long n = (Long) tuple.get(index++);
+		double yty = (Double) tuple.get(index++);
+		double[] xty = new double[p];
+		for (int i = 0; i < p; i++) {
+			xty[i] = (Double) tuple.get(index++);
+		}
+		double[] xtx = new double[p * (p + 1) / 2];
+		for (int i = 0; i < xtx.length; i++) {
+			xtx[i] = (Double) tuple.get(index++);
+		}
+		return new RidgeSufficientStatistics(n, yty, xty, xtx);
+	}
+
+	static Tuple fit(RidgeSufficientStatistics statistics, double l2penalty) throws IOException {
+		statistics.updateCoefficients(l2penalty);
+		double[] coefficients = statistics.getCoefficients();
+		double[] standarderrors = statistics.getStandarderrors();
+
+		Tuple outputTuple = tf.newTuple(1 + 2 * coefficients.length);
+		int index = 0;
+		outputTuple.set(index++, statistics.getN());
+		for (int i = 0; i < coefficients.length; i++) {
+			outputTuple.set(index++, coefficients[i]);
+		}
+		for (int i = 0; i < standarderrors.length; i++) {
+			outputTuple.set(index++, standarderrors[i]);
+		}
+		return outputTuple;
+	}
+
+}
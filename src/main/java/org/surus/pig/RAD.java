@@ -1,58 +1,182 @@
 package org.surus.pig;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.pig.Accumulator;
 import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
-import org.surus.math.AugmentedDickeyFuller;
-import org.surus.math.RPCA;
+import org.surus.math.DecompositionCache;
+import org.surus.math.MovingAverageAnomalyDetector;
+import org.surus.math.RobustAnomalyDetector;
+import org.surus.math.RobustAnomalyDetector.Decomposition;
 
-public class RAD extends EvalFunc<DataBag> {
+/**
+ * Robust anomaly detection over a bag of tuples ordered in time.
+ *
+ * Parameters: metric column(s), nCols, nRows, [isForceDiff], [option=value ...]
+ *
+ * The first parameter may be a comma separated list of metric columns, in which
+ * case every metric is decomposed in the same call and the output tuple carries
+ * {metric}_x_transform, {metric}_rsvd_l, {metric}_rsvd_s and {metric}_rsvd_e for
+ * each of them. With a single metric the columns keep their unprefixed names.
+ *
+ * Options:
+ *     threads=N      decompose up to N metrics in parallel (default 1)
+ *     output=all     every input tuple followed by x_transform, rsvd_l, rsvd_s, rsvd_e (default)
+ *     output=anomalies
+ *                    only the cells with |rsvd_s| > threshold, as the input tuple followed by
+ *                    metric, x_transform, rsvd_l, rsvd_s, rsvd_e
+ *     output=summary one tuple per metric: metric, anomalies, max_abs_s, total_abs_s
+ *     threshold=T    sparse component threshold for the anomalies and summary outputs (default 0)
+ *     cache=N        keep up to N decompositions in memory, keyed by a hash of the values and
+ *                    parameters, so repeated series are not solved again (default 0, off)
+ *     cacheDir=path  also keep decompositions as files under path; path#link ships the directory
+ *                    to every task through the distributed cache and reads it from ./link
+ *     method=rpca    robust PCA (default)
+ *     method=ma      per-season mean +/- 1.6 sd over all but the last season, as in the R
+ *                    package's AnomalyDetection.ma; rsvd_l is the season mean, rsvd_s the
+ *                    distance beyond the band and rsvd_e the remainder
+ *     method=auto    rpca, falling back to ma for metrics whose expected rpca time exceeds budgetMs
+ *     maxCells=N     largest nRows * nCols method=auto solves with rpca (default unlimited); as every
+ *                    group has exactly nRows * nCols cells, a larger product makes the whole call ma
+ *     budgetMs=T     per-metric time budget in milliseconds for method=auto (default unlimited); the
+ *                    expected time is a moving average of recent rpca solves, which while over
+ *                    budget is kept current by still solving every PROBE_INTERVAL-th metric with rpca
+ */
+public class RAD extends EvalFunc<DataBag> implements Accumulator<DataBag> {
 
-	private final double LPENALTY_DEFAULT_NO_DIFF = 1;
-	private final double SPENALTY_DEFAULT_NO_DIFF = 1.4;
-	private final double LPENALTY_DEFAULT_DIFF = 1;
-	private final double SPENALTY_DEFAULT_DIFF = 1.4;
-	
-	private final String  colName;
+	private final String[] colNames;
 	private final Integer nRows;
 	private final Integer nCols;
-	private Double  lpenalty;
-	private Double  spenalty;
 	private Boolean isForceDiff;
-	
+	private int     numThreads = 1;
+	private OutputMode outputMode = OutputMode.ALL;
+	private double  threshold = 0;
+	private int     cacheSize = 0;
+	private String  cacheDir;
+	private Method  method = Method.RPCA;
+	private long    maxCells = Long.MAX_VALUE;
+	private long    budgetNanos = 0;
+
 	private Schema dataBagSchema;
-	private final Integer minRecords;
-	
-	private final Double eps = 1e-12;
+	private final RobustAnomalyDetector detector;
+	private MovingAverageAnomalyDetector maDetector;
+
+	private enum OutputMode { ALL, ANOMALIES, SUMMARY }
+	private enum Method { RPCA, MA, AUTO }
+
+	private static final TupleFactory tupleFactory = TupleFactory.getInstance();
+	private static final BagFactory   bagFactory   = BagFactory.getInstance();
+
+	// Resolved on first use
+	private int[]  colPositions;
+	private byte[] colTypes;
+	private ExecutorService executor;
+
+	// Observed robust PCA cost for method=auto: a moving average of nanoseconds per cell, weighting
+	// each solve by COST_WEIGHT, so early slow solves (e.g. before the JIT warms up) wear off
+	static final int    PROBE_INTERVAL = 16;
+	static final double COST_WEIGHT = 0.25;
+	private final Object costLock = new Object();
+	private double rpcaNanosPerCell = -1;
+	private long   overBudget = 0;
+
+	// Published as Hadoop counters in the RAD group, with latency histograms in the task log;
+	// skipped_metrics counts metrics, over all groups, with too few non-zero values to decompose
+	enum Counter { GROUPS, ROWS, SKIPPED_METRICS, RPCA_DECOMPOSITIONS, RPCA_ITERATIONS, MA_DECOMPOSITIONS,
+		CACHE_HITS, CACHE_DISK_HITS, CACHE_MISSES }
+	enum Phase { ACCUMULATE, DECOMPOSE, OUTPUT }
+	final UDFMetrics<Counter, Phase> metrics = new UDFMetrics<Counter, Phase>("RAD", Counter.class, Phase.class);
+
+	// Accumulated state for the current group
+	private List<Tuple> tupleList;
+	private double[][] values;
+	private int numRecords = 0;
 
 	// Constructor
 	public RAD(String... parameters) {
 
-		this.colName  = parameters[0];
+		if (parameters.length < 3) {
+			throw new RuntimeException("Invalid parameters list");
+		}
+
+		this.colNames = parameters[0].split(",");
+		for (int m = 0; m < this.colNames.length; m++) {
+			this.colNames[m] = this.colNames[m].trim();
+		}
 		this.nCols    = Integer.parseInt(parameters[1]);
 		this.nRows    = Integer.parseInt(parameters[2]);
-		
-		if (parameters.length == 4) {
-			this.isForceDiff = Boolean.parseBoolean(parameters[3]);
-		} else if (parameters.length != 3) {
-			throw new RuntimeException("Invalid parameters list");
+
+		for (int p = 3; p < parameters.length; p++) {
+			int split = parameters[p].indexOf('=');
+			if (split < 0) {
+				if (p != 3) {
+					throw new RuntimeException("Invalid parameters list");
+				}
+				this.isForceDiff = Boolean.parseBoolean(parameters[p]);
+			} else {
+				setOption(parameters[p].substring(0, split).trim(), parameters[p].substring(split + 1).trim());
+			}
 		}
-		
+
 		// set other parameters
-		this.minRecords = 2 * this.nRows;
+		this.detector = new RobustAnomalyDetector(this.nRows, this.nCols, this.isForceDiff);
+		if (this.cacheSize > 0 || this.cacheDir != null) {
+			int split = (this.cacheDir == null) ? -1 : this.cacheDir.indexOf('#');
+			File directory = (this.cacheDir == null) ? null : new File(this.cacheDir.substring(split + 1));
+			this.detector.setCache(new DecompositionCache(this.cacheSize, directory));
+		}
+		// Groups all have nRows * nCols cells, so maxCells settles method=auto for every group at once
+		if (this.method == Method.AUTO && (long) this.nRows * this.nCols > this.maxCells) {
+			this.method = Method.MA;
+		}
+		if (this.method != Method.RPCA) {
+			this.maDetector = new MovingAverageAnomalyDetector(this.nRows, this.nCols);
+		}
+
+	}
 
+	private void setOption(String key, String value) {
+		if (key.equalsIgnoreCase("threads")) {
+			this.numThreads = Integer.parseInt(value);
+		} else if (key.equalsIgnoreCase("output")) {
+			this.outputMode = OutputMode.valueOf(value.toUpperCase());
+		} else if (key.equalsIgnoreCase("threshold")) {
+			this.threshold = Double.parseDouble(value);
+		} else if (key.equalsIgnoreCase("cache")) {
+			this.cacheSize = Integer.parseInt(value);
+		} else if (key.equalsIgnoreCase("cacheDir")) {
+			this.cacheDir = value;
+		} else if (key.equalsIgnoreCase("method")) {
+			this.method = Method.valueOf(value.toUpperCase());
+		} else if (key.equalsIgnoreCase("maxCells")) {
+			this.maxCells = Long.parseLong(value);
+		} else if (key.equalsIgnoreCase("budgetMs")) {
+			this.budgetNanos = (long) (Double.parseDouble(value) * 1e6);
+		} else {
+			throw new RuntimeException("Unknown option: "+key);
+		}
 	}
-	
+
 	// Define Output Schema
     @Override
     public Schema outputSchema(Schema input) {
@@ -61,7 +185,7 @@ public class RAD extends EvalFunc<DataBag> {
             if (input.size() != 1) {
                 throw new RuntimeException("Expected input to have only a single field");
             }
-            
+
             // Grab Bag Schema
             Schema.FieldSchema inputFieldSchema = input.getField(0);
             if (inputFieldSchema.type != DataType.BAG) {
@@ -77,202 +201,396 @@ public class RAD extends EvalFunc<DataBag> {
 
             // Define Input Tuple Schema
             this.dataBagSchema = inputBagSchema.getField(0).schema;
-            
-            this.dataBagSchema.prettyPrint();
-            
+
         	// Create List of Tuple Values
         	List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
-        	fieldSchemas.addAll(dataBagSchema.getFields());
-            fieldSchemas.add(new Schema.FieldSchema("x_transform", DataType.DOUBLE));
-            fieldSchemas.add(new Schema.FieldSchema("rsvd_l", DataType.DOUBLE));
-            fieldSchemas.add(new Schema.FieldSchema("rsvd_s", DataType.DOUBLE));
-            fieldSchemas.add(new Schema.FieldSchema("rsvd_e", DataType.DOUBLE));
+        	if (this.outputMode == OutputMode.SUMMARY) {
+        		fieldSchemas.add(new Schema.FieldSchema("metric", DataType.CHARARRAY));
+        		fieldSchemas.add(new Schema.FieldSchema("anomalies", DataType.LONG));
+        		fieldSchemas.add(new Schema.FieldSchema("max_abs_s", DataType.DOUBLE));
+        		fieldSchemas.add(new Schema.FieldSchema("total_abs_s", DataType.DOUBLE));
+        	} else if (this.outputMode == OutputMode.ANOMALIES) {
+        		fieldSchemas.addAll(dataBagSchema.getFields());
+        		fieldSchemas.add(new Schema.FieldSchema("metric", DataType.CHARARRAY));
+        		fieldSchemas.add(new Schema.FieldSchema("x_transform", DataType.DOUBLE));
+        		fieldSchemas.add(new Schema.FieldSchema("rsvd_l", DataType.DOUBLE));
+        		fieldSchemas.add(new Schema.FieldSchema("rsvd_s", DataType.DOUBLE));
+        		fieldSchemas.add(new Schema.FieldSchema("rsvd_e", DataType.DOUBLE));
+        	} else {
+        		fieldSchemas.addAll(dataBagSchema.getFields());
+        		for (String colName : this.colNames) {
+        			String prefix = (this.colNames.length == 1) ? "" : colName + "_";
+        			fieldSchemas.add(new Schema.FieldSchema(prefix + "x_transform", DataType.DOUBLE));
+        			fieldSchemas.add(new Schema.FieldSchema(prefix + "rsvd_l", DataType.DOUBLE));
+        			fieldSchemas.add(new Schema.FieldSchema(prefix + "rsvd_s", DataType.DOUBLE));
+        			fieldSchemas.add(new Schema.FieldSchema(prefix + "rsvd_e", DataType.DOUBLE));
+        		}
+        	}
 
             // Build Tuple and Wrap in DataBag
             FieldSchema tupleFieldSchema = new FieldSchema(null, new Schema(fieldSchemas), DataType.TUPLE);
             FieldSchema bagFieldSchema   = new FieldSchema(this.getClass().getName().toLowerCase().replace(".", "_"), new Schema(tupleFieldSchema), DataType.BAG);
-            
+
             // Return Schema
             Schema outputSchema = new Schema(bagFieldSchema);
             return outputSchema;
-            
+
         } catch (Throwable t) {
             throw new RuntimeException(t);
         }
 
     }
-	
+
     // Helper Function
     public double[][] VectorToMatrix(double[] x, int rows, int cols) {
-        double[][] input2DArray = new double[rows][cols];
-        for (int n= 0; n< x.length; n++) {
-        	int i = n % rows;
-        	int j = (int) Math.floor(n / rows);
-        	input2DArray[i][j] = x[n];
-        }
-        return input2DArray;
+        return RobustAnomalyDetector.vectorToMatrix(x, rows, cols);
     }
 
-    // Define Exec
+    // Resolve the metric columns once per task
+    private void resolveColumns() {
+
+		try {
+			// Hack to get the InputSchema on the backend
+			if (this.dataBagSchema == null) {
+				this.dataBagSchema = getInputSchema().getField(0).schema.getField(0).schema;
+			}
+
+			int[]  colPositions = new int[this.colNames.length];
+			byte[] colTypes     = new byte[this.colNames.length];
+			for (int m = 0; m < this.colNames.length; m++) {
+				String colName = this.colNames[m];
+				if (this.dataBagSchema.getField(colName) == null) {
+					throw new RuntimeException("ERROR: "+colName+" is not in the input dataset!");
+				}
+
+				// Check DataTypes
+				byte colType = this.dataBagSchema.getField(colName).type;
+		        if (!(
+		        		(colType == DataType.LONG   ) ||
+		        		(colType == DataType.INTEGER) ||
+		        		(colType == DataType.DOUBLE ) ||
+		        		(colType == DataType.FLOAT  )
+		        	)) {
+		        	throw new RuntimeException(String.format("Data type of %s (%s) is not supported,",colName,
+		                    DataType.findTypeName(colType)));
+		        }
+				colTypes[m] = colType;
+				colPositions[m] = this.dataBagSchema.getPosition(colName);
+			}
+			this.colTypes = colTypes;
+			this.colPositions = colPositions;
+		} catch (FrontendException e) {
+			throw new RuntimeException(e);
+		}
+    }
+
+    // Read a single metric value using the resolved position and type; nulls read as zero
+    private double extractValue(Tuple tuple, int m) throws ExecException {
+    	Object value = tuple.get(this.colPositions[m]);
+    	if (value == null) {
+    		return 0;
+    	}
+    	switch (this.colTypes[m]) {
+    		case DataType.DOUBLE : return (Double)  value;
+    		case DataType.FLOAT  : return (Float)   value;
+    		case DataType.LONG   : return (Long)    value;
+    		case DataType.INTEGER: return (Integer) value;
+    		default: throw new RuntimeException(String.format("Data type of %s (%s) is not supported,",this.colNames[m],
+                    DataType.findTypeName(this.colTypes[m])));
+    	}
+    }
+
+    // Consume a chunk of the input bag
 	@Override
-	public DataBag exec(Tuple input) throws IOException {
-		
-		// Hack to get the InputSchema on the backend
-		if (this.dataBagSchema == null) {
-			this.dataBagSchema = getInputSchema().getField(0).schema.getField(0).schema;
-		}
-
-		// Check DataTypes
-        if (!(
-        		(this.dataBagSchema.getField(this.colName).type == DataType.LONG   ) ||
-        		(this.dataBagSchema.getField(this.colName).type == DataType.INTEGER) ||
-        		(this.dataBagSchema.getField(this.colName).type == DataType.DOUBLE ) ||
-        		(this.dataBagSchema.getField(this.colName).type == DataType.FLOAT  )
-        	)) {
-        	throw new RuntimeException(String.format("Data type of %s (%s) is not supported,",this.colName,
-                    DataType.findTypeName(this.dataBagSchema.getField(this.colName).type)));
-        }
-		
+	public void accumulate(Tuple input) throws IOException {
+
+		long start = System.nanoTime();
+		int numRecords = this.numRecords;
+		if (this.colPositions == null) {
+			resolveColumns();
+		}
+		if (this.values == null) {
+			this.values = new double[this.colNames.length][this.nRows*this.nCols];
+			this.tupleList = new ArrayList<Tuple>(this.nRows*this.nCols);
+		}
+
 		// Hardcode getting the bag
 		DataBag inputBag = (DataBag) input.get(0);
-		
-		// Create TupleFactory for Output Bag Generation
-		TupleFactory tupleFactory = TupleFactory.getInstance();
-		BagFactory   bagFactory   = BagFactory.getInstance();
-
-		// Read Data into Memory
-		List<Tuple> tupleList = new ArrayList<Tuple>();
 		Iterator<Tuple> bagIter = inputBag.iterator();
 		while (bagIter.hasNext()) {
 			Tuple tuple = bagIter.next();
-			tupleList.add(tuple);
-		}
-		
-		if (tupleList.size() != this.nRows*this.nCols) {
-        	throw new RuntimeException("ERROR: this.nRows * this.nCols != tupleList.size()");
-		}
-		
-		// Perform Dickey-Fuller Test
-		double[] inputArray = new double[this.nRows*this.nCols];
-		Integer numNonZeroRecords = 0;
-		for (int n=0; n< inputArray.length; n++) {
-			if (this.dataBagSchema.getField(this.colName).type == DataType.DOUBLE) {
-				inputArray[n] = (Double) tupleList.get(n).get(this.dataBagSchema.getPosition(this.colName));
-			} else if (this.dataBagSchema.getField(this.colName).type == DataType.FLOAT) {
-				inputArray[n] = (Float) tupleList.get(n).get(this.dataBagSchema.getPosition(this.colName));
-			} else if (this.dataBagSchema.getField(this.colName).type == DataType.LONG ) {
-				inputArray[n] = (Long) tupleList.get(n).get(this.dataBagSchema.getPosition(this.colName));
-			} else if (this.dataBagSchema.getField(this.colName).type == DataType.INTEGER ) {
-				inputArray[n] = (Integer) tupleList.get(n).get(this.dataBagSchema.getPosition(this.colName));
-			} else {
-	        	throw new RuntimeException(String.format("Data type of %s (%s) is not supported,",this.colName,
-	                    DataType.findTypeName(this.dataBagSchema.getField(this.colName).type)));
-			}
-			
-			if (Math.abs(inputArray[n]) > eps) numNonZeroRecords++;
-		}
-		
-		if (numNonZeroRecords>=this.minRecords) {
-			AugmentedDickeyFuller dickeyFullerTest = new AugmentedDickeyFuller(inputArray);
-			double[] inputArrayTransformed = inputArray;
-			if (this.isForceDiff == null && dickeyFullerTest.isNeedsDiff()) {
-				// Auto Diff
-				inputArrayTransformed = dickeyFullerTest.getZeroPaddedDiff();
-			} else if (this.isForceDiff) {
-				// Force Diff
-				inputArrayTransformed = dickeyFullerTest.getZeroPaddedDiff();
+			if (this.numRecords == this.values[0].length) {
+				for (int m = 0; m < this.values.length; m++) {
+					this.values[m] = Arrays.copyOf(this.values[m], 2 * this.values[m].length + 1);
+				}
 			}
-			
-			if (this.spenalty == null) {
-				this.lpenalty = this.LPENALTY_DEFAULT_NO_DIFF;
-				this.spenalty = this.SPENALTY_DEFAULT_NO_DIFF / Math.sqrt(Math.max(this.nCols, this.nRows));
+			for (int m = 0; m < this.values.length; m++) {
+				this.values[m][this.numRecords] = extractValue(tuple, m);
 			}
+			this.numRecords++;
 
-			
-			// Calc Mean
-			double mean  = 0;
-			for (int n=0; n < inputArrayTransformed.length; n++) {
-				mean += inputArrayTransformed[n];
+			// The summary never refers back to the input tuples
+			if (this.outputMode != OutputMode.SUMMARY) {
+				this.tupleList.add(tuple);
 			}
-			mean /= inputArrayTransformed.length;
+		}
+		this.metrics.increment(Counter.ROWS, this.numRecords - numRecords);
+		this.metrics.record(Phase.ACCUMULATE, start);
+	}
+
+	@Override
+	public void cleanup() {
+		this.values = null;
+		this.tupleList = null;
+		this.numRecords = 0;
+	}
+
+	@Override
+	public List<String> getCacheFiles() {
+		if (this.cacheDir == null || this.cacheDir.indexOf('#') < 0) {
+			return null;
+		}
+		List<String> list = new ArrayList<String>(1);
+		list.add(this.cacheDir);
+		return list;
+	}
 
-			// Calc STDEV
-			double stdev = 0;
-			for (int n=0; n < inputArrayTransformed.length; n++) {
-				stdev += Math.pow(inputArrayTransformed[n] - mean,2) ;
+	@Override
+	public void finish() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+		DecompositionCache cache = this.detector.getCache();
+		if (cache != null) {
+			this.metrics.increment(Counter.CACHE_HITS, cache.getHits());
+			this.metrics.increment(Counter.CACHE_DISK_HITS, cache.getDiskHits());
+			this.metrics.increment(Counter.CACHE_MISSES, cache.getMisses());
+		}
+		this.metrics.close();
+	}
+
+    // Define Exec
+	@Override
+	public DataBag exec(Tuple input) throws IOException {
+		try {
+			accumulate(input);
+			return getValue();
+		} finally {
+			cleanup();
+		}
+	}
+
+	@Override
+	public DataBag getValue() {
+		try {
+			return decompose();
+		} catch (ExecException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Decompose the accumulated group and wrap the results in a lazy output bag
+	private DataBag decompose() throws ExecException {
+
+		if (this.numRecords != this.nRows*this.nCols) {
+        	throw new RuntimeException("ERROR: this.nRows * this.nCols != tupleList.size()");
+		}
+
+		Decomposition[] decompositions = decomposeMetrics();
+		this.metrics.increment(Counter.GROUPS, 1);
+		for (Decomposition decomposition : decompositions) {
+			if (decomposition == null) {
+				this.metrics.increment(Counter.SKIPPED_METRICS, 1);
 			}
-			stdev = Math.sqrt(stdev / (inputArrayTransformed.length - 1));
-			
-			// Transformation: Zero Mean, Unit Variance
-			for (int n=0; n < inputArrayTransformed.length; n++) {
-				inputArrayTransformed[n] = (inputArrayTransformed[n]-mean)/stdev;
+		}
+
+		long start = System.nanoTime();
+		DataBag outputBag = outputBag(decompositions);
+		this.metrics.flushIfDue(this.metrics.record(Phase.OUTPUT, start));
+		return outputBag;
+
+	}
+
+	private DataBag outputBag(Decomposition[] decompositions) throws ExecException {
+
+		if (this.outputMode == OutputMode.ANOMALIES) {
+			return anomalyBag(decompositions);
+		} else if (this.outputMode == OutputMode.SUMMARY) {
+			return summaryBag(decompositions);
+		}
+
+		// Groups with too few non-zero records are passed through with null L,S,E
+		double[][] columns = new double[4 * decompositions.length][];
+		int columnIndex = 0;
+		for (Decomposition decomposition : decompositions) {
+			if (decomposition != null) {
+				columns[columnIndex++] = decomposition.getTransformed();
+				columns[columnIndex++] = decomposition.getL();
+				columns[columnIndex++] = decomposition.getS();
+				columns[columnIndex++] = decomposition.getE();
+			} else {
+				columnIndex += 4;
 			}
+		}
 
-			// Read Input Data into Array
-			// Read Input Data into Array
-			double[][] input2DArray = new double[this.nRows][this.nCols];
-			input2DArray = VectorToMatrix(inputArrayTransformed, this.nRows, this.nCols);
-			
-			RPCA rSVD = new RPCA(input2DArray, this.lpenalty, this.spenalty);
-			
-			double[][] outputE = rSVD.getE().getData();
-			double[][] outputS = rSVD.getS().getData();
-			double[][] outputL = rSVD.getL().getData();
+		return new RADOutputBag(this.tupleList, this.numRecords, columns);
 
-			// Loop through bag and build output
-			DataBag outputBag = bagFactory.newDefaultBag();
-			for (int n=0; n< inputArray.length; n++) {
+	}
 
-	        	int i = n % this.nRows;
-	        	int j = (int) Math.floor(n / this.nRows);
+	// Only the cells whose sparse component exceeds the threshold
+	private DataBag anomalyBag(Decomposition[] decompositions) throws ExecException {
+		DataBag outputBag = bagFactory.newDefaultBag();
+		for (int n = 0; n < this.numRecords; n++) {
+			for (int m = 0; m < decompositions.length; m++) {
+				Decomposition decomposition = decompositions[m];
+				if (decomposition == null || !(Math.abs(decomposition.getS()[n]) > this.threshold)) {
+					continue;
+				}
 
 				// Add all previous tuple values
-				Tuple oldTuple = tupleList.get(n);
-				Tuple newTuple = tupleFactory.newTuple(oldTuple.size() + 4);
+				Tuple oldTuple = this.tupleList.get(n);
+				Tuple newTuple = tupleFactory.newTuple(oldTuple.size() + 5);
 				int tupleIndex = 0;
 				for (int k = 0; k < oldTuple.size(); k++) {
 					newTuple.set(tupleIndex++, oldTuple.get(k));
 				}
-				
-				// TODO: Add additional L,S,E matrices
-				newTuple.set(tupleIndex++, inputArrayTransformed[n]);
-				newTuple.set(tupleIndex++, outputL[i][j] * stdev + mean);
-				newTuple.set(tupleIndex++, outputS[i][j] * stdev);
-				newTuple.set(tupleIndex++, outputE[i][j] * stdev);
-
-				// Add Tuple to DataBag
+				newTuple.set(tupleIndex++, this.colNames[m]);
+				newTuple.set(tupleIndex++, decomposition.getTransformed()[n]);
+				newTuple.set(tupleIndex++, decomposition.getL()[n]);
+				newTuple.set(tupleIndex++, decomposition.getS()[n]);
+				newTuple.set(tupleIndex++, decomposition.getE()[n]);
 				outputBag.add(newTuple);
+			}
+		}
+		return outputBag;
+	}
 
+	// One (metric, anomalies, max_abs_s, total_abs_s) tuple per metric; nulls if the metric was skipped
+	private DataBag summaryBag(Decomposition[] decompositions) throws ExecException {
+		DataBag outputBag = bagFactory.newDefaultBag();
+		for (int m = 0; m < decompositions.length; m++) {
+			Tuple newTuple = tupleFactory.newTuple(4);
+			newTuple.set(0, this.colNames[m]);
+			Decomposition decomposition = decompositions[m];
+			if (decomposition != null) {
+				long anomalies = 0;
+				double maxAbsS = 0;
+				double totalAbsS = 0;
+				double[] S = decomposition.getS();
+				for (int n = 0; n < this.numRecords; n++) {
+					double absS = Math.abs(S[n]);
+					if (absS > this.threshold) {
+						anomalies++;
+						maxAbsS = Math.max(maxAbsS, absS);
+						totalAbsS += absS;
+					}
+				}
+				newTuple.set(1, anomalies);
+				newTuple.set(2, maxAbsS);
+				newTuple.set(3, totalAbsS);
 			}
-			// Return Tuple
-			return outputBag;
-			
-		} else {
-			
-			// Loop through bag and build output
-			DataBag outputBag = bagFactory.newDefaultBag();
-			for (int n=0; n< inputArray.length; n++) {
+			outputBag.add(newTuple);
+		}
+		return outputBag;
+	}
 
-	        	int i = n % this.nRows;
-	        	int j = (int) Math.floor(n / this.nRows);
+	// Decompose every metric, in parallel when more than one thread is configured
+	private Decomposition[] decomposeMetrics() {
 
-				// Add all previous tuple values
-				Tuple oldTuple = tupleList.get(n);
-				Tuple newTuple = tupleFactory.newTuple(oldTuple.size() + 4);
-				int tupleIndex = 0;
-				for (int k = 0; k < oldTuple.size(); k++) {
-					newTuple.set(tupleIndex++, oldTuple.get(k));
+		final int numMetrics = this.colNames.length;
+		Decomposition[] decompositions = new Decomposition[numMetrics];
+		if (this.numThreads <= 1 || numMetrics == 1) {
+			for (int m = 0; m < numMetrics; m++) {
+				decompositions[m] = decomposeMetric(this.values[m]);
+			}
+			return decompositions;
+		}
+
+		if (this.executor == null) {
+			this.executor = Executors.newFixedThreadPool(this.numThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "surus-rad");
+					thread.setDaemon(true);
+					return thread;
 				}
+			});
+		}
 
-				// Add Tuple to DataBag
-				outputBag.add(newTuple);
+		List<Future<Decomposition>> futures = new ArrayList<Future<Decomposition>>(numMetrics);
+		for (int m = 0; m < numMetrics; m++) {
+			final double[] metricValues = this.values[m];
+			futures.add(this.executor.submit(new Callable<Decomposition>() {
+				public Decomposition call() {
+					return decomposeMetric(metricValues);
+				}
+			}));
+		}
+		try {
+			for (int m = 0; m < numMetrics; m++) {
+				decompositions[m] = futures.get(m).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return decompositions;
+	}
+
+	private Decomposition decomposeMetric(double[] metricValues) {
+		long start = System.nanoTime();
+		if (useMovingAverage(metricValues.length)) {
+			Decomposition decomposition = this.maDetector.decompose(metricValues);
+			this.metrics.record(Phase.DECOMPOSE, start);
+			this.metrics.increment(Counter.MA_DECOMPOSITIONS, 1);
+			return decomposition;
+		}
+		Decomposition decomposition = this.detector.decompose(metricValues);
+		long nanos = this.metrics.record(Phase.DECOMPOSE, start) - start;
+		// Cache hits and skipped metrics took no solve, so they neither count nor cost
+		if (decomposition != null && decomposition.getIterations() > 0) {
+			recordRpcaCost(nanos, metricValues.length);
+			this.metrics.increment(Counter.RPCA_DECOMPOSITIONS, 1);
+			this.metrics.increment(Counter.RPCA_ITERATIONS, decomposition.getIterations());
+		}
+		return decomposition;
+	}
 
+	// Whether to decompose a metric of cells values with the moving average rather than robust PCA
+	boolean useMovingAverage(long cells) {
+		if (this.method != Method.AUTO) {
+			return this.method == Method.MA;
+		}
+		if (this.budgetNanos <= 0) {
+			return false;
+		}
+		synchronized (this.costLock) {
+			if (this.rpcaNanosPerCell < 0 || this.rpcaNanosPerCell * cells <= this.budgetNanos) {
+				this.overBudget = 0;
+				return false;
 			}
-			// Return Tuple
-			return outputBag;
+			// Over budget: probe with robust PCA now and then, in case it got faster
+			return ++this.overBudget % PROBE_INTERVAL != 0;
+		}
+	}
 
+	double getRpcaNanosPerCell() {
+		synchronized (this.costLock) {
+			return this.rpcaNanosPerCell;
 		}
+	}
 
+	void recordRpcaCost(long nanos, long cells) {
+		double nanosPerCell = (double) nanos / Math.max(cells, 1);
+		synchronized (this.costLock) {
+			if (this.rpcaNanosPerCell < 0) {
+				this.rpcaNanosPerCell = nanosPerCell;
+			} else {
+				this.rpcaNanosPerCell += COST_WEIGHT * (nanosPerCell - this.rpcaNanosPerCell);
+			}
+		}
 	}
-	
+
 }
@@ -0,0 +1,230 @@
+package org.surus.pig;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+/**
+ * Read-only bag of RAD results. Holds references to the original input tuples
+ * and the primitive output columns, and only builds each output tuple
+ * (original fields followed by the output columns) while it is being iterated.
+ * Nothing is copied up front and nothing needs to be spilled, so the memory
+ * held per group is the input tuples plus a few double arrays.
+ */
+final class RADOutputBag implements DataBag {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final TupleFactory tf = TupleFactory.getInstance();
+
+	// Number of tuples sampled when estimating memory, as in DefaultAbstractBag
+	private static final int MEMORY_SAMPLE_SIZE = 100;
+
+	private List<Tuple> tupleList;
+	private int numRecords;
+	private double[][] columns;		// null entries are emitted as null fields
+	private long memorySize = -1;
+
+	RADOutputBag(List<Tuple> tupleList, int numRecords, double[][] columns) {
+		this.tupleList  = tupleList;
+		this.numRecords = numRecords;
+		this.columns    = columns;
+	}
+
+	@Override
+	public long size() {
+		return numRecords;
+	}
+
+	@Override
+	public Iterator<Tuple> iterator() {
+		return new Iterator<Tuple>() {
+			private int n = 0;
+
+			@Override
+			public boolean hasNext() {
+				return n < numRecords;
+			}
+
+			@Override
+			public Tuple next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				try {
+					return buildTuple(n++);
+				} catch (ExecException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("RADOutputBag is read-only");
+			}
+		};
+	}
+
+	private Tuple buildTuple(int n) throws ExecException {
+		Tuple oldTuple = tupleList.get(n);
+		Tuple newTuple = tf.newTuple(oldTuple.size() + columns.length);
+		int tupleIndex = 0;
+		for (int k = 0; k < oldTuple.size(); k++) {
+			newTuple.set(tupleIndex++, oldTuple.get(k));
+		}
+		for (int c = 0; c < columns.length; c++) {
+			if (columns[c] != null) {
+				newTuple.set(tupleIndex, columns[c][n]);
+			}
+			tupleIndex++;
+		}
+		return newTuple;
+	}
+
+	@Override
+	public long getMemorySize() {
+		if (memorySize >= 0) {
+			return memorySize;
+		}
+
+		// Bag, list and column array headers
+		long size = 32 + 24 + roundToEight(16 + 8L * numRecords) + roundToEight(16 + 8L * columns.length);
+
+		// Primitive output columns
+		for (double[] column : columns) {
+			if (column != null) {
+				size += roundToEight(16 + 8L * column.length);
+			}
+		}
+
+		// Referenced input tuples, estimated from a sample
+		int sampleSize = Math.min(numRecords, MEMORY_SAMPLE_SIZE);
+		if (sampleSize > 0) {
+			long sampled = 0;
+			for (int n = 0; n < sampleSize; n++) {
+				sampled += tupleList.get(n).getMemorySize();
+			}
+			size += sampled * numRecords / sampleSize;
+		}
+
+		memorySize = size;
+		return memorySize;
+	}
+
+	private static long roundToEight(long size) {
+		return 8 * ((size + 7) / 8);
+	}
+
+	// Nothing to spill: the contents are already as compact as they get
+	@Override
+	public long spill() {
+		return 0;
+	}
+
+	@Override
+	public boolean isSorted() {
+		return false;
+	}
+
+	@Override
+	public boolean isDistinct() {
+		return false;
+	}
+
+	@Override
+	public void add(Tuple t) {
+		throw new UnsupportedOperationException("RADOutputBag is read-only");
+	}
+
+	@Override
+	public void addAll(DataBag b) {
+		throw new UnsupportedOperationException("RADOutputBag is read-only");
+	}
+
+	@Override
+	public void clear() {
+		tupleList  = null;
+		columns    = new double[0][];
+		numRecords = 0;
+		memorySize = -1;
+	}
+
+	@Override
+	public void markStale(boolean stale) {
+	}
+
+	// Same layout as DefaultAbstractBag.write
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(size());
+		Iterator<Tuple> it = iterator();
+		while (it.hasNext()) {
+			it.next().write(out);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		throw new UnsupportedOperationException("RADOutputBag is read-only");
+	}
+
+	@Override
+	public int compareTo(Object other) {
+		if (this == other) {
+			return 0;
+		}
+		if (!(other instanceof DataBag)) {
+			return -1;
+		}
+		DataBag bag = (DataBag) other;
+		if (size() != bag.size()) {
+			return (size() < bag.size()) ? -1 : 1;
+		}
+		Iterator<Tuple> thisIt  = iterator();
+		Iterator<Tuple> otherIt = bag.iterator();
+		while (thisIt.hasNext() && otherIt.hasNext()) {
+			int c = DataType.compare(thisIt.next(), otherIt.next());
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return (other instanceof DataBag) && compareTo(other) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 1;
+		Iterator<Tuple> it = iterator();
+		while (it.hasNext()) {
+			hash = 31 * hash + it.next().hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		Iterator<Tuple> it = iterator();
+		while (it.hasNext()) {
+			sb.append(it.next().toString());
+			if (it.hasNext()) {
+				sb.append(",");
+			}
+		}
+		return sb.append("}").toString();
+	}
+}
@@ -3,18 +3,18 @@ package org.surus.pig;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.bind.JAXBException;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.pig.EvalFunc;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
@@ -24,29 +24,55 @@ import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 import org.apache.pig.impl.util.UDFContext;
 import org.dmg.pmml.DataField;
 import org.dmg.pmml.FieldName;
-import org.dmg.pmml.IOUtil;
 import org.dmg.pmml.OutputField;
-import org.dmg.pmml.PMML;
 import org.jpmml.evaluator.Evaluator;
-import org.jpmml.evaluator.EvaluatorUtil;
-import org.jpmml.evaluator.FieldValue;
-import org.jpmml.evaluator.ModelEvaluatorFactory;
-import org.jpmml.manager.ModelManager;
-import org.jpmml.manager.PMMLManager;
+import org.surus.pmml.PMMLModel;
+import org.surus.pmml.PMMLScorer;
 import org.xml.sax.SAXException;
 
+/*
+ * Scores each row with one PMML model, or with several given as a comma separated list of
+ * paths (e.g. a champion and its challengers). With several models, the union of their active
+ * fields is bound once per row, and each model's fields are aliased with a prefix named after
+ * its file, e.g. single_iris_mlp_predictedField_class.
+ *
+ * A cache capacity above zero memoizes the results of the most recently scored distinct rows,
+ * keyed by the bound active-field values, so repeated feature vectors (e.g. combinations of
+ * low-cardinality categorical fields) skip evaluation. Hits and misses are counted.
+ *
+ * A comma separated list of output aliases, e.g. predictedField_class, keeps only those fields,
+ * in model order; the others are left out of the schema and never decoded. An empty list keeps
+ * every field.
+ *
+ * Params: model path(s), [failOnTypeMatching], [cacheCapacity], [fields to keep]
+ */
 public class ScorePMML extends EvalFunc<Tuple> {
 
-	private Evaluator 		evaluator		= null;
-	private List<FieldName> activeFields	= null;
-	private List<FieldName> predictedFields	= null;
-	private List<FieldName> outputFields	= null;
-	private String 			modelPath		= null;
-	private String 			modelName		= null;
+	private String[]		modelPaths		= null;
+	private String[]		modelNames		= null;
+	private String[]		prefixes		= null;
 	private Schema 			inputTupleSchema = null;
 	private Map<String,Integer> aliasMap 	 = null;
 	private Boolean 		failOnTypeMatching = true;
-	Map<FieldName, FieldValue> preparedRow = new LinkedHashMap<FieldName, FieldValue>();
+	private int				cacheCapacity	= 0;
+	private Set<String>		keptAliases		= null;
+
+	// Scoring engines, one per model, shared with ScorePMMLBag, and this instance's sessions with them
+	private PMMLScorer[]	scorers			= null;
+	private Sessions		sessions		= null;
+	private Object[][]		bound			= null;
+	private Tuple[]			outputs			= null;
+
+	// Input binding, resolved once against the input schema: cells of the union of the active fields,
+	// and for each model the bound cell of each of its active fields
+	private int[]			inputPositions	= null;
+	private Converter[]		inputConverters	= null;
+	private int[][]			argumentSlots	= null;
+
+	// Published as Hadoop counters in the ScorePMML group, with latency histograms in the task log
+	enum Counter { ROWS, FAILED_ROWS, PREPARE_FAILURES, MODELS_LOADED, MODEL_LOAD_MS, CACHE_HITS, CACHE_MISSES }
+	enum Phase { LOAD, BIND, EVALUATE }
+	final UDFMetrics<Counter, Phase> metrics = new UDFMetrics<Counter, Phase>("ScorePMML", Counter.class, Phase.class);
 
 	
     private static final TupleFactory tf = TupleFactory.getInstance();
@@ -68,10 +94,23 @@ public class ScorePMML extends EvalFunc<Tuple> {
 		this(params[0]);
 
 		// Override default failure mode
-		if (params.length == 2) {
+		if (params.length >= 2) {
 			this.failOnTypeMatching = Boolean.parseBoolean(params[1]);
 		}
 
+		// Opt into memoizing the scores of up to this many distinct rows per session
+		if (params.length >= 3) {
+			this.cacheCapacity = Math.max(0, Integer.parseInt(params[2]));
+		}
+
+		// Keep only the listed output fields
+		if (params.length >= 4 && !params[3].trim().isEmpty()) {
+			this.keptAliases = new LinkedHashSet<String>();
+			for (String alias : params[3].split(",")) {
+				this.keptAliases.add(alias.trim().toLowerCase());
+			}
+		}
+
 	}	
 	
 	// Constructor
@@ -80,26 +119,68 @@ public class ScorePMML extends EvalFunc<Tuple> {
 		// Set Default failure mode
 		this.failOnTypeMatching = true;
 		
-		// Set Model Path
-		this.modelPath = modelPath;
-		System.err.println("modelPath: "+this.modelPath);
+		// Set Model Paths
+		this.modelPaths = modelPath.split(",");
+		this.modelNames = new String[this.modelPaths.length];
+		this.prefixes 	= new String[this.modelPaths.length];
+		for (int m = 0; m < this.modelPaths.length; m++) {
+			this.modelPaths[m] = this.modelPaths[m].trim();
+			System.err.println("modelPath: "+this.modelPaths[m]);
+
+			// Set Model Name, which prefixes the aliases of several models
+			this.modelNames[m] = PMMLScorer.modelName(this.modelPaths[m]);
+	       	System.err.println("modelName: "+this.modelNames[m]);
+
+			this.prefixes[m] = (this.modelPaths.length == 1) ? "" : prefix(this.modelNames[m], m);
+		}
 
-		// Set Distributed Cache
-    	int blah = this.modelPath.lastIndexOf("/") + 1;
-    	this.modelName = this.modelPath.substring(blah);
-       	System.err.println("modelName: "+this.modelName);
+	}
 
+	// Alias prefix of the m-th model: its file name without extension, made a valid alias and unique
+	private String prefix(String modelName, int m) {
+		int extension = modelName.lastIndexOf('.');
+		String prefix = ((extension > 0) ? modelName.substring(0, extension) : modelName).toLowerCase().replaceAll("[^a-z0-9_]", "_");
+		if (!Character.isLetter(prefix.charAt(0))) {
+			prefix = "m" + prefix;
+		}
+		for (int i = 0; i < m; i++) {
+			if (this.prefixes[i].equals(prefix + "_")) {
+				prefix = prefix + "_" + m;
+				break;
+			}
+		}
+		return prefix + "_";
 	}
 	
+    /*
+     * The model is shipped precompiled (see PMMLArtifact) so tasks skip XML parsing; the XML
+     * itself only goes to the distributed cache if compiling fails.
+     */
     public List<String> getCacheFiles() {
-    	String filePath = this.modelPath+"#"+this.modelName;
-        List<String> list = new ArrayList<String>(1); 
-        list.add(filePath);
-        System.err.println(filePath+": added to the distributed cache.");
-        return list; 
+        List<String> list = new ArrayList<String>(this.modelPaths.length);
+        for (int m = 0; m < this.modelPaths.length; m++) {
+        	if (PMMLScorer.compileArtifact(this.modelPaths[m]) != null) {
+        		continue;
+        	}
+        	String filePath = this.modelPaths[m]+"#"+PMMLScorer.cacheName(this.modelPaths[m]);
+        	list.add(filePath);
+        	System.err.println(filePath+": added to the distributed cache.");
+        }
+        return list.isEmpty() ? null : list;
     } 
 	
-	private void initialize(Schema inputSchema) throws IOException, SAXException, JAXBException {
+    public List<String> getShipFiles() {
+        List<String> list = new ArrayList<String>(this.modelPaths.length);
+        for (int m = 0; m < this.modelPaths.length; m++) {
+        	File artifact = PMMLScorer.compileArtifact(this.modelPaths[m]);
+        	if (artifact != null) {
+        		list.add(artifact.getAbsolutePath());
+        	}
+        }
+        return list.isEmpty() ? null : list;
+    }
+
+	void initialize(Schema inputSchema) throws IOException, SAXException, JAXBException {
 
 		this.inputTupleSchema = inputSchema;
 
@@ -111,57 +192,90 @@ public class ScorePMML extends EvalFunc<Tuple> {
 			}
 		}
 
-		// Get PMML Object
-		PMML pmml = null;
-		try {
-			
-			/*
-			 * TODO: Make this more robust. Specifically, Angela Ho wanted to refernce a file in the distributed
-			 * 		 cache directly.  Obviously, my code doesn't support this, because it would try to open
-			 * 	     the file with the IOUtil Java object, as opposed to the hadoop.fs.Path object.
-			 * 
-			 * TODO: This try/catch block is a hack for:
-			 * 		(1) checking if execution is being done on "back-end."  A check for back-end can be done with 
-			 * 			UDFContext.getUDFContext().isFrontend() BUT this does not resolve problems with local-mode.
-			 * 		(2) enables testing in local-mode without failing unit tests.
-			 */
-			
-			// Try reading file from distributed cache.
-    		pmml = IOUtil.unmarshal(new File("./"+this.modelName));
-    		System.err.println("Read model from distributed cache!");
-    		
-		} catch (Throwable t) {
-			// If not on the back-end... (and distributed cache not available) ...
-			
-			if (this.modelPath.toLowerCase().startsWith("s3n://") || this.modelPath.toLowerCase().startsWith("s3://")) {
-				// ... read from S3.
-				Path path = new Path(this.modelPath);
-				FileSystem fs = path.getFileSystem(new Configuration());
-				FSDataInputStream in = fs.open(path);
-				pmml = IOUtil.unmarshal(in);
-	    		System.err.println("Read model from s3!");
-
-			} else {
-				// ... read from local file.
-				pmml = IOUtil.unmarshal(new File(this.modelPath));
-	    		System.err.println("Read model from local disk!");
+		// Bind each column used by any model once
+		List<String> columns = columns(this.inputTupleSchema);
+		List<Integer> positions = new ArrayList<Integer>();
+		PMMLScorer[] scorers = new PMMLScorer[this.modelPaths.length];
+		UDFContext context = UDFContext.getUDFContext();
+		Configuration conf = (context.getJobConf() != null) ? context.getJobConf() : new Configuration();
+		this.argumentSlots = new int[scorers.length][];
+		for (int m = 0; m < scorers.length; m++) {
+			long start = System.nanoTime();
+			scorers[m] = PMMLScorer.load(this.modelPaths[m], conf, !context.isFrontend());
+			if (this.keptAliases != null) {
+				scorers[m] = new PMMLScorer(scorers[m].getModel(), keptFields(m, scorers[m].getModel()));
+			}
+			this.metrics.increment(Counter.MODELS_LOADED, 1);
+			this.metrics.increment(Counter.MODEL_LOAD_MS, (this.metrics.record(Phase.LOAD, start) - start) / 1000000);
+			int[] modelPositions = scorers[m].positions(columns);
+			this.argumentSlots[m] = new int[modelPositions.length];
+			for (int k = 0; k < modelPositions.length; k++) {
+				int slot = positions.indexOf(modelPositions[k]);
+				if (slot < 0) {
+					slot = positions.size();
+					positions.add(modelPositions[k]);
+				}
+				this.argumentSlots[m][k] = slot;
 			}
+		}
 
+		if (this.keptAliases != null) {
+			checkKeptAliases(scorers);
 		}
 
-		// Initialize the pmmlManager
-		PMMLManager pmmlManager = new PMMLManager(pmml);
-		
-		// Initialize the PMML Model Manager
-		ModelManager<?> modelManager = pmmlManager.getModelManager(null, ModelEvaluatorFactory.getInstance());
+		this.inputPositions  = new int[positions.size()];
+		this.inputConverters = new Converter[positions.size()];
+		for (int k = 0; k < this.inputPositions.length; k++) {
+			int position = positions.get(k);
+			this.inputPositions[k]  = position;
+			this.inputConverters[k] = (position < 0) ? Converter.IDENTITY : Converter.forType(this.inputTupleSchema.getField(position).type);
+		}
 
-		this.evaluator 		 = (Evaluator)modelManager;			// Model Evaluator
-		this.activeFields 	 = evaluator.getActiveFields();		// input columns
-		this.predictedFields = evaluator.getPredictedFields();	// predicted columns
-		this.outputFields 	 = evaluator.getOutputFields();		// derived output columns (based on predicted columns)
+		this.scorers  = scorers;
+		this.sessions = new Sessions(1);
+		this.bound 	  = new Object[1][this.inputPositions.length];
+		this.outputs  = new Tuple[1];
 
 	}
-	
+
+	// The output alias of a predicted or output field of the m-th model
+	private String alias(int m, PMMLModel model, FieldName field) {
+		String kind = model.getPredictedFields().contains(field) ? "predictedField_" : "outputField_";
+		return this.prefixes[m] + kind + field.toString().toLowerCase();
+	}
+
+	// The predicted and output fields of the m-th model whose aliases are kept, in model order
+	private List<FieldName> keptFields(int m, PMMLModel model) {
+		List<FieldName> kept = new ArrayList<FieldName>();
+		for (FieldName field : new PMMLScorer(model).getResultFields()) {
+			if (this.keptAliases.contains(alias(m, model, field).toLowerCase())) {
+				kept.add(field);
+			}
+		}
+		return kept;
+	}
+
+	private void checkKeptAliases(PMMLScorer[] scorers) {
+		Set<String> unknown = new LinkedHashSet<String>(this.keptAliases);
+		for (int m = 0; m < scorers.length; m++) {
+			for (FieldName field : scorers[m].getResultFields()) {
+				unknown.remove(alias(m, scorers[m].getModel(), field).toLowerCase());
+			}
+		}
+		if (!unknown.isEmpty()) {
+			throw new RuntimeException("ERROR: "+unknown+" are not output fields of "+Arrays.toString(this.modelNames)+"!");
+		}
+	}
+
+	// Column names of schema, by position
+	private static List<String> columns(Schema schema) {
+		List<String> columns = new ArrayList<String>(schema.size());
+		for (FieldSchema field : schema.getFields()) {
+			columns.add(field.alias);
+		}
+		return columns;
+	}
+
 	// Define Output Schema
     @Override
     public Schema outputSchema(Schema input) {
@@ -180,63 +294,65 @@ public class ScorePMML extends EvalFunc<Tuple> {
             HashSet<String> aliases = new HashSet<String>(inputTupleSchema.getAliases());
             Boolean isVerbose = false;
 
-            for (FieldName activeField : this.activeFields) {
+        	// Create List of Tuple Values
+        	List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
+
+            for (int m = 0; m < this.scorers.length; m++) {
+                PMMLModel model = this.scorers[m].getModel();
+                Evaluator evaluator = model.getEvaluator();
+
+                for (FieldName activeField : model.getActiveFields()) {
             	
-            	// Check that all active fields are present in dataset:
-            	String activeFieldAlias = activeField.toString().toLowerCase();
-            	if (!aliases.contains(activeFieldAlias)) {
-                    throw new RuntimeException("ERROR: "+activeFieldAlias+" is not in the input dataset!");
-            	}
+                	// Check that all active fields are present in dataset:
+                	String activeFieldAlias = activeField.toString().toLowerCase();
+                	if (!aliases.contains(activeFieldAlias)) {
+                        throw new RuntimeException("ERROR: "+activeFieldAlias+" is not in the input dataset!");
+                	}
             	
-            	// Check that all active fields have expected datatypes:
-    			Byte left = this.inputTupleSchema.getField(aliasMap.get(activeFieldAlias)).type;
-    			Byte right = dataTypeMap.get(this.evaluator.getDataField(activeField).getDataType().toString());
-            	if (left != right)
-            		if (failOnTypeMatching) {
-                        throw new RuntimeException("ERROR: "+activeFieldAlias+" does not match expected type! (Expected: "
-                        		+DataType.genTypeToNameMap().get(right)+" Observed: "+DataType.genTypeToNameMap().get(left)+")");
-            		} else if (UDFContext.getUDFContext().isFrontend() && !isVerbose) {
-            			System.err.println("WARNING: active fields do not match expected type! Please run in strict mode to determine which fields are in violation");
-            			isVerbose = true;
-            			// System.err.println("WARNING: "+activeFieldAlias+" does not match expected type! (Expected: "
-                        // 		+DataType.genTypeToNameMap().get(right)+" Observed: "+DataType.genTypeToNameMap().get(left)+")");
+                	// Check that all active fields have expected datatypes:
+        			Byte left = this.inputTupleSchema.getField(aliasMap.get(activeFieldAlias)).type;
+        			Byte right = dataTypeMap.get(evaluator.getDataField(activeField).getDataType().toString());
+                	if (left != right)
+                		if (failOnTypeMatching) {
+                            throw new RuntimeException("ERROR: "+activeFieldAlias+" does not match expected type! (Expected: "
+                            		+DataType.genTypeToNameMap().get(right)+" Observed: "+DataType.genTypeToNameMap().get(left)+")");
+                		} else if (UDFContext.getUDFContext().isFrontend() && !isVerbose) {
+                			System.err.println("WARNING: active fields do not match expected type! Please run in strict mode to determine which fields are in violation");
+                			isVerbose = true;
+                			// System.err.println("WARNING: "+activeFieldAlias+" does not match expected type! (Expected: "
+                            // 		+DataType.genTypeToNameMap().get(right)+" Observed: "+DataType.genTypeToNameMap().get(left)+")");
+                		}
+                }
+            
+            	// Predicted and Output Fields, as kept
+            	for (FieldName resultField : this.scorers[m].getResultFields()) {
+            		String resultFieldAlias = alias(m, model, resultField);
+
+            		if (model.getPredictedFields().contains(resultField)) {
+            			// Create FieldName
+            			DataField dataField = evaluator.getDataField(resultField);
+            			String dataType = dataField.getDataType().toString();
+
+            			if (dataType == null) {
+                            throw new RuntimeException("Predicted Fields with unknown datatype are not supported! Column: "+resultFieldAlias+", PMML DataType "+dataType+".");
+            			} else if (!dataTypeMap.containsKey(dataType)) {
+                            throw new RuntimeException("Column: "+resultFieldAlias+", PMML DataType "+dataType+" is not currently supported.");
+            			} else {
+                    		fieldSchemas.add(new Schema.FieldSchema(resultFieldAlias,dataTypeMap.get(dataType)));
+            			}
+            		} else {
+            			// Create FieldName
+            			OutputField dataField = evaluator.getOutputField(resultField);
+            			if (dataField.getDataType() == null) {
+                    		fieldSchemas.add(new Schema.FieldSchema(resultFieldAlias,DataType.BYTEARRAY));
+            			} else if (dataTypeMap.containsKey(dataField.getDataType().toString())) {
+                    		fieldSchemas.add(new Schema.FieldSchema(resultFieldAlias,dataTypeMap.get(dataField.getDataType().toString())));
+            			} else {
+                            throw new RuntimeException("Column: "+resultFieldAlias+", PMML DataType "+dataField.getDataType().toString()+" is not currently supported.");
+            			}
             		}
+            	}
             }
-            
-        	// Create List of Tuple Values
-        	List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
-        	
-        	// Predicted Fields
-        	for (FieldName predictedField : this.predictedFields) {
-        		String predictedFieldAlias = "predictedField_" + predictedField.toString().toLowerCase();
-
-        		// Create FieldName
-    			DataField dataField = this.evaluator.getDataField(predictedField);
-    			String dataType = dataField.getDataType().toString();
-    			
-    			if (dataType == null) {
-                    throw new RuntimeException("Predicted Fields with unknown datatype are not supported! Column: "+predictedFieldAlias+", PMML DataType "+dataType+".");
-    			} else if (!dataTypeMap.containsKey(dataType)) {
-                    throw new RuntimeException("Column: "+predictedFieldAlias+", PMML DataType "+dataType+" is not currently supported.");
-    			} else {
-            		fieldSchemas.add(new Schema.FieldSchema(predictedFieldAlias,dataTypeMap.get(dataType)));
-    			}
-        	}
-
-        	// Output Fields
-        	for (FieldName outputField : this.outputFields) {
-        		String outputFieldAlias = "outputField_" + outputField.toString().toLowerCase();
-        		
-        		// Create FieldName
-    			OutputField dataField = this.evaluator.getOutputField(outputField);
-    			if (dataField.getDataType() == null) {
-            		fieldSchemas.add(new Schema.FieldSchema(outputFieldAlias,DataType.BYTEARRAY));
-    			} else if (dataTypeMap.containsKey(dataField.getDataType().toString())) {
-            		fieldSchemas.add(new Schema.FieldSchema(outputFieldAlias,dataTypeMap.get(dataField.getDataType().toString())));
-    			} else {
-                    throw new RuntimeException("Column: "+outputFieldAlias+", PMML DataType "+dataField.getDataType().toString()+" is not currently supported.");
-    			}
-        	}
 
             // Build Tuple and Wrap in DataBag
             FieldSchema tupleFieldSchema = new FieldSchema("EvalPMML", new Schema(fieldSchemas), DataType.TUPLE);
@@ -256,13 +372,9 @@ public class ScorePMML extends EvalFunc<Tuple> {
 	@Override
 	public Tuple exec(Tuple input) throws IOException {
 
-		// check
-		int dummy = 0;
-		
-		// Initialize Evaluator if null:
-		if (this.evaluator == null) {
+		// Initialize Evaluators if null:
+		if (this.scorers == null) {
 			try {
-				System.out.println("Initializing: "+(dummy++)+" time");
 				Schema inputSchema = getInputSchema();
 				this.initialize(inputSchema);			// something to check
 			} catch (Throwable t) {
@@ -270,58 +382,197 @@ public class ScorePMML extends EvalFunc<Tuple> {
 			}
 		}
 
-		// Initialize Output as Input
-		Tuple outputTuple = tf.newTuple(this.predictedFields.size() + this.outputFields.size());
-
 		/* ************************
 		// BLOCK: Prepare Data
 		************************* */
 		
-		for(FieldName inputField : this.activeFields){
-
-			// Get Object
-			Object origBodyCell = (Object) input.get(aliasMap.get(inputField.getValue().toLowerCase()));
-			
-			Object bodyCell;
-			if (origBodyCell instanceof Long) {
-				bodyCell = ((Long) origBodyCell).doubleValue();
-			} else {
-				bodyCell = origBodyCell;
+		long start = System.nanoTime();
+		bind(input, this.bound[0]);
+		long bound = this.metrics.record(Phase.BIND, start);
+
+		this.sessions.score(this.bound, 1, this.outputs);
+		long now = this.metrics.record(Phase.EVALUATE, bound);
+		this.metrics.increment(Counter.ROWS, 1);
+		this.metrics.flushIfDue(now);
+
+		return this.outputs[0];
+
+	}
+
+	@Override
+	public void finish() {
+		this.metrics.close();
+	}
+
+	boolean isInitialized() {
+		return this.scorers != null;
+	}
+
+	// Number of cells bind fills
+	int getNumBound() {
+		return this.inputPositions.length;
+	}
+
+	// Copies the cells of input any model reads into bound, converted once
+	void bind(Tuple input, Object[] bound) throws IOException {
+		for (int k = 0; k < bound.length; k++) {
+			bound[k] = this.inputConverters[k].convert(input.get(this.inputPositions[k]));
+		}
+	}
+
+	/*
+	 * Per-thread scoring of bound rows by every model, into output tuples of their results
+	 * concatenated in model order.
+	 */
+	class Sessions {
+
+		private final PMMLScorer.Session[]	sessions	= new PMMLScorer.Session[scorers.length];
+		private final Object[][][]			arguments	= new Object[scorers.length][][];
+		private final Object[][][]			results		= new Object[scorers.length][][];
+		private final int					size;
+		private final int[]					missing;
+		private final ScoreCache			cache		= (cacheCapacity > 0) ? new ScoreCache(cacheCapacity) : null;
+		private final Map<List<Object>, Integer> pending = new HashMap<List<Object>, Integer>();
+		private final int[]					repeated;
+		private final int[]					repeatOf;
+		private long						prepareFailures	= 0;
+
+		Sessions(int rows) {
+			int size = 0;
+			for (int m = 0; m < scorers.length; m++) {
+				this.sessions[m]  = scorers[m].newSession();
+				this.arguments[m] = new Object[rows][scorers[m].getNumArguments()];
+				this.results[m]   = new Object[rows][scorers[m].getNumResults()];
+				size += scorers[m].getNumResults();
 			}
+			this.size 	 = size;
+			this.missing = new int[rows];
+			this.repeated = new int[rows];
+			this.repeatOf = new int[rows];
+		}
 
-			// Prepare Object for Scoring
-			this.preparedRow.put(inputField, EvaluatorUtil.prepare(this.evaluator, inputField, bodyCell));
+		void score(Object[][] bound, int count, Tuple[] outputs) throws IOException {
+
+			// Rows the cache answers are copied out, as are repeats of a row missed earlier in the
+			// batch once it is scored; the other rows are scored as one smaller batch
+			int misses = 0;
+			int repeats = 0;
+			for (int i = 0; i < count; i++) {
+				if (this.cache == null) {
+					this.missing[misses++] = i;
+					continue;
+				}
+				List<Object> key = Arrays.asList(bound[i]);
+				Object[] cached = this.cache.get(key);
+				if (cached != null) {
+					outputs[i] = tf.newTuple(Arrays.asList(cached));
+					continue;
+				}
+				Integer miss = this.pending.get(key);
+				if (miss != null) {
+					this.repeated[repeats] = i;
+					this.repeatOf[repeats++] = miss;
+				} else {
+					this.pending.put(key, misses);
+					this.missing[misses++] = i;
+				}
+			}
+			if (this.cache != null) {
+				this.pending.clear();
+				metrics.increment(Counter.CACHE_HITS, count - misses);
+				metrics.increment(Counter.CACHE_MISSES, misses);
+			}
+			if (misses == 0) {
+				return;
+			}
 
-			// Prepare Object for Scoring
-			// CC: Removed this b/c I think the "Long" check above resolves any issues.
-			/*
-			try {
-				this.preparedRow.put(inputField, EvaluatorUtil.prepare(this.evaluator, inputField, bodyCell));
-			} catch (Throwable t) {
-	        	System.err.println("Unable to prepare record, Trouble Parsing: " + inputField.toString() + " (value="+ bodyCell+")");
-	        	System.err.println(t);
-	            throw new RuntimeException(t);
+			for (int m = 0; m < this.sessions.length; m++) {
+				// A model none of whose fields are kept is not scored at all
+				if (scorers[m].getNumResults() == 0) {
+					continue;
+				}
+				int[] slots = argumentSlots[m];
+				for (int j = 0; j < misses; j++) {
+					Object[] row = this.arguments[m][j];
+					for (int k = 0; k < slots.length; k++) {
+						row[k] = bound[this.missing[j]][slots[k]];
+					}
+				}
+				try {
+					this.sessions[m].score(this.arguments[m], misses, this.results[m]);
+				} catch (RuntimeException e) {
+					countFailure();
+					throw e;
+				}
+			}
+			for (int j = 0; j < misses; j++) {
+				Tuple outputTuple = tf.newTuple(this.size);
+				int i = 0;
+				for (int m = 0; m < this.sessions.length; m++) {
+					for (Object result : this.results[m][j]) {
+						outputTuple.set(i++, result);
+					}
+				}
+				outputs[this.missing[j]] = outputTuple;
+				if (this.cache != null) {
+					this.cache.put(Arrays.asList(bound[this.missing[j]].clone()), outputTuple.getAll().toArray());
+				}
+			}
+			for (int r = 0; r < repeats; r++) {
+				outputs[this.repeated[r]] = tf.newTuple(outputs[this.missing[this.repeatOf[r]]].getAll());
 			}
-			*/
+		}
 
+		// The row that failed, and whether jpmml failed to prepare it
+		private void countFailure() {
+			long prepareFailures = 0;
+			for (PMMLScorer.Session session : this.sessions) {
+				prepareFailures += session.getPrepareFailures();
+			}
+			metrics.increment(Counter.PREPARE_FAILURES, prepareFailures - this.prepareFailures);
+			metrics.increment(Counter.FAILED_ROWS, 1);
+			metrics.flush();
+			this.prepareFailures = prepareFailures;
 		}
 
-		// Score Data
-		Map<FieldName, ?> result = evaluator.evaluate(this.preparedRow);
+	}
+
+	// Results of the most recently used rows, keyed by their bound cells, in the order of the output tuple
+	@SuppressWarnings("serial")
+	private static final class ScoreCache extends LinkedHashMap<List<Object>, Object[]> {
+
+		private final int capacity;
 
-		// Append Predicted Fields
-		int i = 0;
-		for(FieldName predictedField : this.predictedFields){
-			outputTuple.set(i++,EvaluatorUtil.decode(result.get(predictedField)));
+		ScoreCache(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
 		}
 
-		for(FieldName outputField : this.outputFields){
-			outputTuple.set(i++,EvaluatorUtil.decode(result.get(outputField)));
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<Object>, Object[]> eldest) {
+			return size() > this.capacity;
 		}
+	}
 
-		// Return Tuple:
-		return outputTuple;
+	// Per-field conversion of a Pig cell to the value handed to the model, chosen by the input schema's type
+	enum Converter {
+		IDENTITY {
+			Object convert(Object cell) {
+				return cell;
+			}
+		},
+		// Longs are scored as doubles; unknown types are checked at run time
+		LONG_TO_DOUBLE {
+			Object convert(Object cell) {
+				return (cell instanceof Long) ? (Object) ((Long) cell).doubleValue() : cell;
+			}
+		};
 
+		abstract Object convert(Object cell);
+
+		static Converter forType(byte type) {
+			return (type == DataType.LONG || type == DataType.BYTEARRAY || type == DataType.UNKNOWN) ? LONG_TO_DOUBLE : IDENTITY;
+		}
 	}
 	
 }
@@ -0,0 +1,240 @@
+package org.surus.pig;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.bind.JAXBException;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.xml.sax.SAXException;
+
+/*
+ * Scores a bag of rows at once, e.g. after grouping them into fixed-size chunks. Each tuple in the
+ * returned bag has the schema ScorePMML would give the matching row, in the order of the input bag.
+ *
+ * Rows are scored in batches of BATCH_ROWS by ScorePMML sessions, one per batch in flight. With a
+ * thread count above one, batches of the same bag are spread over a bounded pool of that size.
+ *
+ * Params: model path, [failOnTypeMatching], [threads], [cacheCapacity], [fields to keep] (see ScorePMML)
+ */
+public class ScorePMMLBag extends EvalFunc<DataBag> {
+
+	static final int BATCH_ROWS = 1024;
+
+	final ScorePMML scorePMML;
+	private int 			threads	= 1;
+	private ExecutorService pool	= null;
+
+	// Batches not in flight, reused across bags
+	private final ArrayDeque<Batch> batches = new ArrayDeque<Batch>();
+
+	private static final BagFactory bf = BagFactory.getInstance();
+
+	// Constructor
+	public ScorePMMLBag(String... params) throws IOException, SAXException, JAXBException {
+		if (params.length >= 5) {
+			this.scorePMML = new ScorePMML(params[0], params[1], params[3], params[4]);
+		} else if (params.length == 4) {
+			this.scorePMML = new ScorePMML(params[0], params[1], params[3]);
+		} else {
+			this.scorePMML = (params.length >= 2) ? new ScorePMML(params[0], params[1]) : new ScorePMML(params[0]);
+		}
+		if (params.length >= 3) {
+			this.threads = Math.max(1, Integer.parseInt(params[2]));
+		}
+	}
+
+	public List<String> getCacheFiles() {
+		return this.scorePMML.getCacheFiles();
+	}
+
+	public List<String> getShipFiles() {
+		return this.scorePMML.getShipFiles();
+	}
+
+	// The schema of the rows inside the input bag
+	private static Schema rowSchema(Schema input) throws FrontendException {
+		if (input == null || input.size() != 1 || input.getField(0).type != DataType.BAG) {
+			throw new RuntimeException("ERROR: expected a single bag of rows, observed "+input);
+		}
+		Schema bag = input.getField(0).schema;
+		if (bag.size() == 1 && bag.getField(0).type == DataType.TUPLE) {
+			return bag.getField(0).schema;
+		}
+		return bag;
+	}
+
+	// Define Output Schema
+	@Override
+	public Schema outputSchema(Schema input) {
+		try {
+			Schema rowOutput = this.scorePMML.outputSchema(rowSchema(input));
+			return new Schema(new FieldSchema("EvalPMMLBag", rowOutput, DataType.BAG));
+		} catch (FrontendException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Define Exec
+	@Override
+	public DataBag exec(Tuple input) throws IOException {
+
+		if (!this.scorePMML.isInitialized()) {
+			try {
+				this.scorePMML.initialize(rowSchema(getInputSchema()));
+			} catch (Throwable t) {
+				throw new RuntimeException("Backend: Unable to initialize PMML file: ",t);
+			}
+		}
+
+		DataBag output = bf.newDefaultBag();
+		if (input == null || input.size() == 0 || input.get(0) == null) {
+			return output;
+		}
+		DataBag rows = (DataBag) input.get(0);
+
+		// Small bags, and single threaded scoring, stay on the calling thread
+		if (this.threads == 1 || rows.size() <= BATCH_ROWS) {
+			Batch batch = borrow();
+			Iterator<Tuple> it = rows.iterator();
+			while (batch.fill(it)) {
+				batch.call();
+				batch.drain(output);
+			}
+			this.batches.push(batch);
+			return output;
+		}
+
+		// Batches are drained in submission order, with at most threads of them in flight
+		ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<Future<Batch>>();
+		Iterator<Tuple> it = rows.iterator();
+		try {
+			while (true) {
+				Batch batch = borrow();
+				if (!batch.fill(it)) {
+					this.batches.push(batch);
+					break;
+				}
+				if (inFlight.size() == this.threads) {
+					drain(inFlight.poll(), output);
+				}
+				inFlight.add(pool().submit(batch));
+			}
+			while (!inFlight.isEmpty()) {
+				drain(inFlight.poll(), output);
+			}
+		} finally {
+			for (Future<Batch> future : inFlight) {
+				future.cancel(true);
+			}
+		}
+		return output;
+	}
+
+	private void drain(Future<Batch> future, DataBag output) throws IOException {
+		Batch batch;
+		try {
+			batch = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		batch.drain(output);
+		this.batches.push(batch);
+		progress();
+	}
+
+	private Batch borrow() {
+		return this.batches.isEmpty() ? new Batch() : this.batches.pop();
+	}
+
+	private ExecutorService pool() {
+		if (this.pool == null) {
+			this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ScorePMMLBag");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return this.pool;
+	}
+
+	@Override
+	public void finish() {
+		if (this.pool != null) {
+			this.pool.shutdownNow();
+			this.pool = null;
+		}
+		this.scorePMML.finish();
+	}
+
+	// Rows of one batch with the working memory to score them, used by one thread at a time
+	private class Batch implements Callable<Batch> {
+
+		private final ScorePMML.Sessions	sessions	= scorePMML.new Sessions(BATCH_ROWS);
+		private final Tuple[]				inputs		= new Tuple[BATCH_ROWS];
+		private final Object[][]			bound		= new Object[BATCH_ROWS][scorePMML.getNumBound()];
+		private final Tuple[]				outputs		= new Tuple[BATCH_ROWS];
+		private int							count		= 0;
+
+		// Takes up to BATCH_ROWS rows, returning false if there were none left
+		boolean fill(Iterator<Tuple> it) {
+			this.count = 0;
+			while (this.count < BATCH_ROWS && it.hasNext()) {
+				this.inputs[this.count++] = it.next();
+			}
+			return this.count > 0;
+		}
+
+		public Batch call() throws IOException {
+			long start = System.nanoTime();
+			for (int i = 0; i < this.count; i++) {
+				scorePMML.bind(this.inputs[i], this.bound[i]);
+			}
+			long bound = System.nanoTime();
+			this.sessions.score(this.bound, this.count, this.outputs);
+			long now = System.nanoTime();
+
+			// Batches record the mean latency of their rows
+			UDFMetrics<ScorePMML.Counter, ScorePMML.Phase> metrics = scorePMML.metrics;
+			metrics.histogram(ScorePMML.Phase.BIND).record((bound - start) / this.count, this.count);
+			metrics.histogram(ScorePMML.Phase.EVALUATE).record((now - bound) / this.count, this.count);
+			metrics.increment(ScorePMML.Counter.ROWS, this.count);
+			metrics.flushIfDue(now);
+			return this;
+		}
+
+		void drain(DataBag output) {
+			for (int i = 0; i < this.count; i++) {
+				output.add(this.outputs[i]);
+				this.inputs[i] = null;
+				this.outputs[i] = null;
+			}
+		}
+
+	}
+
+}
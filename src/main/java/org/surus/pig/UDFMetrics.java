@@ -0,0 +1,89 @@
+package org.surus.pig;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+/*
+ * Counters and per-phase latency histograms of one UDF instance. Counters are summed in
+ * memory and published as Hadoop counters through PigStatusReporter at most every
+ * FLUSH_NANOS, and on close, so scoring a row never touches the reporter. Histograms are
+ * written to stderr on close, i.e. into the task log.
+ *
+ * Counter and phase names are the lower-cased enum constant names, under the UDF's group.
+ */
+final class UDFMetrics<C extends Enum<C>, P extends Enum<P>> {
+
+	static final long FLUSH_NANOS = 10000000000L;
+
+	private final String 				group;
+	private final C[]					counters;
+	private final P[]					phases;
+	private final AtomicLongArray		pending;
+	private final LatencyHistogram[]	histograms;
+	private volatile long				lastFlush	= System.nanoTime();
+
+	UDFMetrics(String group, Class<C> counters, Class<P> phases) {
+		this.group 		= group;
+		this.counters 	= counters.getEnumConstants();
+		this.phases 	= phases.getEnumConstants();
+		this.pending 	= new AtomicLongArray(this.counters.length);
+		this.histograms = new LatencyHistogram[this.phases.length];
+		for (int i = 0; i < this.histograms.length; i++) {
+			this.histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	void increment(C counter, long amount) {
+		this.pending.addAndGet(counter.ordinal(), amount);
+	}
+
+	LatencyHistogram histogram(P phase) {
+		return this.histograms[phase.ordinal()];
+	}
+
+	// Records the time since start in phase, returning now for the next phase to start from
+	long record(P phase, long start) {
+		long now = System.nanoTime();
+		this.histograms[phase.ordinal()].record(now - start);
+		return now;
+	}
+
+	// Publishes the counters if FLUSH_NANOS passed since the last time, given the current nanoTime
+	void flushIfDue(long now) {
+		if (now - this.lastFlush > FLUSH_NANOS) {
+			flush();
+		}
+	}
+
+	void flush() {
+		this.lastFlush = System.nanoTime();
+		PigStatusReporter reporter = PigStatusReporter.getInstance();
+		for (int i = 0; i < this.counters.length; i++) {
+			long amount = this.pending.getAndSet(i, 0);
+			if (amount != 0 && !reporter.incrCounter(this.group, name(this.counters[i]), amount)) {
+				// No task context, e.g. on the front end: keep the amount for later
+				this.pending.addAndGet(i, amount);
+			}
+		}
+	}
+
+	long getPending(C counter) {
+		return this.pending.get(counter.ordinal());
+	}
+
+	// Publishes the counters and dumps the histograms of the phases that recorded anything
+	void close() {
+		flush();
+		for (int i = 0; i < this.phases.length; i++) {
+			if (this.histograms[i].getCount() > 0) {
+				System.err.println(this.group+" "+name(this.phases[i])+": "+this.histograms[i]);
+			}
+		}
+	}
+
+	private static String name(Enum<?> constant) {
+		return constant.name().toLowerCase();
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.surus.pmml;
+
+import java.util.List;
+
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.OutputField;
+import org.jpmml.evaluator.FieldValueUtil;
+
+/**
+ * A model compiled by ModelCompiler into primitive arrays, scoring rows encoded by a
+ * FeatureEncoder with the same results as the model's jpmml evaluator.
+ *
+ * Instances are immutable and may be shared by any number of threads; each thread
+ * scores through its own Scratch. Results hold the decoded values of the predicted
+ * fields followed by the output fields, in the order of PMMLModel.
+ */
+public abstract class CompiledModel {
+
+	/**
+	 * Per-thread working memory, so that scoring does not allocate.
+	 */
+	public static class Scratch {
+		final double[] features;
+		final double[] values;
+		final int[] indices;
+
+		Scratch(int numFeatures, int numValues, int numIndices) {
+			this.features = new double[numFeatures];
+			this.values = new double[numValues];
+			this.indices = new int[numIndices];
+		}
+
+		public double[] getFeatures() {
+			return features;
+		}
+	}
+
+	// A precomputed result jpmml fails to produce, so that rows reaching it fall back
+	static final Object FAILED_RESULT = new Object();
+
+	protected final FeatureEncoder encoder;
+	protected final List<FieldName> resultFields;
+
+	CompiledModel(FeatureEncoder encoder, List<FieldName> resultFields) {
+		this.encoder = encoder;
+		this.resultFields = resultFields;
+	}
+
+	public Scratch newScratch() {
+		return new Scratch(this.encoder.size(), 0, 0);
+	}
+
+	/**
+	 * Scores one row.
+	 * @param arguments cells of the active fields, in the order of the encoder
+	 * @param results receives the predicted and output fields
+	 * @return false if the row has to be scored by jpmml instead, leaving results undefined
+	 */
+	public boolean evaluate(Object[] arguments, Scratch scratch, Object[] results) {
+		return this.encoder.encode(arguments, scratch.features) && score(scratch.features, scratch, results);
+	}
+
+	/**
+	 * Scores count rows at once. Rows are scored one by one, unless the model gains from
+	 * batching them.
+	 * @param scored receives, per row, false if it has to be scored by jpmml instead
+	 */
+	public void evaluate(Object[][] arguments, int count, Scratch scratch, Object[][] results, boolean[] scored) {
+		for (int i = 0; i < count; i++) {
+			scored[i] = evaluate(arguments[i], scratch, results[i]);
+		}
+	}
+
+	/**
+	 * Scores a row already encoded by getEncoder().
+	 * @return false if the row has to be scored by jpmml instead, leaving results undefined
+	 */
+	public abstract boolean score(double[] features, Scratch scratch, Object[] results);
+
+	// The value of an output field as jpmml casts it, or FAILED_RESULT
+	static Object cast(OutputField outputField, Object value) {
+		try {
+			return FieldValueUtil.getValue(FieldValueUtil.create(outputField, value));
+		} catch (RuntimeException e) {
+			return FAILED_RESULT;
+		}
+	}
+
+	public FeatureEncoder getEncoder() {
+		return encoder;
+	}
+
+	/**
+	 * @return the predicted fields followed by the output fields
+	 */
+	public List<FieldName> getResultFields() {
+		return resultFields;
+	}
+}
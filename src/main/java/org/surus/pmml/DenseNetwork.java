@@ -0,0 +1,703 @@
+package org.surus.pmml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dmg.pmml.ActivationFunctionType;
+import org.dmg.pmml.Connection;
+import org.dmg.pmml.DataType;
+import org.dmg.pmml.DerivedField;
+import org.dmg.pmml.Expression;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.FieldRef;
+import org.dmg.pmml.LinearNorm;
+import org.dmg.pmml.NeuralInput;
+import org.dmg.pmml.NeuralLayer;
+import org.dmg.pmml.NeuralNetwork;
+import org.dmg.pmml.NeuralOutput;
+import org.dmg.pmml.Neuron;
+import org.dmg.pmml.NnNormalizationMethodType;
+import org.dmg.pmml.NormContinuous;
+import org.dmg.pmml.NormDiscrete;
+import org.dmg.pmml.OutlierTreatmentMethodType;
+import org.dmg.pmml.OutputField;
+import org.dmg.pmml.ResultFeatureType;
+import org.jpmml.manager.ModelManager;
+import org.surus.pmml.ModelCompiler.UnsupportedException;
+
+/**
+ * A NeuralNetwork whose layers are fully connected, compiled into a weight matrix, a
+ * bias vector, an activation function and a normalization per layer.
+ *
+ * Rows are pushed through the layers in blocks: each layer is a matrix product tiled
+ * over rows, neurons and inputs, accumulating every neuron's inputs in the order of its
+ * connections so that results are identical to jpmml's neuron by neuron evaluation.
+ * Neural inputs are read from the feature vector, through field references, NormContinuous
+ * or NormDiscrete.
+ */
+public class DenseNetwork extends CompiledModel {
+
+	// Tiles of the layer products
+	static final int BLOCK_ROWS    = 64;
+	static final int BLOCK_NEURONS = 32;
+	static final int BLOCK_INPUTS  = 256;
+
+	// Neural input kinds
+	private static final byte FIELD           = 0;
+	private static final byte NORM_CONTINUOUS = 1;
+	private static final byte NORM_DISCRETE   = 2;
+
+	// Result kinds: looked up by winning category, a category's output, the regression value
+	private static final byte FIXED       = 0;
+	private static final byte PROBABILITY = 1;
+	private static final byte VALUE       = 2;
+
+	private final int[] inputFeatures;
+	private final byte[] inputKinds;
+	private final double[] inputCategories;
+	private final double[] inputMissing;
+	private final OutlierTreatmentMethodType[] inputOutliers;
+	private final double[][] inputOrigs;
+	private final double[][] inputNorms;
+
+	// widths[0] is the number of inputs, widths[l + 1] the number of neurons of layer l
+	private final int[] widths;
+	private final int maxWidth;
+	private final double[][] weights;
+	private final double[][] biases;
+	private final ActivationFunctionType[] activations;
+	private final double[] thresholds;
+	private final NnNormalizationMethodType[] normalizations;
+
+	private final boolean classification;
+	private final int[] outputNeurons;
+	private final double[] outputOrigs;
+	private final double[] outputNorms;
+
+	private final byte[] resultKinds;
+	private final Object[][] fixedResults;
+	private final int[] probabilityOutputs;
+
+	private DenseNetwork(Builder b) {
+		super(b.encoder, b.resultFields);
+		int numInputs = b.inputFeatures.size();
+		this.inputFeatures   = new int[numInputs];
+		this.inputKinds      = new byte[numInputs];
+		this.inputCategories = new double[numInputs];
+		this.inputMissing    = new double[numInputs];
+		this.inputOutliers   = b.inputOutliers.toArray(new OutlierTreatmentMethodType[numInputs]);
+		this.inputOrigs      = b.inputOrigs.toArray(new double[numInputs][]);
+		this.inputNorms      = b.inputNorms.toArray(new double[numInputs][]);
+		for (int i = 0; i < numInputs; i++) {
+			this.inputFeatures[i]   = b.inputFeatures.get(i);
+			this.inputKinds[i]      = b.inputKinds.get(i);
+			this.inputCategories[i] = b.inputCategories.get(i);
+			this.inputMissing[i]    = b.inputMissing.get(i);
+		}
+
+		int numLayers = b.weights.size();
+		this.widths         = new int[numLayers + 1];
+		this.widths[0]      = numInputs;
+		int maxWidth = 0;
+		for (int l = 0; l < numLayers; l++) {
+			this.widths[l + 1] = b.biases.get(l).length;
+			maxWidth = Math.max(maxWidth, this.widths[l + 1]);
+		}
+		this.maxWidth       = maxWidth;
+		this.weights        = b.weights.toArray(new double[numLayers][]);
+		this.biases         = b.biases.toArray(new double[numLayers][]);
+		this.activations    = b.activations.toArray(new ActivationFunctionType[numLayers]);
+		this.thresholds     = new double[numLayers];
+		for (int l = 0; l < numLayers; l++) {
+			this.thresholds[l] = b.thresholds.get(l);
+		}
+		this.normalizations = b.normalizations.toArray(new NnNormalizationMethodType[numLayers]);
+
+		this.classification = b.classification;
+		this.outputNeurons  = new int[b.outputNeurons.size()];
+		for (int c = 0; c < this.outputNeurons.length; c++) {
+			this.outputNeurons[c] = b.outputNeurons.get(c);
+		}
+		this.outputOrigs    = b.outputOrigs;
+		this.outputNorms    = b.outputNorms;
+
+		this.resultKinds        = b.resultKinds;
+		this.fixedResults       = b.fixedResults;
+		this.probabilityOutputs = b.probabilityOutputs;
+	}
+
+	// Scratch values hold a block of inputs, then two blocks of layer outputs used in turn
+	@Override
+	public Scratch newScratch() {
+		return new Scratch(this.encoder.size(), BLOCK_ROWS * (this.widths[0] + 2 * this.maxWidth), BLOCK_ROWS);
+	}
+
+	public int getNumLayers() {
+		return weights.length;
+	}
+
+	public int getNumInputs() {
+		return widths[0];
+	}
+
+	@Override
+	public boolean score(double[] features, Scratch scratch, Object[] results) {
+		if (!inputs(features, scratch.values, 0)) {
+			return false;
+		}
+		return results(scratch.values, forward(scratch.values, 1), results);
+	}
+
+	/**
+	 * Scores the rows in blocks of BLOCK_ROWS, each layer being one matrix product per block.
+	 */
+	@Override
+	public void evaluate(Object[][] arguments, int count, Scratch scratch, Object[][] results, boolean[] scored) {
+		double[] values = scratch.values;
+		int[] rows = scratch.indices;
+		int outputWidth = this.widths[this.widths.length - 1];
+		int block = 0;
+		for (int i = 0; i < count; i++) {
+			scored[i] = false;
+			if (this.encoder.encode(arguments[i], scratch.features) && inputs(scratch.features, values, block)) {
+				rows[block++] = i;
+			}
+			if (block == BLOCK_ROWS || (block > 0 && i == count - 1)) {
+				int output = forward(values, block);
+				for (int r = 0; r < block; r++) {
+					scored[rows[r]] = results(values, output + r * outputWidth, results[rows[r]]);
+				}
+				block = 0;
+			}
+		}
+	}
+
+	// As ExpressionUtil over the neural inputs' derived fields, into row r of the input block
+	private boolean inputs(double[] features, double[] values, int r) {
+		int offset = r * this.widths[0];
+		for (int i = 0; i < this.inputKinds.length; i++) {
+			double feature = features[this.inputFeatures[i]];
+			double value;
+			if (Double.isNaN(feature)) {
+				// jpmml fails on a missing input without mapMissingTo
+				value = this.inputMissing[i];
+				if (Double.isNaN(value)) {
+					return false;
+				}
+			} else {
+				switch (this.inputKinds[i]) {
+					case NORM_CONTINUOUS:
+						value = normalize(i, feature);
+						break;
+					case NORM_DISCRETE:
+						value = (feature == this.inputCategories[i]) ? 1.0 : 0.0;
+						break;
+					default:
+						value = feature;
+				}
+			}
+			values[offset + i] = value;
+		}
+		return true;
+	}
+
+	// As NormalizationUtil.normalize
+	private double normalize(int i, double value) {
+		double[] origs = this.inputOrigs[i];
+		double[] norms = this.inputNorms[i];
+		int start = 0;
+		int end = origs.length - 1;
+		if (value >= origs[start] && value <= origs[end]) {
+			for (int k = 1; k < origs.length - 1; k++) {
+				if (value >= origs[k]) {
+					start = k;
+				} else if (value <= origs[k]) {
+					end = k;
+					break;
+				}
+			}
+		} else {
+			switch (this.inputOutliers[i]) {
+				case AS_MISSING_VALUES:
+					return this.inputMissing[i];
+				case AS_EXTREME_VALUES:
+					return (value < origs[start]) ? norms[start] : norms[end];
+				default:
+					if (value < origs[start]) {
+						end = 1;
+					} else {
+						start = origs.length - 2;
+					}
+			}
+		}
+		double origRange = origs[end] - origs[start];
+		double normRange = norms[end] - norms[start];
+		return norms[start] + (value - origs[start]) / origRange * normRange;
+	}
+
+	// As NormalizationUtil.denormalize
+	private double denormalize(double value) {
+		double[] origs = this.outputOrigs;
+		double[] norms = this.outputNorms;
+		int start = 0;
+		int end = origs.length - 1;
+		for (int k = 1; k < origs.length - 1; k++) {
+			if (value >= norms[k]) {
+				start = k;
+			} else if (value <= norms[k]) {
+				end = k;
+				break;
+			}
+		}
+		double origRange = origs[end] - origs[start];
+		double normRange = norms[end] - norms[start];
+		return (value - norms[start]) / normRange * origRange + origs[start];
+	}
+
+	/**
+	 * Pushes the first rows of the input block through every layer.
+	 * @return the offset of the last layer's outputs in values
+	 */
+	private int forward(double[] values, int rows) {
+		int in = 0;
+		int out = BLOCK_ROWS * this.widths[0];
+		int spare = out + BLOCK_ROWS * this.maxWidth;
+		for (int l = 0; l < this.weights.length; l++) {
+			int n = this.widths[l];
+			int m = this.widths[l + 1];
+			multiply(values, in, rows, n, this.weights[l], this.biases[l], m, out);
+			for (int r = 0; r < rows; r++) {
+				activate(l, values, out + r * m, m);
+			}
+			in = out;
+			out = spare;
+			spare = in;
+		}
+		return in;
+	}
+
+	/**
+	 * out[r][j] = bias[j] + in[r][0] * w[j][0] + in[r][1] * w[j][1] + ..., row-major, tiled
+	 * over rows, neurons and inputs. Tiles of inputs are visited in order and each sum is
+	 * carried over in out, so every neuron adds its inputs in jpmml's order.
+	 */
+	static void multiply(double[] values, int in, int rows, int n, double[] w, double[] bias, int m, int out) {
+		for (int r = 0; r < rows; r++) {
+			System.arraycopy(bias, 0, values, out + r * m, m);
+		}
+		for (int k0 = 0; k0 < n; k0 += BLOCK_INPUTS) {
+			int k1 = Math.min(n, k0 + BLOCK_INPUTS);
+			for (int j0 = 0; j0 < m; j0 += BLOCK_NEURONS) {
+				int j1 = Math.min(m, j0 + BLOCK_NEURONS);
+				for (int r = 0; r < rows; r++) {
+					int inRow = in + r * n;
+					int outRow = out + r * m;
+					for (int j = j0; j < j1; j++) {
+						int wRow = j * n;
+						double z = values[outRow + j];
+						for (int k = k0; k < k1; k++) {
+							z += values[inRow + k] * w[wRow + k];
+						}
+						values[outRow + j] = z;
+					}
+				}
+			}
+		}
+	}
+
+	// As NeuralNetworkEvaluator.activation and normalizeNeuronOutputs, over one row of layer l
+	private void activate(int l, double[] values, int offset, int m) {
+		ActivationFunctionType activation = this.activations[l];
+		for (int j = offset; j < offset + m; j++) {
+			double z = values[j];
+			switch (activation) {
+				case THRESHOLD:   values[j] = (z > this.thresholds[l]) ? 1.0 : 0.0; break;
+				case LOGISTIC:    values[j] = 1.0 / (1.0 + Math.exp(-z)); break;
+				case TANH:        values[j] = (1.0 - Math.exp(-2.0 * z)) / (1.0 + Math.exp(-2.0 * z)); break;
+				case IDENTITY:    break;
+				case EXPONENTIAL: values[j] = Math.exp(z); break;
+				case RECIPROCAL:  values[j] = 1.0 / z; break;
+				case SQUARE:      values[j] = z * z; break;
+				case GAUSS:       values[j] = Math.exp(-(z * z)); break;
+				case SINE:        values[j] = Math.sin(z); break;
+				case COSINE:      values[j] = Math.cos(z); break;
+				case ELLIOTT:     values[j] = z / (1.0 + Math.abs(z)); break;
+				default:          values[j] = Math.atan(z);
+			}
+		}
+
+		NnNormalizationMethodType normalization = this.normalizations[l];
+		if (normalization == NnNormalizationMethodType.NONE) {
+			return;
+		}
+		boolean softmax = normalization == NnNormalizationMethodType.SOFTMAX;
+		double sum = 0.0;
+		for (int j = offset; j < offset + m; j++) {
+			sum += softmax ? Math.exp(values[j]) : values[j];
+		}
+		for (int j = offset; j < offset + m; j++) {
+			values[j] = (softmax ? Math.exp(values[j]) : values[j]) / sum;
+		}
+	}
+
+	// Results from one row of the last layer's outputs
+	private boolean results(double[] values, int offset, Object[] results) {
+		if (!this.classification) {
+			double output = values[offset + this.outputNeurons[0]];
+			Double value = (this.outputOrigs != null) ? denormalize(output) : output;
+			for (int r = 0; r < results.length; r++) {
+				results[r] = value;
+			}
+			return true;
+		}
+
+		// As EntityClassificationMap: the first category with the strictly largest output wins
+		int best = 0;
+		for (int c = 1; c < this.outputNeurons.length; c++) {
+			if (Double.compare(values[offset + this.outputNeurons[c]], values[offset + this.outputNeurons[best]]) > 0) {
+				best = c;
+			}
+		}
+		for (int r = 0; r < results.length; r++) {
+			if (this.resultKinds[r] == PROBABILITY) {
+				int c = this.probabilityOutputs[r];
+				results[r] = (c >= 0) ? values[offset + this.outputNeurons[c]] : 0.0;
+			} else {
+				Object value = this.fixedResults[r][best];
+				if (value == FAILED_RESULT) {
+					return false;
+				}
+				results[r] = value;
+			}
+		}
+		return true;
+	}
+
+	static DenseNetwork compile(ModelManager<?> manager, List<FieldName> resultFields) throws UnsupportedException {
+		NeuralNetwork model = (NeuralNetwork) manager.getModel();
+		FieldName target = ModelCompiler.checkModel(model);
+		Builder b = new Builder(manager, new FeatureEncoder(manager, manager.getActiveFields()));
+
+		if (model.getNeuralInputs() == null || model.getNeuralOutputs() == null) {
+			throw new UnsupportedException("Neural network without inputs or outputs");
+		}
+		Map<String, Integer> previous = new HashMap<String, Integer>();
+		for (NeuralInput neuralInput : model.getNeuralInputs().getNeuralInputs()) {
+			if (previous.put(neuralInput.getId(), previous.size()) != null) {
+				throw new UnsupportedException("Duplicate neuron " + neuralInput.getId());
+			}
+			b.addInput(neuralInput.getDerivedField());
+		}
+		for (NeuralLayer layer : model.getNeuralLayers()) {
+			previous = b.addLayer(model, layer, previous);
+		}
+
+		switch (model.getFunctionName()) {
+			case CLASSIFICATION:
+				b.classification = true;
+				for (NeuralOutput neuralOutput : model.getNeuralOutputs().getNeuralOutputs()) {
+					Expression expression = neuralOutput.getDerivedField().getExpression();
+					if (!(expression instanceof NormDiscrete) || !target.equals(((NormDiscrete) expression).getField())) {
+						throw new UnsupportedException("Neural output " + neuralOutput.getOutputNeuron());
+					}
+					String category = ((NormDiscrete) expression).getValue();
+					if (category == null || b.categories.contains(category)) {
+						throw new UnsupportedException("Category " + category);
+					}
+					b.categories.add(category);
+					b.addOutput(previous, neuralOutput);
+				}
+				if (b.categories.isEmpty()) {
+					throw new UnsupportedException("No neural outputs");
+				}
+				b.categoryResults(target, ModelCompiler.outputFields(model, target,
+						ResultFeatureType.PREDICTED_VALUE, ResultFeatureType.PROBABILITY, ResultFeatureType.ENTITY_ID));
+				break;
+			case REGRESSION:
+				List<NeuralOutput> neuralOutputs = model.getNeuralOutputs().getNeuralOutputs();
+				if (neuralOutputs.size() != 1) {
+					throw new UnsupportedException(neuralOutputs.size() + " neural outputs");
+				}
+				Expression expression = neuralOutputs.get(0).getDerivedField().getExpression();
+				if (expression instanceof NormContinuous && target.equals(((NormContinuous) expression).getField())) {
+					List<LinearNorm> linearNorms = ((NormContinuous) expression).getLinearNorms();
+					if (linearNorms.size() < 2) {
+						throw new UnsupportedException("NormContinuous of " + target);
+					}
+					b.outputOrigs = origs(linearNorms);
+					b.outputNorms = norms(linearNorms);
+				} else if (!(expression instanceof FieldRef && target.equals(((FieldRef) expression).getField())
+						&& manager.resolveField(target) == null)) {
+					throw new UnsupportedException("Neural output " + neuralOutputs.get(0).getOutputNeuron());
+				}
+				b.addOutput(previous, neuralOutputs.get(0));
+				b.valueResults(target, ModelCompiler.outputFields(model, target, ResultFeatureType.PREDICTED_VALUE));
+				break;
+			default:
+				throw new UnsupportedException("Function " + model.getFunctionName());
+		}
+		b.projectResults(resultFields);
+		return new DenseNetwork(b);
+	}
+
+	private static double[] origs(List<LinearNorm> linearNorms) {
+		double[] result = new double[linearNorms.size()];
+		for (int k = 0; k < result.length; k++) {
+			result[k] = linearNorms.get(k).getOrig();
+		}
+		return result;
+	}
+
+	private static double[] norms(List<LinearNorm> linearNorms) {
+		double[] result = new double[linearNorms.size()];
+		for (int k = 0; k < result.length; k++) {
+			result[k] = linearNorms.get(k).getNorm();
+		}
+		return result;
+	}
+
+	// Layers under construction
+	private static class Builder {
+		final ModelManager<?> manager;
+		final FeatureEncoder encoder;
+
+		final List<Integer> inputFeatures = new ArrayList<Integer>();
+		final List<Byte> inputKinds = new ArrayList<Byte>();
+		final List<Double> inputCategories = new ArrayList<Double>();
+		final List<Double> inputMissing = new ArrayList<Double>();
+		final List<OutlierTreatmentMethodType> inputOutliers = new ArrayList<OutlierTreatmentMethodType>();
+		final List<double[]> inputOrigs = new ArrayList<double[]>();
+		final List<double[]> inputNorms = new ArrayList<double[]>();
+
+		final List<double[]> weights = new ArrayList<double[]>();
+		final List<double[]> biases = new ArrayList<double[]>();
+		final List<ActivationFunctionType> activations = new ArrayList<ActivationFunctionType>();
+		final List<Double> thresholds = new ArrayList<Double>();
+		final List<NnNormalizationMethodType> normalizations = new ArrayList<NnNormalizationMethodType>();
+
+		boolean classification;
+		final List<String> categories = new ArrayList<String>();
+		final List<String> entityIds = new ArrayList<String>();
+		final List<Integer> outputNeurons = new ArrayList<Integer>();
+		double[] outputOrigs;
+		double[] outputNorms;
+
+		List<FieldName> resultFields;
+		byte[] resultKinds;
+		Object[][] fixedResults;
+		int[] probabilityOutputs;
+
+		Builder(ModelManager<?> manager, FeatureEncoder encoder) {
+			this.manager = manager;
+			this.encoder = encoder;
+		}
+
+		/**
+		 * A neural input: field references to an active field or to a derived field, down to
+		 * the active field itself or a NormContinuous or NormDiscrete of one.
+		 */
+		void addInput(DerivedField derivedField) throws UnsupportedException {
+			checkDouble(derivedField);
+			Expression expression = derivedField.getExpression();
+			while (expression instanceof FieldRef) {
+				FieldRef fieldRef = (FieldRef) expression;
+				if (fieldRef.getMapMissingTo() != null) {
+					throw new UnsupportedException("mapMissingTo of " + fieldRef.getField());
+				}
+				int feature = this.encoder.getPosition(fieldRef.getField());
+				if (feature >= 0) {
+					add(numericFeature(feature), FIELD, 0.0, null, null, null, null);
+					return;
+				}
+				DerivedField referenced = this.manager.resolveField(fieldRef.getField());
+				if (referenced == null) {
+					throw new UnsupportedException("Neural input on " + fieldRef.getField());
+				}
+				checkDouble(referenced);
+				expression = referenced.getExpression();
+			}
+
+			if (expression instanceof NormContinuous) {
+				NormContinuous normContinuous = (NormContinuous) expression;
+				List<LinearNorm> linearNorms = normContinuous.getLinearNorms();
+				OutlierTreatmentMethodType outliers = normContinuous.getOutliers();
+				if (linearNorms.size() < 2 || (outliers == OutlierTreatmentMethodType.AS_MISSING_VALUES
+						&& normContinuous.getMapMissingTo() == null)) {
+					throw new UnsupportedException("NormContinuous of " + normContinuous.getField());
+				}
+				int feature = numericFeature(feature(normContinuous.getField()));
+				add(feature, NORM_CONTINUOUS, 0.0, normContinuous.getMapMissingTo(), outliers,
+						origs(linearNorms), norms(linearNorms));
+			} else if (expression instanceof NormDiscrete) {
+				NormDiscrete normDiscrete = (NormDiscrete) expression;
+				if (normDiscrete.getMethod() != NormDiscrete.Method.INDICATOR) {
+					throw new UnsupportedException("NormDiscrete method " + normDiscrete.getMethod());
+				}
+				int feature = feature(normDiscrete.getField());
+				add(feature, NORM_DISCRETE, this.encoder.parse(feature, normDiscrete.getValue()),
+						normDiscrete.getMapMissingTo(), null, null, null);
+			} else {
+				throw new UnsupportedException("Neural input expression " + expression);
+			}
+		}
+
+		private void add(int feature, byte kind, double category, Double missing,
+				OutlierTreatmentMethodType outliers, double[] origs, double[] norms) throws UnsupportedException {
+			if (missing != null && Double.isNaN(missing)) {
+				throw new UnsupportedException("NaN mapMissingTo");
+			}
+			this.inputFeatures.add(feature);
+			this.inputKinds.add(kind);
+			this.inputCategories.add(category);
+			this.inputMissing.add((missing == null) ? Double.NaN : missing);
+			this.inputOutliers.add(outliers);
+			this.inputOrigs.add(origs);
+			this.inputNorms.add(norms);
+		}
+
+		// Neural inputs are read as numbers, and so are only cast untouched into double derived fields
+		private static void checkDouble(DerivedField derivedField) throws UnsupportedException {
+			if (derivedField.getDataType() != DataType.DOUBLE) {
+				throw new UnsupportedException("Data type " + derivedField.getDataType() + " of " + derivedField.getName());
+			}
+		}
+
+		private int feature(FieldName name) throws UnsupportedException {
+			int feature = this.encoder.getPosition(name);
+			if (feature < 0) {
+				throw new UnsupportedException("Neural input on " + name + ", which is not an active field");
+			}
+			return feature;
+		}
+
+		private int numericFeature(int feature) throws UnsupportedException {
+			if (this.encoder.getType(feature) == FeatureEncoder.STRING) {
+				throw new UnsupportedException("Numeric neural input on " + this.encoder.getFields().get(feature));
+			}
+			return feature;
+		}
+
+		/**
+		 * A layer whose neurons are each connected to every neuron of the previous layer, in order.
+		 * @return the positions of the layer's neurons by id
+		 */
+		Map<String, Integer> addLayer(NeuralNetwork model, NeuralLayer layer, Map<String, Integer> previous)
+				throws UnsupportedException {
+			ActivationFunctionType activation = layer.getActivationFunction();
+			if (activation == null) {
+				activation = model.getActivationFunction();
+			}
+			if (activation == null || activation == ActivationFunctionType.RADIAL_BASIS) {
+				throw new UnsupportedException("Activation function " + activation);
+			}
+			NnNormalizationMethodType normalization = layer.getNormalizationMethod();
+			if (normalization == null) {
+				normalization = model.getNormalizationMethod();
+			}
+			if (normalization == null) {
+				throw new UnsupportedException("No normalization method");
+			}
+			Double threshold = layer.getThreshold();
+
+			List<Neuron> neurons = layer.getNeurons();
+			int n = previous.size();
+			double[] w = new double[neurons.size() * n];
+			double[] bias = new double[neurons.size()];
+			Map<String, Integer> positions = new HashMap<String, Integer>();
+			for (int j = 0; j < neurons.size(); j++) {
+				Neuron neuron = neurons.get(j);
+				List<Connection> connections = neuron.getConnections();
+				if (neuron.getBias() == null || connections.size() != n) {
+					throw new UnsupportedException("Neuron " + neuron.getId() + " is not fully connected");
+				}
+				for (int k = 0; k < n; k++) {
+					Integer from = previous.get(connections.get(k).getFrom());
+					if (from == null || from != k) {
+						throw new UnsupportedException("Neuron " + neuron.getId() + " is not fully connected");
+					}
+					w[j * n + k] = connections.get(k).getWeight();
+				}
+				bias[j] = neuron.getBias();
+				if (positions.put(neuron.getId(), j) != null) {
+					throw new UnsupportedException("Duplicate neuron " + neuron.getId());
+				}
+			}
+
+			this.weights.add(w);
+			this.biases.add(bias);
+			this.activations.add(activation);
+			this.thresholds.add((threshold != null) ? threshold : model.getThreshold());
+			this.normalizations.add(normalization);
+			return positions;
+		}
+
+		// Outputs are read from the last layer
+		void addOutput(Map<String, Integer> last, NeuralOutput neuralOutput) throws UnsupportedException {
+			Integer neuron = last.get(neuralOutput.getOutputNeuron());
+			if (neuron == null) {
+				throw new UnsupportedException("Neural output " + neuralOutput.getOutputNeuron() + " is not in the last layer");
+			}
+			this.outputNeurons.add(neuron);
+			this.entityIds.add(neuralOutput.getOutputNeuron());
+		}
+
+		private void allocateResults(FieldName target, List<OutputField> outputFields) {
+			int n = 1 + outputFields.size();
+			this.resultFields = ModelCompiler.resultFields(target, outputFields);
+			this.resultKinds = new byte[n];
+			this.fixedResults = new Object[n][this.categories.size()];
+			this.probabilityOutputs = new int[n];
+		}
+
+		// A classification: predicted values and entity ids are fixed by the winning category
+		void categoryResults(FieldName target, List<OutputField> outputFields) throws UnsupportedException {
+			allocateResults(target, outputFields);
+			for (int c = 0; c < this.categories.size(); c++) {
+				this.fixedResults[0][c] = this.categories.get(c);
+			}
+			for (int k = 0; k < outputFields.size(); k++) {
+				OutputField outputField = outputFields.get(k);
+				switch (ModelCompiler.feature(outputField)) {
+					case PROBABILITY:
+						ModelCompiler.checkDouble(outputField);
+						this.resultKinds[k + 1] = PROBABILITY;
+						this.probabilityOutputs[k + 1] = this.categories.indexOf(outputField.getValue());
+						break;
+					case ENTITY_ID:
+						for (int c = 0; c < this.categories.size(); c++) {
+							this.fixedResults[k + 1][c] = cast(outputField, this.entityIds.get(c));
+						}
+						break;
+					default:
+						for (int c = 0; c < this.categories.size(); c++) {
+							this.fixedResults[k + 1][c] = cast(outputField, this.categories.get(c));
+						}
+				}
+			}
+		}
+
+		// A regression: every result is the network's value
+		void valueResults(FieldName target, List<OutputField> outputFields) throws UnsupportedException {
+			allocateResults(target, outputFields);
+			for (int k = 0; k < outputFields.size(); k++) {
+				ModelCompiler.checkDouble(outputFields.get(k));
+				this.resultKinds[k + 1] = VALUE;
+			}
+			this.resultKinds[0] = VALUE;
+		}
+
+		// Keeps the results of resultFields alone, in their order, so the others are never computed
+		void projectResults(List<FieldName> resultFields) throws UnsupportedException {
+			int[] projection = ModelCompiler.projection(this.resultFields, resultFields);
+			if (projection == null) {
+				return;
+			}
+			this.resultFields = ModelCompiler.project(this.resultFields, projection);
+			this.resultKinds = ModelCompiler.project(this.resultKinds, projection);
+			this.fixedResults = ModelCompiler.project(this.fixedResults, projection);
+			this.probabilityOutputs = ModelCompiler.project(this.probabilityOutputs, projection);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package org.surus.pmml;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.Interval;
+import org.dmg.pmml.InvalidValueTreatmentMethodType;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.OpType;
+import org.dmg.pmml.OutlierTreatmentMethodType;
+import org.dmg.pmml.Value;
+import org.jpmml.manager.ModelManager;
+import org.surus.pmml.ModelCompiler.UnsupportedException;
+
+/**
+ * Encodes the active fields of a row into the primitive feature vector read by the
+ * compiled evaluators: numbers as themselves, strings as their index in a per-field
+ * dictionary of the values the model refers to (-1 for any other string) and missing
+ * values as NaN.
+ *
+ * encode only succeeds when the encoding is exactly what jpmml's argument preparation
+ * would produce. Cells of a type jpmml would convert or reject, NaN and -0.0, and
+ * values subject to missing value replacement, outlier treatment or invalid value
+ * treatment make it return false, so that the row is left to jpmml.
+ */
+public class FeatureEncoder {
+
+	static final byte DOUBLE  = 0;
+	static final byte FLOAT   = 1;
+	static final byte INTEGER = 2;
+	static final byte STRING  = 3;
+
+	private final List<FieldName> fields;
+	private final Map<FieldName, Integer> positions = new HashMap<FieldName, Integer>();
+
+	private final byte[] types;
+	private final boolean[] continuous;
+	private final List<Map<String, Integer>> dictionaries;
+	private final boolean[] missingReplaced;
+
+	// Outlier treatment other than asIs, over [lowValues, highValues]
+	private final boolean[] checkOutliers;
+	private final double[] lowValues;
+	private final double[] highValues;
+
+	// Invalid value treatment other than asIs: intervals as {left, right} pairs with NaN for
+	// an open end, then the valid categories or numbers
+	private final boolean[] checkValidity;
+	private final double[][] intervals;
+	private final Interval.Closure[][] closures;
+	private final BitSet[] validCategories;
+	private final double[][] validNumbers;
+
+	FeatureEncoder(ModelManager<?> manager, List<FieldName> fields) throws UnsupportedException {
+		int n = fields.size();
+		this.fields = fields;
+		this.types = new byte[n];
+		this.continuous = new boolean[n];
+		this.dictionaries = new ArrayList<Map<String, Integer>>(n);
+		this.missingReplaced = new boolean[n];
+		this.checkOutliers = new boolean[n];
+		this.lowValues = new double[n];
+		this.highValues = new double[n];
+		this.checkValidity = new boolean[n];
+		this.intervals = new double[n][];
+		this.closures = new Interval.Closure[n][];
+		this.validCategories = new BitSet[n];
+		this.validNumbers = new double[n][];
+
+		for (int i = 0; i < n; i++) {
+			FieldName name = fields.get(i);
+			DataField dataField = manager.getDataField(name);
+			MiningField miningField = manager.getMiningField(name);
+			if (dataField == null || miningField == null) {
+				throw new UnsupportedException("No data field for " + name);
+			}
+			this.positions.put(name, i);
+			this.dictionaries.add(new HashMap<String, Integer>());
+
+			switch (dataField.getDataType()) {
+				case DOUBLE:  this.types[i] = DOUBLE;  break;
+				case FLOAT:   this.types[i] = FLOAT;   break;
+				case INTEGER: this.types[i] = INTEGER; break;
+				case STRING:  this.types[i] = STRING;  break;
+				default: throw new UnsupportedException("Data type " + dataField.getDataType() + " of " + name);
+			}
+			if (dataField.getOptype() == OpType.CONTINUOUS && this.types[i] != STRING) {
+				this.continuous[i] = true;
+			} else if (dataField.getOptype() != OpType.CATEGORICAL) {
+				throw new UnsupportedException("Op type " + dataField.getOptype() + " of " + name);
+			}
+			this.missingReplaced[i] = miningField.getMissingValueReplacement() != null;
+
+			// Intervals, which jpmml also reads for outlier detection
+			List<Interval> fieldIntervals = dataField.getIntervals();
+			this.intervals[i] = new double[2 * fieldIntervals.size()];
+			this.closures[i] = new Interval.Closure[fieldIntervals.size()];
+			double low = Double.POSITIVE_INFINITY;
+			double high = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < fieldIntervals.size(); k++) {
+				Interval interval = fieldIntervals.get(k);
+				if (this.continuous[i] && (interval.getLeftMargin() == null || interval.getRightMargin() == null)) {
+					// jpmml's outlier range can not be computed over an open interval
+					throw new UnsupportedException("Open interval on " + name);
+				}
+				this.intervals[i][2*k]   = (interval.getLeftMargin() == null) ? Double.NaN : interval.getLeftMargin();
+				this.intervals[i][2*k+1] = (interval.getRightMargin() == null) ? Double.NaN : interval.getRightMargin();
+				this.closures[i][k] = interval.getClosure();
+				low = Math.min(low, this.intervals[i][2*k]);
+				high = Math.max(high, this.intervals[i][2*k+1]);
+			}
+
+			boolean asIs = miningField.getInvalidValueTreatment() == InvalidValueTreatmentMethodType.AS_IS;
+			this.validCategories[i] = new BitSet();
+			List<Double> valid = new ArrayList<Double>();
+			for (Value value : dataField.getValues()) {
+				switch (value.getProperty()) {
+					case VALID:
+						if (this.types[i] == STRING) {
+							this.validCategories[i].set(category(i, value.getValue()));
+						} else {
+							double number = parse(i, value.getValue());
+							valid.add(number);
+							if (this.continuous[i]) {
+								low = Math.min(low, Double.parseDouble(value.getValue()));
+								high = Math.max(high, Double.parseDouble(value.getValue()));
+							}
+						}
+						break;
+					case INVALID:
+						if (!asIs) {
+							throw new UnsupportedException("Invalid values of " + name);
+						}
+						if (this.types[i] != STRING) {
+							parse(i, value.getValue());
+						}
+						break;
+					default:
+						throw new UnsupportedException("Missing values of " + name);
+				}
+			}
+			this.validNumbers[i] = new double[valid.size()];
+			for (int k = 0; k < valid.size(); k++) {
+				this.validNumbers[i][k] = valid.get(k);
+			}
+
+			this.checkOutliers[i] = this.continuous[i] && low <= high
+					&& miningField.getOutlierTreatment() != OutlierTreatmentMethodType.AS_IS;
+			this.lowValues[i] = low;
+			this.highValues[i] = high;
+			this.checkValidity[i] = !asIs;
+		}
+	}
+
+	/**
+	 * @return the position of name in the feature vector, or -1 if it is not an active field
+	 */
+	public int getPosition(FieldName name) {
+		Integer position = this.positions.get(name);
+		return (position == null) ? -1 : position;
+	}
+
+	public List<FieldName> getFields() {
+		return fields;
+	}
+
+	public int size() {
+		return types.length;
+	}
+
+	byte getType(int i) {
+		return types[i];
+	}
+
+	boolean isContinuous(int i) {
+		return continuous[i];
+	}
+
+	// Dictionary index of a string value of field i, adding it while compiling
+	int category(int i, String value) {
+		Map<String, Integer> dictionary = this.dictionaries.get(i);
+		Integer index = dictionary.get(value);
+		if (index == null) {
+			index = dictionary.size();
+			dictionary.put(value, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Parses a constant compared with field i as jpmml would for the field's data type:
+	 * numbers to their value, strings to their dictionary index.
+	 */
+	double parse(int i, String value) throws UnsupportedException {
+		double result;
+		try {
+			switch (this.types[i]) {
+				case STRING:
+					return category(i, value);
+				case FLOAT:
+					result = Float.parseFloat(value);
+					break;
+				case INTEGER:
+					result = parseInteger(value);
+					break;
+				default:
+					result = Double.parseDouble(value);
+			}
+		} catch (NumberFormatException e) {
+			throw new UnsupportedException("Unparseable value " + value + " for " + this.fields.get(i));
+		}
+		if (Double.isNaN(result) || isNegativeZero(result)) {
+			throw new UnsupportedException("Unordered value " + value + " for " + this.fields.get(i));
+		}
+		return result;
+	}
+
+	// As jpmml's TypeUtil: an int, or a double that is a mathematical integer
+	private static int parseInteger(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			double result = Double.parseDouble(value);
+			if (Double.isInfinite(result) || result != Math.rint(result)) {
+				throw e;
+			}
+			return (int) result;
+		}
+	}
+
+	private static boolean isNegativeZero(double value) {
+		return Double.doubleToRawLongBits(value) == Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param row cells of getFields(), in order
+	 * @param features receives the encoded row
+	 * @return false if the row has to be prepared by jpmml instead
+	 */
+	public boolean encode(Object[] row, double[] features) {
+		for (int i = 0; i < this.types.length; i++) {
+			Object cell = row[i];
+			if (cell == null) {
+				if (this.missingReplaced[i]) {
+					return false;
+				}
+				features[i] = Double.NaN;
+				continue;
+			}
+
+			double value;
+			switch (this.types[i]) {
+				case DOUBLE:
+					if (cell instanceof Double) {
+						value = (Double) cell;
+					} else if (cell instanceof Integer) {
+						value = (Integer) cell;
+					} else if (cell instanceof Float) {
+						value = (Float) cell;
+					} else {
+						return false;
+					}
+					break;
+				case FLOAT:
+					if (cell instanceof Float) {
+						value = (Float) cell;
+					} else if (cell instanceof Integer) {
+						value = (float) (int) (Integer) cell;
+					} else {
+						return false;
+					}
+					break;
+				case INTEGER:
+					if (!(cell instanceof Integer)) {
+						return false;
+					}
+					value = (Integer) cell;
+					break;
+				default:
+					if (!(cell instanceof String)) {
+						return false;
+					}
+					Integer index = this.dictionaries.get(i).get(cell);
+					value = (index == null) ? -1 : index;
+			}
+			if (Double.isNaN(value) || isNegativeZero(value)) {
+				return false;
+			}
+			if (this.checkOutliers[i] && (value < this.lowValues[i] || value > this.highValues[i])) {
+				return false;
+			}
+			if (this.checkValidity[i] && !isValid(i, value)) {
+				return false;
+			}
+			features[i] = value;
+		}
+		return true;
+	}
+
+	// As jpmml's ArgumentUtil.isValid, for a non-missing encoded value
+	private boolean isValid(int i, double value) {
+		double[] intervals = this.intervals[i];
+		if (this.continuous[i] && intervals.length > 0) {
+			for (int k = 0; k < this.closures[i].length; k++) {
+				if (contains(this.closures[i][k], intervals[2*k], intervals[2*k+1], value)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (this.types[i] == STRING) {
+			return this.validCategories[i].isEmpty() || (value >= 0 && this.validCategories[i].get((int) value));
+		}
+		double[] valid = this.validNumbers[i];
+		if (valid.length == 0) {
+			return true;
+		}
+		for (double v : valid) {
+			if (v == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// As jpmml's DiscretizationUtil.contains, with NaN for a missing margin
+	private static boolean contains(Interval.Closure closure, double left, double right, double value) {
+		int leftOrder = Double.isNaN(left) ? 1 : Double.compare(value, left);
+		int rightOrder = Double.isNaN(right) ? -1 : Double.compare(value, right);
+		switch (closure) {
+			case OPEN_CLOSED:   return leftOrder > 0 && rightOrder <= 0;
+			case OPEN_OPEN:     return leftOrder > 0 && rightOrder < 0;
+			case CLOSED_OPEN:   return leftOrder >= 0 && rightOrder < 0;
+			default:            return leftOrder >= 0 && rightOrder <= 0;
+		}
+	}
+}
@@ -0,0 +1,605 @@
+package org.surus.pmml;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dmg.pmml.CategoricalPredictor;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.GeneralRegressionModel;
+import org.dmg.pmml.LinkFunctionType;
+import org.dmg.pmml.MiningFunctionType;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.NumericPredictor;
+import org.dmg.pmml.OpType;
+import org.dmg.pmml.OutputField;
+import org.dmg.pmml.PCell;
+import org.dmg.pmml.PPCell;
+import org.dmg.pmml.Predictor;
+import org.dmg.pmml.PredictorList;
+import org.dmg.pmml.RegressionModel;
+import org.dmg.pmml.RegressionNormalizationMethodType;
+import org.dmg.pmml.RegressionTable;
+import org.dmg.pmml.ResultFeatureType;
+import org.jpmml.manager.ModelManager;
+import org.surus.pmml.ModelCompiler.UnsupportedException;
+
+/**
+ * A RegressionModel, or a GeneralRegressionModel for regression, flattened into dot
+ * products over the feature vector.
+ *
+ * Each regression table is a range of terms, and each term a coefficient times a product
+ * of factors followed by a product of covariates. A factor is 1.0 where a feature equals
+ * a category (for strings, its dictionary index) and 0.0 elsewhere; a covariate is a
+ * feature raised to a power. Terms are summed in the order jpmml sums them, so results
+ * are identical. A term over a missing feature is skipped, except for the numeric
+ * predictors of a RegressionModel, which make the whole table missing.
+ */
+public class LinearModel extends CompiledModel {
+
+	// Result kinds: looked up by winning table, a table's probability, the regression value
+	private static final byte FIXED       = 0;
+	private static final byte PROBABILITY = 1;
+	private static final byte VALUE       = 2;
+
+	private final boolean classification;
+	private final RegressionNormalizationMethodType normalization;
+	private final LinkFunctionType link;
+	private final double offset;
+	private final int trials;
+	private final double linkParameter;
+
+	private final int[] tableStarts;
+	private final int[] tableEnds;
+
+	private final double[] coefficients;
+	private final boolean[] required;
+	private final int[] factorStarts;
+	private final int[] covariateStarts;
+	private final int[] termEnds;
+
+	// Factors hold a category, covariates an exponent
+	private final int[] handlerFeatures;
+	private final double[] handlerValues;
+
+	private final byte[] resultKinds;
+	private final Object[][] fixedResults;
+	private final Object[] nullResults;
+	private final int[] probabilityTables;
+
+	private LinearModel(Builder b) {
+		super(b.encoder, b.resultFields);
+		this.classification  = b.classification;
+		this.normalization   = b.normalization;
+		this.link            = b.link;
+		this.offset          = b.offset;
+		this.trials          = b.trials;
+		this.linkParameter   = b.linkParameter;
+
+		this.tableStarts     = toInts(b.tableStarts);
+		this.tableEnds       = toInts(b.tableEnds);
+
+		this.coefficients    = toDoubles(b.coefficients);
+		this.required        = new boolean[b.required.size()];
+		for (int k = 0; k < this.required.length; k++) {
+			this.required[k] = b.required.get(k);
+		}
+		this.factorStarts    = toInts(b.factorStarts);
+		this.covariateStarts = toInts(b.covariateStarts);
+		this.termEnds        = toInts(b.termEnds);
+
+		this.handlerFeatures = toInts(b.handlerFeatures);
+		this.handlerValues   = toDoubles(b.handlerValues);
+
+		this.resultKinds       = b.resultKinds;
+		this.fixedResults      = b.fixedResults;
+		this.nullResults       = b.nullResults;
+		this.probabilityTables = b.probabilityTables;
+	}
+
+	@Override
+	public Scratch newScratch() {
+		return new Scratch(this.encoder.size(), this.tableStarts.length, 0);
+	}
+
+	public int getNumTables() {
+		return tableStarts.length;
+	}
+
+	public int getNumTerms() {
+		return coefficients.length;
+	}
+
+	@Override
+	public boolean score(double[] features, Scratch scratch, Object[] results) {
+		double[] values = scratch.values;
+		if (!this.classification) {
+			if (!table(0, features, values)) {
+				for (int r = 0; r < results.length; r++) {
+					if (this.nullResults[r] == FAILED_RESULT) {
+						return false;
+					}
+					results[r] = this.nullResults[r];
+				}
+				return true;
+			}
+			Double value = (this.link != null) ? link(values[0]) : normalize(values[0]);
+			for (int r = 0; r < results.length; r++) {
+				results[r] = value;
+			}
+			return true;
+		}
+
+		// As RegressionModelEvaluator: every table is required, then normalized, and the first
+		// category with the strictly largest value wins
+		double sumExp = 0.0;
+		for (int t = 0; t < values.length; t++) {
+			if (!table(t, features, values)) {
+				return false;
+			}
+			sumExp += Math.exp(values[t]);
+		}
+		int best = 0;
+		for (int t = 0; t < values.length; t++) {
+			values[t] = normalize(values[t], sumExp);
+			if (Double.compare(values[t], values[best]) > 0) {
+				best = t;
+			}
+		}
+		for (int r = 0; r < results.length; r++) {
+			if (this.resultKinds[r] == PROBABILITY) {
+				int t = this.probabilityTables[r];
+				results[r] = (t >= 0) ? values[t] : 0.0;
+			} else {
+				Object value = this.fixedResults[r][best];
+				if (value == FAILED_RESULT) {
+					return false;
+				}
+				results[r] = value;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sums the terms of table t into values[t].
+	 * @return false if a required term is missing
+	 */
+	private boolean table(int t, double[] features, double[] values) {
+		double sum = 0.0;
+		terms:
+		for (int k = this.tableStarts[t]; k < this.tableEnds[t]; k++) {
+			int factorStart = this.factorStarts[k];
+			int covariateStart = this.covariateStarts[k];
+			int end = this.termEnds[k];
+
+			double factors = 1.0;
+			for (int h = factorStart; h < covariateStart; h++) {
+				double feature = features[this.handlerFeatures[h]];
+				if (Double.isNaN(feature)) {
+					if (this.required[k]) {
+						return false;
+					}
+					continue terms;
+				}
+				double value = (feature == this.handlerValues[h]) ? 1.0 : 0.0;
+				factors = (h == factorStart) ? value : factors * value;
+			}
+			double covariates = 1.0;
+			for (int h = covariateStart; h < end; h++) {
+				double feature = features[this.handlerFeatures[h]];
+				if (Double.isNaN(feature)) {
+					if (this.required[k]) {
+						return false;
+					}
+					continue terms;
+				}
+				double exponent = this.handlerValues[h];
+				double value = (exponent == 1.0) ? feature : Math.pow(feature, exponent);
+				covariates = (h == covariateStart) ? value : covariates * value;
+			}
+
+			double x;
+			if (covariateStart == factorStart) {
+				x = covariates;
+			} else if (end == covariateStart) {
+				x = factors;
+			} else {
+				x = factors * covariates;
+			}
+			sum += x * this.coefficients[k];
+		}
+		values[t] = sum;
+		return true;
+	}
+
+	// As RegressionModelEvaluator.normalizeRegressionResult
+	private double normalize(double value) {
+		switch (this.normalization) {
+			case NONE:
+				return value;
+			case EXP:
+				return Math.exp(value);
+			default:
+				return 1.0 / (1.0 + Math.exp(-value));
+		}
+	}
+
+	// As RegressionModelEvaluator.normalizeClassificationResult
+	private double normalize(double value, double sumExp) {
+		switch (this.normalization) {
+			case NONE:
+				return value;
+			case SOFTMAX:
+				return Math.exp(value) / sumExp;
+			case LOGIT:
+				return 1.0 / (1.0 + Math.exp(-value));
+			case CLOGLOG:
+				return 1.0 - Math.exp(-Math.exp(value));
+			default:
+				return Math.exp(-Math.exp(-value));
+		}
+	}
+
+	// As GeneralRegressionModelEvaluator.computeLink, with a constant offset and trials
+	private double link(double value) {
+		double a = this.offset;
+		double b = this.trials;
+		double d = this.linkParameter;
+		switch (this.link) {
+			case CLOGLOG:
+				return (1.0 - Math.exp(-Math.exp(value + a))) * b;
+			case IDENTITY:
+				return (value + a) * b;
+			case LOG:
+				return Math.exp(value + a) * b;
+			case LOGC:
+				return (1.0 - Math.exp(value + a)) * b;
+			case LOGIT:
+				return 1.0 / (1.0 + Math.exp(-(value + a))) * b;
+			case LOGLOG:
+				return Math.exp(-Math.exp(-(value + a))) * b;
+			case ODDSPOWER:
+				if (d < 0.0 || d > 0.0) {
+					return 1.0 / (1.0 + Math.pow(1.0 + d * (value + a), -(1.0 / d))) * b;
+				}
+				return 1.0 / (1.0 + Math.exp(-(value + a))) * b;
+			default:
+				if (d < 0.0 || d > 0.0) {
+					return Math.pow(value + a, 1.0 / d) * b;
+				}
+				return Math.exp(value + a) * b;
+		}
+	}
+
+	static LinearModel compile(ModelManager<?> manager, List<FieldName> resultFields) throws UnsupportedException {
+		Model model = manager.getModel();
+		FieldName target = ModelCompiler.checkModel(model);
+		Builder b = new Builder(new FeatureEncoder(manager, manager.getActiveFields()));
+
+		if (model instanceof RegressionModel) {
+			b.addRegressionModel((RegressionModel) model);
+		} else {
+			b.addGeneralRegressionModel((GeneralRegressionModel) model);
+		}
+
+		if (b.classification) {
+			if (manager.getDataField(target).getOptype() != OpType.CATEGORICAL) {
+				throw new UnsupportedException("Classification of " + target);
+			}
+			b.categoryResults(target, ModelCompiler.outputFields(model, target,
+					ResultFeatureType.PREDICTED_VALUE, ResultFeatureType.PROBABILITY));
+		} else {
+			b.valueResults(target, ModelCompiler.outputFields(model, target, ResultFeatureType.PREDICTED_VALUE));
+		}
+		b.projectResults(resultFields);
+		return new LinearModel(b);
+	}
+
+	// Tables under construction
+	private static class Builder {
+		final FeatureEncoder encoder;
+		boolean classification;
+		RegressionNormalizationMethodType normalization;
+		LinkFunctionType link;
+		double offset = 0.0;
+		int trials = 1;
+		double linkParameter;
+
+		final List<String> categories = new ArrayList<String>();
+		final List<Integer> tableStarts = new ArrayList<Integer>();
+		final List<Integer> tableEnds = new ArrayList<Integer>();
+
+		final List<Double> coefficients = new ArrayList<Double>();
+		final List<Boolean> required = new ArrayList<Boolean>();
+		final List<Integer> factorStarts = new ArrayList<Integer>();
+		final List<Integer> covariateStarts = new ArrayList<Integer>();
+		final List<Integer> termEnds = new ArrayList<Integer>();
+
+		final List<Integer> handlerFeatures = new ArrayList<Integer>();
+		final List<Double> handlerValues = new ArrayList<Double>();
+
+		List<FieldName> resultFields;
+		byte[] resultKinds;
+		Object[][] fixedResults;
+		Object[] nullResults;
+		int[] probabilityTables;
+
+		Builder(FeatureEncoder encoder) {
+			this.encoder = encoder;
+		}
+
+		void addRegressionModel(RegressionModel model) throws UnsupportedException {
+			List<RegressionTable> tables = model.getRegressionTables();
+			this.normalization = model.getNormalizationMethod();
+			switch (model.getFunctionName()) {
+				case REGRESSION:
+					if (tables.size() != 1) {
+						throw new UnsupportedException("Regression over " + tables.size() + " tables");
+					}
+					switch (this.normalization) {
+						case NONE: case SOFTMAX: case LOGIT: case EXP: break;
+						default: throw new UnsupportedException("Normalization " + this.normalization);
+					}
+					break;
+				case CLASSIFICATION:
+					this.classification = true;
+					if (tables.isEmpty()) {
+						throw new UnsupportedException("Classification without tables");
+					}
+					switch (this.normalization) {
+						case NONE: case SOFTMAX: case LOGIT: case CLOGLOG: case LOGLOG: break;
+						default: throw new UnsupportedException("Normalization " + this.normalization);
+					}
+					break;
+				default:
+					throw new UnsupportedException("Function " + model.getFunctionName());
+			}
+
+			Set<String> seen = new HashSet<String>();
+			for (RegressionTable table : tables) {
+				if (this.classification && (table.getTargetCategory() == null || !seen.add(table.getTargetCategory()))) {
+					throw new UnsupportedException("Target category " + table.getTargetCategory());
+				}
+				if (!table.getPredictorTerms().isEmpty()) {
+					throw new UnsupportedException("Predictor terms");
+				}
+				this.categories.add(table.getTargetCategory());
+				this.tableStarts.add(this.coefficients.size());
+				addTerm(table.getIntercept(), false);
+				endTerm();
+				for (NumericPredictor predictor : table.getNumericPredictors()) {
+					int feature = numericFeature(predictor.getName());
+					addTerm(predictor.getCoefficient(), true);
+					this.handlerFeatures.add(feature);
+					this.handlerValues.add((double) predictor.getExponent());
+					endTerm();
+				}
+				for (CategoricalPredictor predictor : table.getCategoricalPredictors()) {
+					int feature = feature(predictor.getName());
+					double category = this.encoder.parse(feature, predictor.getValue());
+					addTerm(predictor.getCoefficient(), false);
+					this.handlerFeatures.add(feature);
+					this.handlerValues.add(category);
+					startCovariates();
+					endTerm();
+				}
+				this.tableEnds.add(this.coefficients.size());
+			}
+		}
+
+		void addGeneralRegressionModel(GeneralRegressionModel model) throws UnsupportedException {
+			if (model.getFunctionName() != MiningFunctionType.REGRESSION) {
+				throw new UnsupportedException("Function " + model.getFunctionName());
+			}
+			switch (model.getModelType()) {
+				case REGRESSION:
+					break;
+				case GENERAL_LINEAR:
+				case GENERALIZED_LINEAR:
+					this.link = model.getLinkFunction();
+					if (this.link == null || model.getOffsetVariable() != null || model.getTrialsVariable() != null) {
+						throw new UnsupportedException("Link");
+					}
+					if (model.getOffsetValue() != null) {
+						this.offset = model.getOffsetValue();
+					}
+					if (model.getTrialsValue() != null) {
+						this.trials = model.getTrialsValue();
+					}
+					if (this.link == LinkFunctionType.POWER || this.link == LinkFunctionType.ODDSPOWER) {
+						if (model.getLinkParameter() == null) {
+							throw new UnsupportedException("Link parameter");
+						}
+						this.linkParameter = model.getLinkParameter();
+					}
+					break;
+				default:
+					throw new UnsupportedException("Model type " + model.getModelType());
+			}
+
+			Map<FieldName, Predictor> factors = predictors(model.getFactorList());
+			Map<FieldName, Predictor> covariates = predictors(model.getCovariateList());
+
+			// Rows of the PPMatrix by parameter, factors before covariates as jpmml multiplies them
+			Map<String, List<PPCell>> rowFactors = new LinkedHashMap<String, List<PPCell>>();
+			Map<String, List<PPCell>> rowCovariates = new LinkedHashMap<String, List<PPCell>>();
+			List<PPCell> ppCells = model.getPPMatrix().getPPCells();
+			if (ppCells.isEmpty()) {
+				throw new UnsupportedException("Empty PPMatrix");
+			}
+			for (PPCell ppCell : ppCells) {
+				if (ppCell.getTargetCategory() != null) {
+					throw new UnsupportedException("Target category " + ppCell.getTargetCategory());
+				}
+				Map<String, List<PPCell>> row;
+				if (factors.containsKey(ppCell.getPredictorName())) {
+					if (factors.get(ppCell.getPredictorName()).getMatrix() != null) {
+						throw new UnsupportedException("Contrast matrix for " + ppCell.getPredictorName());
+					}
+					row = rowFactors;
+				} else if (covariates.containsKey(ppCell.getPredictorName())) {
+					row = rowCovariates;
+				} else {
+					throw new UnsupportedException("Predictor " + ppCell.getPredictorName());
+				}
+				if (!row.containsKey(ppCell.getParameterName())) {
+					rowFactors.put(ppCell.getParameterName(), new ArrayList<PPCell>());
+					rowCovariates.put(ppCell.getParameterName(), new ArrayList<PPCell>());
+				}
+				row.get(ppCell.getParameterName()).add(ppCell);
+			}
+
+			List<PCell> pCells = model.getParamMatrix().getPCells();
+			if (pCells.isEmpty()) {
+				throw new UnsupportedException("Empty ParamMatrix");
+			}
+			this.categories.add(null);
+			this.tableStarts.add(this.coefficients.size());
+			for (PCell pCell : pCells) {
+				if (pCell.getTargetCategory() != null) {
+					throw new UnsupportedException("Target category " + pCell.getTargetCategory());
+				}
+				addTerm(pCell.getBeta(), false);
+				if (rowFactors.containsKey(pCell.getParameterName())) {
+					for (PPCell ppCell : rowFactors.get(pCell.getParameterName())) {
+						int feature = feature(ppCell.getPredictorName());
+						this.handlerFeatures.add(feature);
+						this.handlerValues.add(this.encoder.parse(feature, ppCell.getValue()));
+					}
+					startCovariates();
+					for (PPCell ppCell : rowCovariates.get(pCell.getParameterName())) {
+						this.handlerFeatures.add(numericFeature(ppCell.getPredictorName()));
+						try {
+							this.handlerValues.add(Double.valueOf(ppCell.getValue()));
+						} catch (NumberFormatException e) {
+							throw new UnsupportedException("Multiplicity " + ppCell.getValue());
+						}
+					}
+				}
+				endTerm();
+			}
+			this.tableEnds.add(this.coefficients.size());
+		}
+
+		private Map<FieldName, Predictor> predictors(PredictorList predictorList) throws UnsupportedException {
+			if (predictorList == null) {
+				throw new UnsupportedException("No predictor list");
+			}
+			Map<FieldName, Predictor> result = new LinkedHashMap<FieldName, Predictor>();
+			for (Predictor predictor : predictorList.getPredictors()) {
+				// jpmml reads every listed predictor, so each has to be an active field
+				feature(predictor.getName());
+				if (result.put(predictor.getName(), predictor) != null) {
+					throw new UnsupportedException("Duplicate predictor " + predictor.getName());
+				}
+			}
+			return result;
+		}
+
+		// Starts a term: factors are appended, then covariates after startCovariates, up to endTerm
+		private void addTerm(double coefficient, boolean required) {
+			this.coefficients.add(coefficient);
+			this.required.add(required);
+			this.factorStarts.add(this.handlerFeatures.size());
+			this.covariateStarts.add(this.handlerFeatures.size());
+		}
+
+		private void startCovariates() {
+			this.covariateStarts.set(this.covariateStarts.size() - 1, this.handlerFeatures.size());
+		}
+
+		private void endTerm() {
+			this.termEnds.add(this.handlerFeatures.size());
+		}
+
+		private int feature(FieldName name) throws UnsupportedException {
+			int feature = this.encoder.getPosition(name);
+			if (feature < 0) {
+				throw new UnsupportedException("Predictor on " + name + ", which is not an active field");
+			}
+			return feature;
+		}
+
+		// jpmml reads covariates as numbers, which strings are not
+		private int numericFeature(FieldName name) throws UnsupportedException {
+			int feature = feature(name);
+			if (this.encoder.getType(feature) == FeatureEncoder.STRING) {
+				throw new UnsupportedException("Numeric predictor on " + name);
+			}
+			return feature;
+		}
+
+		private void allocateResults(FieldName target, List<OutputField> outputFields) {
+			int n = 1 + outputFields.size();
+			this.resultFields = ModelCompiler.resultFields(target, outputFields);
+			this.resultKinds = new byte[n];
+			this.fixedResults = new Object[n][this.categories.size()];
+			this.nullResults = new Object[n];
+			this.probabilityTables = new int[n];
+		}
+
+		// A classification: predicted values are fixed by the winning table, probabilities are its value
+		void categoryResults(FieldName target, List<OutputField> outputFields) throws UnsupportedException {
+			allocateResults(target, outputFields);
+			for (int t = 0; t < this.categories.size(); t++) {
+				this.fixedResults[0][t] = this.categories.get(t);
+			}
+			for (int k = 0; k < outputFields.size(); k++) {
+				OutputField outputField = outputFields.get(k);
+				if (ModelCompiler.feature(outputField) == ResultFeatureType.PROBABILITY) {
+					ModelCompiler.checkDouble(outputField);
+					this.resultKinds[k + 1] = PROBABILITY;
+					this.probabilityTables[k + 1] = this.categories.indexOf(outputField.getValue());
+				} else {
+					for (int t = 0; t < this.categories.size(); t++) {
+						this.fixedResults[k + 1][t] = cast(outputField, this.categories.get(t));
+					}
+				}
+			}
+		}
+
+		// A regression: every result is the model's value, or null where it is missing
+		void valueResults(FieldName target, List<OutputField> outputFields) throws UnsupportedException {
+			allocateResults(target, outputFields);
+			for (int k = 0; k < outputFields.size(); k++) {
+				ModelCompiler.checkDouble(outputFields.get(k));
+				this.resultKinds[k + 1] = VALUE;
+				this.nullResults[k + 1] = cast(outputFields.get(k), null);
+			}
+			this.resultKinds[0] = VALUE;
+		}
+
+		// Keeps the results of resultFields alone, in their order, so the others are never computed
+		void projectResults(List<FieldName> resultFields) throws UnsupportedException {
+			int[] projection = ModelCompiler.projection(this.resultFields, resultFields);
+			if (projection == null) {
+				return;
+			}
+			this.resultFields = ModelCompiler.project(this.resultFields, projection);
+			this.resultKinds = ModelCompiler.project(this.resultKinds, projection);
+			this.fixedResults = ModelCompiler.project(this.fixedResults, projection);
+			this.nullResults = ModelCompiler.project(this.nullResults, projection);
+			this.probabilityTables = ModelCompiler.project(this.probabilityTables, projection);
+		}
+	}
+
+	private static int[] toInts(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	private static double[] toDoubles(List<Double> list) {
+		double[] result = new double[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+}
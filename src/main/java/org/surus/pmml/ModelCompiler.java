@@ -0,0 +1,214 @@
+package org.surus.pmml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dmg.pmml.DataType;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.GeneralRegressionModel;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.NeuralNetwork;
+import org.dmg.pmml.Output;
+import org.dmg.pmml.OutputField;
+import org.dmg.pmml.FieldUsageType;
+import org.dmg.pmml.RegressionModel;
+import org.dmg.pmml.ResultFeatureType;
+import org.dmg.pmml.Targets;
+import org.dmg.pmml.TreeModel;
+import org.jpmml.evaluator.Evaluator;
+import org.jpmml.manager.ModelManager;
+
+/**
+ * Compiles PMML models into CompiledModels where every construct of the model is
+ * supported, and otherwise leaves them to jpmml.
+ *
+ * Supported: TreeModel, and MiningModel ensembles of TreeModels voting
+ * (majorityVote, weightedMajorityVote) or averaging (sum, average, weightedAverage),
+ * as produced for random forests; RegressionModel, and GeneralRegressionModel for
+ * regression without contrast matrices or offset and trials variables; NeuralNetworks
+ * whose layers are fully connected.
+ */
+public final class ModelCompiler {
+
+	private ModelCompiler() {
+	}
+
+	/**
+	 * Thrown while compiling a model that uses something the compiled evaluators do not support.
+	 */
+	static class UnsupportedException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @return a compiled equivalent of evaluator, or null if the model can only be scored by jpmml
+	 */
+	public static CompiledModel compile(Evaluator evaluator) {
+		return compile(evaluator, null);
+	}
+
+	/**
+	 * @param resultFields the predicted and output fields to score, in this order, or null for
+	 * all of them; the others are not computed
+	 * @return a compiled equivalent of evaluator, or null if the model can only be scored by jpmml
+	 */
+	public static CompiledModel compile(Evaluator evaluator, List<FieldName> resultFields) {
+		if (!(evaluator instanceof ModelManager)) {
+			return null;
+		}
+		ModelManager<?> manager = (ModelManager<?>) evaluator;
+		try {
+			Model model = manager.getModel();
+			if (model instanceof TreeModel || model instanceof MiningModel) {
+				return TreeEnsemble.compile(manager, resultFields);
+			}
+			if (model instanceof RegressionModel || model instanceof GeneralRegressionModel) {
+				return LinearModel.compile(manager, resultFields);
+			}
+			if (model instanceof NeuralNetwork) {
+				return DenseNetwork.compile(manager, resultFields);
+			}
+			return null;
+		} catch (UnsupportedException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// e.g. a document jpmml itself would fail on when scoring
+			return null;
+		}
+	}
+
+	// Checks shared by every compiled model: scorable, no targets, a single predicted field
+	static FieldName checkModel(Model model) throws UnsupportedException {
+		if (!model.isScorable()) {
+			throw new UnsupportedException("Model is not scorable");
+		}
+		Targets targets = model.getTargets();
+		if (targets != null && !targets.getTargets().isEmpty()) {
+			throw new UnsupportedException("Targets");
+		}
+		FieldName target = null;
+		for (MiningField miningField : model.getMiningSchema().getMiningFields()) {
+			if (miningField.getUsageType() == FieldUsageType.PREDICTED) {
+				if (target != null) {
+					throw new UnsupportedException("Several predicted fields");
+				}
+				target = miningField.getName();
+			}
+		}
+		if (target == null) {
+			throw new UnsupportedException("No predicted field");
+		}
+		return target;
+	}
+
+	/**
+	 * @return the output fields of model, checking that each refers to target, has a
+	 * 		unique name and one of the given features
+	 */
+	static List<OutputField> outputFields(Model model, FieldName target, ResultFeatureType... features)
+			throws UnsupportedException {
+		List<OutputField> result = new ArrayList<OutputField>();
+		Output output = model.getOutput();
+		if (output == null) {
+			return result;
+		}
+		Set<FieldName> names = new HashSet<FieldName>();
+		names.add(target);
+		for (OutputField outputField : output.getOutputFields()) {
+			if (outputField.getTargetField() != null && !outputField.getTargetField().equals(target)) {
+				throw new UnsupportedException("Output field for another target");
+			}
+			if (!names.add(outputField.getName())) {
+				throw new UnsupportedException("Duplicate output field " + outputField.getName());
+			}
+			boolean supported = false;
+			for (ResultFeatureType feature : features) {
+				supported |= feature == feature(outputField);
+			}
+			if (!supported) {
+				throw new UnsupportedException("Output feature " + feature(outputField));
+			}
+			result.add(outputField);
+		}
+		return result;
+	}
+
+	static ResultFeatureType feature(OutputField outputField) {
+		return (outputField.getFeature() == null) ? ResultFeatureType.PREDICTED_VALUE : outputField.getFeature();
+	}
+
+	// Doubles computed per row are only passed through untouched by double outputs
+	static void checkDouble(OutputField outputField) throws UnsupportedException {
+		if (outputField.getDataType() != null && outputField.getDataType() != DataType.DOUBLE) {
+			throw new UnsupportedException("Output data type " + outputField.getDataType());
+		}
+	}
+
+	/**
+	 * @return the index among all of each kept result field, or null to keep them all
+	 */
+	static int[] projection(List<FieldName> all, List<FieldName> kept) throws UnsupportedException {
+		if (kept == null) {
+			return null;
+		}
+		int[] projection = new int[kept.size()];
+		for (int i = 0; i < projection.length; i++) {
+			projection[i] = all.indexOf(kept.get(i));
+			if (projection[i] < 0) {
+				throw new UnsupportedException("Result field " + kept.get(i));
+			}
+		}
+		return projection;
+	}
+
+	// The elements of values at the indices of projection, for the per-result tables of the compiled models
+	static byte[] project(byte[] values, int[] projection) {
+		byte[] result = new byte[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			result[i] = values[projection[i]];
+		}
+		return result;
+	}
+
+	static int[] project(int[] values, int[] projection) {
+		int[] result = new int[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			result[i] = values[projection[i]];
+		}
+		return result;
+	}
+
+	static <T> T[] project(T[] values, int[] projection) {
+		T[] result = Arrays.copyOf(values, projection.length);
+		for (int i = 0; i < projection.length; i++) {
+			result[i] = values[projection[i]];
+		}
+		return result;
+	}
+
+	static <T> List<T> project(List<T> values, int[] projection) {
+		List<T> result = new ArrayList<T>(projection.length);
+		for (int index : projection) {
+			result.add(values.get(index));
+		}
+		return result;
+	}
+
+	static List<FieldName> resultFields(FieldName target, List<OutputField> outputFields) {
+		List<FieldName> result = new ArrayList<FieldName>(1 + outputFields.size());
+		result.add(target);
+		for (OutputField outputField : outputFields) {
+			result.add(outputField.getName());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,96 @@
+package org.surus.pmml;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.dmg.pmml.PMML;
+import org.xml.sax.Locator;
+
+/**
+ * Precompiled binary form of a PMML model, so tasks can skip XML parsing and
+ * JAXB start-up entirely.
+ *
+ * <pre>
+ * magic "SRPM" | version int | key (modified UTF-8) | deflated Java serialization of the PMML tree
+ * </pre>
+ *
+ * The key is the PMMLModelCache key of the XML the artifact was compiled from, so
+ * artifacts and XML documents share cache entries. Readers reject any other magic
+ * or version with an IOException, and callers fall back to the XML.
+ */
+public final class PMMLArtifact {
+
+	public static final int MAGIC = 0x5352504D;		// "SRPM"
+	public static final int VERSION = 1;
+	public static final String EXTENSION = ".surus";
+
+	private PMMLArtifact() {}
+
+	public static void write(PMMLModel model, OutputStream out) throws IOException {
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeUTF(model.getKey());
+		header.flush();
+
+		DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION), 1 << 16);
+		ObjectOutputStream objects = new ObjectOutputStream(deflater) {
+			{
+				enableReplaceObject(true);
+			}
+
+			// JAXB attaches SAX locators to every element; they are not serializable and not needed to score
+			@Override
+			protected Object replaceObject(Object obj) {
+				return (obj instanceof Locator) ? null : obj;
+			}
+		};
+		objects.writeObject(model.getPMML());
+		objects.flush();
+		deflater.finish();
+		out.flush();
+	}
+
+	/**
+	 * @return the cache key the artifact was compiled under
+	 * @throws IOException if artifact is not a supported artifact
+	 */
+	public static String readKey(byte[] artifact) throws IOException {
+		return readHeader(new DataInputStream(new ByteArrayInputStream(artifact)));
+	}
+
+	public static PMMLModel read(byte[] artifact) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(artifact));
+		String key = readHeader(in);
+		ObjectInputStream objects = new ObjectInputStream(new InflaterInputStream(in, new Inflater(), 1 << 16));
+		try {
+			return new PMMLModel(key, (PMML) objects.readObject());
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Incompatible PMML artifact", e);
+		} catch (ClassCastException e) {
+			throw new IOException("Incompatible PMML artifact", e);
+		} finally {
+			objects.close();
+		}
+	}
+
+	private static String readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a PMML artifact");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported PMML artifact version: " + version);
+		}
+		return in.readUTF();
+	}
+}
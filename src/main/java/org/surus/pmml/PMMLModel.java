@@ -0,0 +1,86 @@
+package org.surus.pmml;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.IOUtil;
+import org.dmg.pmml.PMML;
+import org.jpmml.evaluator.Evaluator;
+import org.jpmml.evaluator.ModelEvaluatorFactory;
+import org.jpmml.manager.ModelManager;
+import org.jpmml.manager.PMMLManager;
+import org.xml.sax.SAXException;
+
+/**
+ * A parsed PMML document, the evaluator for its model and, where ModelCompiler
+ * supports the model, its compiled form. Instances are never modified after
+ * construction, so one instance can be shared by every UDF instance and scoring
+ * thread in the JVM; see PMMLModelCache.
+ */
+public class PMMLModel {
+
+	private final String key;
+	private final PMML pmml;
+	private final Evaluator evaluator;
+	private final List<FieldName> activeFields;
+	private final List<FieldName> predictedFields;
+	private final List<FieldName> outputFields;
+	private final CompiledModel compiled;
+
+	public PMMLModel(String key, PMML pmml) {
+		this.key = key;
+		this.pmml = pmml;
+
+		PMMLManager pmmlManager = new PMMLManager(pmml);
+		ModelManager<?> modelManager = pmmlManager.getModelManager(null, ModelEvaluatorFactory.getInstance());
+
+		this.evaluator 		 = (Evaluator) modelManager;
+		this.activeFields	 = Collections.unmodifiableList(this.evaluator.getActiveFields());
+		this.predictedFields = Collections.unmodifiableList(this.evaluator.getPredictedFields());
+		this.outputFields	 = Collections.unmodifiableList(this.evaluator.getOutputFields());
+		this.compiled		 = ModelCompiler.compile(this.evaluator);
+	}
+
+	/**
+	 * @param key identifies the document, see PMMLModelCache.key
+	 * @param content PMML XML
+	 */
+	public static PMMLModel parse(String key, byte[] content) throws SAXException, JAXBException {
+		return new PMMLModel(key, IOUtil.unmarshal(new ByteArrayInputStream(content)));
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public PMML getPMML() {
+		return pmml;
+	}
+
+	public Evaluator getEvaluator() {
+		return evaluator;
+	}
+
+	public List<FieldName> getActiveFields() {
+		return activeFields;
+	}
+
+	public List<FieldName> getPredictedFields() {
+		return predictedFields;
+	}
+
+	public List<FieldName> getOutputFields() {
+		return outputFields;
+	}
+
+	/**
+	 * @return the model compiled by ModelCompiler, or null if it can only be scored by jpmml
+	 */
+	public CompiledModel getCompiled() {
+		return compiled;
+	}
+}
@@ -0,0 +1,150 @@
+package org.surus.pmml;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Process-wide cache of parsed PMML models.
+ *
+ * Models are keyed by their path plus a SHA-256 checksum of the document, so
+ * every ScorePMML instance in a JVM, on the front end and across reused task
+ * attempts, shares one parsed model per document, and a changed document at the
+ * same path is parsed again. The cache only holds soft references: a model stays
+ * cached while any instance uses it, and afterwards until the collector needs
+ * the heap.
+ */
+public final class PMMLModelCache {
+
+	private static final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private static final ReferenceQueue<PMMLModel> queue = new ReferenceQueue<PMMLModel>();
+	private static final Object parseLock = new Object();
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private static class Entry extends SoftReference<PMMLModel> {
+		final String key;
+
+		Entry(String key, PMMLModel model) {
+			super(model, queue);
+			this.key = key;
+		}
+	}
+
+	private PMMLModelCache() {}
+
+	/**
+	 * @param path where the document was read from
+	 * @param content PMML XML
+	 * @return the shared model for content, parsing it on first use
+	 */
+	public static PMMLModel get(String path, byte[] content) throws SAXException, JAXBException {
+		purge();
+		String key = key(path, content);
+
+		PMMLModel model = lookup(key);
+		if (model != null) {
+			hits.incrementAndGet();
+			return model;
+		}
+
+		// Parse each document once, even when several instances start together
+		synchronized (parseLock) {
+			model = lookup(key);
+			if (model != null) {
+				hits.incrementAndGet();
+				return model;
+			}
+			model = PMMLModel.parse(key, content);
+			entries.put(key, new Entry(key, model));
+			misses.incrementAndGet();
+			return model;
+		}
+	}
+
+	/**
+	 * @param artifact a model written by PMMLArtifact
+	 * @return the shared model for the artifact's source document, deserializing it on first use
+	 * @throws IOException if the artifact is unreadable or of another version
+	 */
+	public static PMMLModel getCompiled(byte[] artifact) throws IOException {
+		purge();
+		String key = PMMLArtifact.readKey(artifact);
+
+		PMMLModel model = lookup(key);
+		if (model != null) {
+			hits.incrementAndGet();
+			return model;
+		}
+
+		synchronized (parseLock) {
+			model = lookup(key);
+			if (model != null) {
+				hits.incrementAndGet();
+				return model;
+			}
+			model = PMMLArtifact.read(artifact);
+			entries.put(key, new Entry(key, model));
+			misses.incrementAndGet();
+			return model;
+		}
+	}
+
+	private static PMMLModel lookup(String key) {
+		Entry entry = entries.get(key);
+		return (entry == null) ? null : entry.get();
+	}
+
+	// Drop entries whose models have been collected
+	private static void purge() {
+		Entry entry;
+		while ((entry = (Entry) queue.poll()) != null) {
+			entries.remove(entry.key, entry);
+		}
+	}
+
+	public static String key(String path, byte[] content) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(content);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder sb = new StringBuilder(path.length() + 1 + 2 * hash.length);
+		sb.append(path).append('@');
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static int size() {
+		purge();
+		return entries.size();
+	}
+
+	/**
+	 * Drops every cached model; instances already holding one keep using it.
+	 */
+	public static void clear() {
+		entries.clear();
+	}
+}
@@ -0,0 +1,406 @@
+package org.surus.pmml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.bind.JAXBException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.dmg.pmml.FieldName;
+import org.jpmml.evaluator.Evaluator;
+import org.jpmml.evaluator.EvaluatorUtil;
+import org.jpmml.evaluator.FieldValue;
+import org.xml.sax.SAXException;
+
+/**
+ * Scores rows of a PMML model independently of any front end: rows are arrays of
+ * the active field values, in the order of PMMLModel, and results are arrays of
+ * the decoded predicted fields followed by the output fields, or of the projection of
+ * them the scorer was created with.
+ *
+ * A scorer only holds immutable state, so one instance serves any number of
+ * threads. All mutable state lives in a Session, which a thread creates once and
+ * scores every row through; sessions must not be shared between threads.
+ */
+public class PMMLScorer {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final PMMLModel model;
+	private final FieldName[] activeFields;
+	private final FieldName[] resultFields;
+	private final CompiledModel compiled;
+
+	public PMMLScorer(PMMLModel model) {
+		this(model, null);
+	}
+
+	/**
+	 * @param resultFields the predicted and output fields to score, in any order, or null
+	 * for all of them; compiled models are compiled for these alone, so the others are not
+	 * computed, and jpmml does not decode them
+	 */
+	public PMMLScorer(PMMLModel model, List<FieldName> resultFields) {
+		this.model = model;
+		this.activeFields = model.getActiveFields().toArray(new FieldName[0]);
+		List<FieldName> modelResults = new ArrayList<FieldName>(model.getPredictedFields());
+		modelResults.addAll(model.getOutputFields());
+		if (resultFields == null || resultFields.equals(modelResults)) {
+			this.resultFields = modelResults.toArray(new FieldName[modelResults.size()]);
+			this.compiled = model.getCompiled();
+			return;
+		}
+		for (FieldName resultField : resultFields) {
+			if (!modelResults.contains(resultField)) {
+				throw new IllegalArgumentException(resultField+" is neither a predicted nor an output field of the model");
+			}
+		}
+		this.resultFields = resultFields.toArray(new FieldName[resultFields.size()]);
+		this.compiled = (model.getCompiled() != null) ? ModelCompiler.compile(model.getEvaluator(), resultFields) : null;
+	}
+
+	/**
+	 * Loads the model at modelPath on the front end, or anywhere without a task context.
+	 */
+	public static PMMLScorer load(String modelPath) throws IOException, SAXException, JAXBException {
+		return load(modelPath, new Configuration(), false);
+	}
+
+	/**
+	 * Loads the model at modelPath. The back end prefers, in order, a precompiled artifact
+	 * shipped to the working directory or the classpath and the XML in the distributed
+	 * cache; local mode has neither, so both ends finally read modelPath through its
+	 * Hadoop FileSystem.
+	 */
+	public static PMMLScorer load(String modelPath, Configuration conf, boolean backend) throws IOException, SAXException, JAXBException {
+		PMMLModel model = backend ? loadArtifact(modelPath) : null;
+		if (model == null) {
+			model = loadXML(modelPath, conf, backend);
+		}
+		return new PMMLScorer(model);
+	}
+
+	public PMMLModel getModel() {
+		return model;
+	}
+
+	public int getNumArguments() {
+		return activeFields.length;
+	}
+
+	public int getNumResults() {
+		return resultFields.length;
+	}
+
+	public List<FieldName> getResultFields() {
+		return Arrays.asList(resultFields);
+	}
+
+	/**
+	 * The position of each active field among columns, matched case-insensitively as
+	 * front ends lower-case their column names, or -1 where a field has no column.
+	 */
+	public int[] positions(List<String> columns) {
+		int[] positions = new int[activeFields.length];
+		for (int k = 0; k < positions.length; k++) {
+			positions[k] = -1;
+			for (int i = 0; i < columns.size(); i++) {
+				if (activeFields[k].getValue().equalsIgnoreCase(columns.get(i))) {
+					positions[k] = i;
+					break;
+				}
+			}
+		}
+		return positions;
+	}
+
+	public Session newSession() {
+		return new Session();
+	}
+
+	/**
+	 * Working memory of one scoring thread.
+	 */
+	public class Session {
+
+		private final CompiledModel.Scratch scratch = (compiled != null) ? compiled.newScratch() : null;
+		private final Map<FieldName, FieldValue> preparedRow = new LinkedHashMap<FieldName, FieldValue>();
+		private final Object[] arguments = new Object[activeFields.length];
+		private final Object[] results = new Object[resultFields.length];
+		private boolean[] scored = new boolean[0];
+		private long prepareFailures = 0;
+
+		private Session() {
+		}
+
+		/**
+		 * The row score() reads, to be filled in place.
+		 */
+		public Object[] getArguments() {
+			return arguments;
+		}
+
+		/**
+		 * Scores getArguments().
+		 * @return the results, overwritten by the next call
+		 */
+		public Object[] score() {
+			score(arguments, results);
+			return results;
+		}
+
+		/**
+		 * Scores one row into results.
+		 */
+		public void score(Object[] arguments, Object[] results) {
+			// Compiled models score the cells directly, leaving rows they can not reproduce exactly to jpmml
+			if (compiled == null || !compiled.evaluate(arguments, scratch, results)) {
+				evaluate(arguments, results);
+			}
+		}
+
+		/**
+		 * Scores count rows at once, through the compiled model's batch evaluation where
+		 * there is one.
+		 */
+		public void score(Object[][] arguments, int count, Object[][] results) {
+			if (compiled == null) {
+				for (int i = 0; i < count; i++) {
+					evaluate(arguments[i], results[i]);
+				}
+				return;
+			}
+			if (scored.length < count) {
+				scored = new boolean[count];
+			}
+			compiled.evaluate(arguments, count, scratch, results, scored);
+			for (int i = 0; i < count; i++) {
+				if (!scored[i]) {
+					evaluate(arguments[i], results[i]);
+				}
+			}
+		}
+
+		/**
+		 * @return rows whose values jpmml failed to prepare, i.e. to validate against the
+		 * data dictionary; their exceptions were rethrown to the caller
+		 */
+		public long getPrepareFailures() {
+			return prepareFailures;
+		}
+
+		// Scores one row with jpmml, decoding the projected results only
+		private void evaluate(Object[] arguments, Object[] results) {
+			Evaluator evaluator = model.getEvaluator();
+			try {
+				for (int k = 0; k < activeFields.length; k++) {
+					preparedRow.put(activeFields[k], EvaluatorUtil.prepare(evaluator, activeFields[k], arguments[k]));
+				}
+			} catch (RuntimeException e) {
+				prepareFailures++;
+				throw e;
+			}
+			Map<FieldName, ?> result = evaluator.evaluate(preparedRow);
+			for (int i = 0; i < resultFields.length; i++) {
+				results[i] = EvaluatorUtil.decode(result.get(resultFields[i]));
+			}
+		}
+	}
+
+	// The file name of modelPath
+	public static String modelName(String modelPath) {
+		return modelPath.substring(modelPath.lastIndexOf("/") + 1);
+	}
+
+	/**
+	 * The name modelPath is linked under in the distributed cache: its file name behind a hash
+	 * of the whole path, as models in different directories may share a file name, and all
+	 * links and shipped files of a job share one task directory.
+	 */
+	public static String cacheName(String modelPath) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(modelPath.getBytes(Charset.forName("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 6; i++) {
+			sb.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+		}
+		return sb.append('-').append(modelName(modelPath)).toString();
+	}
+
+	// The file name the artifact of modelPath is shipped under
+	static String artifactName(String modelPath) {
+		return cacheName(modelPath) + PMMLArtifact.EXTENSION;
+	}
+
+	/**
+	 * Front end: parses the XML once and writes the binary artifact to a local file named
+	 * after its key, for load to find on the back end.
+	 * @return the artifact, or null if the model can not be precompiled
+	 */
+	public static File compileArtifact(String modelPath) {
+		try {
+			PMMLModel model = loadXML(modelPath, new Configuration(), false);
+			String key = model.getKey();
+			File directory = new File(System.getProperty("java.io.tmpdir"), "surus-pmml-" + key.substring(key.lastIndexOf('@') + 1, key.lastIndexOf('@') + 17));
+			File artifact = new File(directory, artifactName(modelPath));
+			if (!artifact.isFile()) {
+				directory.mkdirs();
+				File temp = File.createTempFile(modelName(modelPath), ".tmp", directory);
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+				try {
+					PMMLArtifact.write(model, out);
+				} finally {
+					out.close();
+				}
+				if (!temp.renameTo(artifact) && !artifact.isFile()) {
+					temp.delete();
+					return null;
+				}
+			}
+			return artifact;
+		} catch (Throwable t) {
+			System.err.println("Unable to precompile "+modelPath+", shipping the XML instead: "+t);
+			return null;
+		}
+	}
+
+	// Back end: the precompiled artifact of modelPath, from the task directory or the job jar, or null if there is none
+	private static PMMLModel loadArtifact(String modelPath) {
+		String artifactName = artifactName(modelPath);
+		try {
+			InputStream in;
+			File file = new File("./"+artifactName);
+			if (file.isFile()) {
+				in = new FileInputStream(file);
+			} else {
+				in = PMMLScorer.class.getClassLoader().getResourceAsStream(artifactName);
+			}
+			if (in == null) {
+				return null;
+			}
+			byte[] artifact = readFully(in);
+
+			// Only the artifact compiled from modelPath itself, never a stale or foreign one of the same name
+			String key = PMMLArtifact.readKey(artifact);
+			if (!key.substring(0, Math.max(key.lastIndexOf('@'), 0)).equals(modelPath)) {
+				System.err.println(artifactName+" was compiled from "+key+", not "+modelPath+", falling back to the XML");
+				return null;
+			}
+			return PMMLModelCache.getCompiled(artifact);
+		} catch (IOException e) {
+			System.err.println("Unable to read "+artifactName+", falling back to the XML: "+e);
+			return null;
+		}
+	}
+
+	private static PMMLModel loadXML(String modelPath, Configuration conf, boolean backend) throws IOException, SAXException, JAXBException {
+		File cached = new File("./"+cacheName(modelPath));
+		Path path;
+		FileSystem fs;
+		if (backend && cached.isFile()) {
+			path = new Path(cached.getAbsoluteFile().toURI());
+			fs = FileSystem.getLocal(conf);
+		} else {
+			// Any scheme Hadoop knows; a path without one is a local file if there is one, else on the default file system
+			path = new Path(modelPath);
+			if (path.toUri().getScheme() == null && new File(modelPath).isFile()) {
+				fs = FileSystem.getLocal(conf);
+			} else {
+				fs = path.getFileSystem(conf);
+			}
+		}
+
+		// Parsed model, shared with every other instance in this JVM
+		return PMMLModelCache.get(modelPath, read(fs, path, conf));
+	}
+
+	/*
+	 * Reads path fully, decompressing it with the Hadoop codec its extension names (.gz,
+	 * .snappy, .bz2, .deflate) or, failing that, as gzip if it starts with the gzip magic.
+	 */
+	static byte[] read(FileSystem fs, Path path, Configuration conf) throws IOException {
+		long length = fs.getFileStatus(path).getLen();
+		InputStream in = new BufferedInputStream(fs.open(path, BUFFER_SIZE), BUFFER_SIZE);
+		try {
+			CompressionCodec codec = codecs(conf).getCodec(path);
+			if (codec != null) {
+				in = codec.createInputStream(in);
+			} else if (isGzip(in)) {
+				in = new GZIPInputStream(in, BUFFER_SIZE);
+			} else {
+				return readFully(in, length);
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return readFully(in, 4 * length);
+	}
+
+	// The configured codecs, or Hadoop's stock ones where the configuration names none
+	private static CompressionCodecFactory codecs(Configuration conf) {
+		if (conf.get("io.compression.codecs") == null) {
+			conf = new Configuration(conf);
+			conf.set("io.compression.codecs", GzipCodec.class.getName()+","+DefaultCodec.class.getName()+","
+					+BZip2Codec.class.getName()+","+SnappyCodec.class.getName());
+		}
+		return new CompressionCodecFactory(conf);
+	}
+
+	private static boolean isGzip(InputStream in) throws IOException {
+		in.mark(2);
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.reset();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		return readFully(in, BUFFER_SIZE);
+	}
+
+	// Reads in fully into a buffer presized to sizeHint
+	private static byte[] readFully(InputStream in, long sizeHint) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(1024, Math.min(sizeHint + 1, Integer.MAX_VALUE - 8)));
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+}
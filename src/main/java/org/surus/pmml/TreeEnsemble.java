@@ -0,0 +1,808 @@
+package org.surus.pmml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dmg.pmml.CompoundPredicate;
+import org.dmg.pmml.False;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.MiningFunctionType;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.OutputField;
+import org.dmg.pmml.Predicate;
+import org.dmg.pmml.ResultFeatureType;
+import org.dmg.pmml.ScoreDistribution;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.Segmentation;
+import org.dmg.pmml.SimplePredicate;
+import org.dmg.pmml.SimpleSetPredicate;
+import org.dmg.pmml.TreeModel;
+import org.dmg.pmml.True;
+import org.jpmml.evaluator.ArrayUtil;
+import org.jpmml.manager.ModelManager;
+import org.surus.pmml.ModelCompiler.UnsupportedException;
+
+/**
+ * A TreeModel, or a MiningModel ensemble of TreeModels, flattened into struct-of-arrays
+ * tables.
+ *
+ * A predicate is a row of the predicate table: its operator, the feature it reads, its
+ * threshold or category index, and a range of set members or operand predicates. A
+ * node is a row of the node table: its predicate, the contiguous range of its children
+ * and the index of its score. A tree is a root node plus jpmml's missing value and no
+ * true child strategies, and each segment of an ensemble adds a predicate and a weight.
+ * Scoring walks these arrays with jpmml's three-valued logic and does not allocate.
+ *
+ * Results that only depend on the node reached, or on the winning category of a vote,
+ * are cast to their output types once at compile time.
+ */
+public class TreeEnsemble extends CompiledModel {
+
+	// Predicate operators
+	private static final byte TRUE             = 0;
+	private static final byte FALSE            = 1;
+	private static final byte LESS_THAN        = 2;
+	private static final byte LESS_OR_EQUAL    = 3;
+	private static final byte GREATER_THAN     = 4;
+	private static final byte GREATER_OR_EQUAL = 5;
+	private static final byte EQUAL            = 6;
+	private static final byte NOT_EQUAL        = 7;
+	private static final byte IS_MISSING       = 8;
+	private static final byte IS_NOT_MISSING   = 9;
+	private static final byte IS_IN            = 10;
+	private static final byte IS_NOT_IN        = 11;
+	private static final byte AND              = 12;
+	private static final byte OR               = 13;
+	private static final byte XOR              = 14;
+	private static final byte SURROGATE        = 15;
+
+	// Predicate outcomes; FAILED is wherever jpmml throws
+	private static final int NO      = 0;
+	private static final int YES     = 1;
+	private static final int UNKNOWN = 2;
+	private static final int FAILED  = 3;
+
+	// Tree outcomes besides a node index
+	private static final int NULL_PREDICTION   = -1;
+	private static final int FAILED_PREDICTION = -2;
+
+	// Missing value and no true child strategies
+	private static final byte NULL_STRATEGY = 0;
+	private static final byte LAST_STRATEGY = 1;
+	private static final byte NONE_STRATEGY = 2;
+
+	// Ensemble methods
+	private static final byte SINGLE           = 0;
+	private static final byte VOTE             = 1;
+	private static final byte WEIGHTED_VOTE    = 2;
+	private static final byte SUM              = 3;
+	private static final byte AVERAGE          = 4;
+	private static final byte WEIGHTED_AVERAGE = 5;
+
+	// Result kinds: looked up by node or category, a category's vote share, the ensemble's value
+	private static final byte FIXED       = 0;
+	private static final byte PROBABILITY = 1;
+	private static final byte VALUE       = 2;
+
+	private final byte method;
+
+	private final byte[] predicateOps;
+	private final int[] predicateFeatures;
+	private final double[] predicateValues;
+	private final int[] predicateStarts;
+	private final int[] predicateEnds;
+	private final double[] members;
+	private final int[] operands;
+
+	private final int[] nodePredicates;
+	private final int[] childStarts;
+	private final int[] childEnds;
+	private final int[] nodeScores;
+
+	private final int[] roots;
+	private final byte[] missingValueStrategies;
+	private final byte[] noTrueChildStrategies;
+	private final int[] segmentPredicates;
+	private final double[] segmentWeights;
+
+	private final int numScores;
+	private final double[] scoreValues;
+
+	private final byte[] resultKinds;
+	private final Object[][] fixedResults;
+	private final Object[] nullResults;
+	private final int[] probabilityScores;
+
+	private TreeEnsemble(Builder b) {
+		super(b.encoder, b.resultFields);
+		this.method = b.method;
+
+		this.predicateOps      = toBytes(b.predicateOps);
+		this.predicateFeatures = toInts(b.predicateFeatures);
+		this.predicateValues   = toDoubles(b.predicateValues);
+		this.predicateStarts   = toInts(b.predicateStarts);
+		this.predicateEnds     = toInts(b.predicateEnds);
+		this.members           = toDoubles(b.members);
+		this.operands          = toInts(b.operands);
+
+		this.nodePredicates    = toInts(b.nodePredicates);
+		this.childStarts       = toInts(b.childStarts);
+		this.childEnds         = toInts(b.childEnds);
+		this.nodeScores        = toInts(b.nodeScores);
+
+		this.roots                  = toInts(b.roots);
+		this.missingValueStrategies = toBytes(b.missingValueStrategies);
+		this.noTrueChildStrategies  = toBytes(b.noTrueChildStrategies);
+		this.segmentPredicates      = toInts(b.segmentPredicates);
+		this.segmentWeights         = toDoubles(b.segmentWeights);
+
+		this.numScores         = b.scores.size();
+		this.scoreValues       = b.scoreValues;
+
+		this.resultKinds       = b.resultKinds;
+		this.fixedResults      = b.fixedResults;
+		this.nullResults       = b.nullResults;
+		this.probabilityScores = b.probabilityScores;
+	}
+
+	@Override
+	public Scratch newScratch() {
+		return new Scratch(this.encoder.size(), this.numScores, 2 * this.numScores);
+	}
+
+	public int getNumTrees() {
+		return roots.length;
+	}
+
+	public int getNumNodes() {
+		return nodePredicates.length;
+	}
+
+	@Override
+	public boolean score(double[] features, Scratch scratch, Object[] results) {
+		switch (this.method) {
+			case SINGLE: {
+				int node = walk(0, features);
+				if (node == FAILED_PREDICTION) {
+					return false;
+				}
+				for (int r = 0; r < results.length; r++) {
+					Object value = (node == NULL_PREDICTION) ? this.nullResults[r] : this.fixedResults[r][node];
+					if (value == FAILED_RESULT) {
+						return false;
+					}
+					results[r] = value;
+				}
+				return true;
+			}
+			case VOTE:
+			case WEIGHTED_VOTE:
+				return vote(features, scratch, results);
+			default:
+				return average(features, results);
+		}
+	}
+
+	// As MiningModelEvaluator: votes per category in order of first appearance, normalized,
+	// and the first category with the strictly largest share wins
+	private boolean vote(double[] features, Scratch scratch, Object[] results) {
+		double[] votes = scratch.values;
+		int[] order = scratch.indices;
+		int[] positions = scratch.indices;
+		int offset = this.numScores;
+		Arrays.fill(positions, offset, 2 * offset, -1);
+
+		int count = 0;
+		for (int t = 0; t < this.roots.length; t++) {
+			int status = test(this.segmentPredicates[t], features);
+			if (status == FAILED) {
+				return false;
+			}
+			if (status != YES) {
+				continue;
+			}
+			int node = walk(t, features);
+			if (node < 0 || this.nodeScores[node] < 0) {
+				// A null prediction or a node without a score has no category to vote for
+				return false;
+			}
+			int score = this.nodeScores[node];
+			if (positions[offset + score] < 0) {
+				positions[offset + score] = count;
+				order[count++] = score;
+				votes[score] = 0.0;
+			}
+			votes[score] = votes[score] + ((this.method == WEIGHTED_VOTE) ? this.segmentWeights[t] * 1.0 : 1.0);
+		}
+		if (count == 0) {
+			return false;
+		}
+
+		double sum = 0.0;
+		for (int k = 0; k < count; k++) {
+			sum += votes[order[k]];
+		}
+		int best = order[0];
+		for (int k = 0; k < count; k++) {
+			votes[order[k]] = votes[order[k]] / sum;
+			if (Double.compare(votes[order[k]], votes[best]) > 0) {
+				best = order[k];
+			}
+		}
+
+		for (int r = 0; r < results.length; r++) {
+			if (this.resultKinds[r] == PROBABILITY) {
+				int score = this.probabilityScores[r];
+				results[r] = (score >= 0 && positions[offset + score] >= 0) ? votes[score] : 0.0;
+			} else {
+				Object value = this.fixedResults[r][best];
+				if (value == FAILED_RESULT) {
+					return false;
+				}
+				results[r] = value;
+			}
+		}
+		return true;
+	}
+
+	// As MiningModelEvaluator for regression, over the scores parsed as doubles
+	private boolean average(double[] features, Object[] results) {
+		double sum = 0.0;
+		double weightedSum = 0.0;
+		int size = 0;
+		for (int t = 0; t < this.roots.length; t++) {
+			int status = test(this.segmentPredicates[t], features);
+			if (status == FAILED) {
+				return false;
+			}
+			if (status != YES) {
+				continue;
+			}
+			int node = walk(t, features);
+			if (node < 0 || this.nodeScores[node] < 0) {
+				return false;
+			}
+			double value = this.scoreValues[this.nodeScores[node]];
+			sum += value;
+			weightedSum += this.segmentWeights[t] * value;
+			size++;
+		}
+
+		double result;
+		switch (this.method) {
+			case SUM:     result = sum; break;
+			case AVERAGE: result = sum / (double) size; break;
+			default:      result = weightedSum / (double) size;
+		}
+		Double value = result;
+		for (int r = 0; r < results.length; r++) {
+			results[r] = value;
+		}
+		return true;
+	}
+
+	/**
+	 * Follows jpmml's TreeModelEvaluator: the first child whose predicate is true is
+	 * taken, and an unknown predicate or a node without a true child is resolved by the
+	 * tree's strategies.
+	 * @return the node reached, NULL_PREDICTION or FAILED_PREDICTION
+	 */
+	private int walk(int t, double[] features) {
+		int node = this.roots[t];
+		int status = test(this.nodePredicates[node], features);
+		if (status == FAILED) {
+			return FAILED_PREDICTION;
+		}
+		if (status == UNKNOWN) {
+			// lastPrediction has no last node at the root
+			return (this.missingValueStrategies[t] == NULL_STRATEGY) ? NULL_PREDICTION : FAILED_PREDICTION;
+		}
+		if (status == NO) {
+			return (this.noTrueChildStrategies[t] == NULL_STRATEGY) ? NULL_PREDICTION : FAILED_PREDICTION;
+		}
+
+		while (this.childStarts[node] < this.childEnds[node]) {
+			int next = -1;
+			for (int child = this.childStarts[node]; child < this.childEnds[node]; child++) {
+				status = test(this.nodePredicates[child], features);
+				if (status == FAILED) {
+					return FAILED_PREDICTION;
+				}
+				if (status == UNKNOWN) {
+					byte strategy = this.missingValueStrategies[t];
+					if (strategy == NULL_STRATEGY) {
+						return NULL_PREDICTION;
+					} else if (strategy == LAST_STRATEGY) {
+						return node;
+					}
+					continue;
+				}
+				if (status == YES) {
+					next = child;
+					break;
+				}
+			}
+			if (next < 0) {
+				return (this.noTrueChildStrategies[t] == NULL_STRATEGY) ? NULL_PREDICTION : node;
+			}
+			node = next;
+		}
+		return node;
+	}
+
+	// As jpmml's PredicateUtil, with missing features as NaN
+	private int test(int p, double[] features) {
+		byte op = this.predicateOps[p];
+		switch (op) {
+			case TRUE:
+				return YES;
+			case FALSE:
+				return NO;
+			case IS_MISSING:
+				return Double.isNaN(features[this.predicateFeatures[p]]) ? YES : NO;
+			case IS_NOT_MISSING:
+				return Double.isNaN(features[this.predicateFeatures[p]]) ? NO : YES;
+			case IS_IN:
+			case IS_NOT_IN: {
+				double value = features[this.predicateFeatures[p]];
+				if (Double.isNaN(value)) {
+					return FAILED;
+				}
+				boolean found = false;
+				for (int k = this.predicateStarts[p]; k < this.predicateEnds[p] && !found; k++) {
+					found = this.members[k] == value;
+				}
+				return (found == (op == IS_IN)) ? YES : NO;
+			}
+			case AND:
+			case OR:
+			case XOR: {
+				// Every operand is evaluated, as jpmml does
+				int result = test(this.operands[this.predicateStarts[p]], features);
+				for (int k = this.predicateStarts[p] + 1; k < this.predicateEnds[p]; k++) {
+					int value = test(this.operands[k], features);
+					if (result == FAILED || value == FAILED) {
+						result = FAILED;
+					} else if (op == AND) {
+						result = and(result, value);
+					} else if (op == OR) {
+						result = or(result, value);
+					} else {
+						result = (result == UNKNOWN || value == UNKNOWN) ? UNKNOWN : result ^ value;
+					}
+				}
+				return result;
+			}
+			case SURROGATE: {
+				for (int k = this.predicateStarts[p]; k < this.predicateEnds[p]; k++) {
+					int value = test(this.operands[k], features);
+					if (value != UNKNOWN) {
+						return value;
+					}
+				}
+				return UNKNOWN;
+			}
+			default: {
+				double value = features[this.predicateFeatures[p]];
+				if (Double.isNaN(value)) {
+					return UNKNOWN;
+				}
+				double threshold = this.predicateValues[p];
+				boolean result;
+				switch (op) {
+					case LESS_THAN:        result = value <  threshold; break;
+					case LESS_OR_EQUAL:    result = value <= threshold; break;
+					case GREATER_THAN:     result = value >  threshold; break;
+					case GREATER_OR_EQUAL: result = value >= threshold; break;
+					case EQUAL:            result = value == threshold; break;
+					default:               result = value != threshold;
+				}
+				return result ? YES : NO;
+			}
+		}
+	}
+
+	private static int and(int left, int right) {
+		if (left == NO || right == NO) {
+			return NO;
+		}
+		return (left == UNKNOWN || right == UNKNOWN) ? UNKNOWN : YES;
+	}
+
+	private static int or(int left, int right) {
+		if (left == YES || right == YES) {
+			return YES;
+		}
+		return (left == UNKNOWN || right == UNKNOWN) ? UNKNOWN : NO;
+	}
+
+	static TreeEnsemble compile(ModelManager<?> manager, List<FieldName> resultFields) throws UnsupportedException {
+		Model model = manager.getModel();
+		FieldName target = ModelCompiler.checkModel(model);
+		Builder b = new Builder(new FeatureEncoder(manager, manager.getActiveFields()));
+
+		MiningFunctionType function = model.getFunctionName();
+		if (function != MiningFunctionType.CLASSIFICATION && function != MiningFunctionType.REGRESSION) {
+			throw new UnsupportedException("Function " + function);
+		}
+		if (model instanceof TreeModel) {
+			b.method = SINGLE;
+			b.addSegment(b.addPredicate(TRUE, -1, 0, 0, 0), 1.0, (TreeModel) model);
+		} else {
+			MiningModel miningModel = (MiningModel) model;
+			Segmentation segmentation = miningModel.getSegmentation();
+			if (!miningModel.getEmbeddedModels().isEmpty() || segmentation == null) {
+				throw new UnsupportedException("Mining model without segments");
+			}
+			switch (segmentation.getMultipleModelMethod()) {
+				case MAJORITY_VOTE:          b.method = VOTE;             break;
+				case WEIGHTED_MAJORITY_VOTE: b.method = WEIGHTED_VOTE;    break;
+				case SUM:                    b.method = SUM;              break;
+				case AVERAGE:                b.method = AVERAGE;          break;
+				case WEIGHTED_AVERAGE:       b.method = WEIGHTED_AVERAGE; break;
+				default: throw new UnsupportedException("Method " + segmentation.getMultipleModelMethod());
+			}
+			if ((function == MiningFunctionType.CLASSIFICATION) != (b.method == VOTE || b.method == WEIGHTED_VOTE)) {
+				throw new UnsupportedException("Method " + segmentation.getMultipleModelMethod() + " for " + function);
+			}
+			for (Segment segment : segmentation.getSegments()) {
+				Model segmentModel = segment.getModel();
+				if (segment.getPredicate() == null || !(segmentModel instanceof TreeModel)
+						|| segmentModel.getFunctionName() != function) {
+					throw new UnsupportedException("Segment model");
+				}
+				ModelCompiler.checkModel(segmentModel);
+				if (segmentModel.getOutput() != null && !segmentModel.getOutput().getOutputFields().isEmpty()) {
+					throw new UnsupportedException("Segment output fields");
+				}
+				b.addSegment(b.addPredicate(segment.getPredicate()), segment.getWeight(), (TreeModel) segmentModel);
+			}
+		}
+
+		if (b.method == SINGLE) {
+			b.singleResults(target, ModelCompiler.outputFields(model, target,
+					ResultFeatureType.PREDICTED_VALUE, ResultFeatureType.PROBABILITY, ResultFeatureType.ENTITY_ID));
+		} else if (b.method == VOTE || b.method == WEIGHTED_VOTE) {
+			b.voteResults(target, ModelCompiler.outputFields(model, target,
+					ResultFeatureType.PREDICTED_VALUE, ResultFeatureType.PROBABILITY));
+		} else {
+			b.valueResults(target, ModelCompiler.outputFields(model, target, ResultFeatureType.PREDICTED_VALUE));
+		}
+		b.projectResults(resultFields);
+		return new TreeEnsemble(b);
+	}
+
+	// Tables under construction
+	private static class Builder {
+		final FeatureEncoder encoder;
+		byte method;
+
+		final List<Byte> predicateOps = new ArrayList<Byte>();
+		final List<Integer> predicateFeatures = new ArrayList<Integer>();
+		final List<Double> predicateValues = new ArrayList<Double>();
+		final List<Integer> predicateStarts = new ArrayList<Integer>();
+		final List<Integer> predicateEnds = new ArrayList<Integer>();
+		final List<Double> members = new ArrayList<Double>();
+		final List<Integer> operands = new ArrayList<Integer>();
+
+		final List<Node> nodes = new ArrayList<Node>();
+		final List<Integer> nodePredicates = new ArrayList<Integer>();
+		final List<Integer> childStarts = new ArrayList<Integer>();
+		final List<Integer> childEnds = new ArrayList<Integer>();
+		final List<Integer> nodeScores = new ArrayList<Integer>();
+
+		final List<Integer> roots = new ArrayList<Integer>();
+		final List<Byte> missingValueStrategies = new ArrayList<Byte>();
+		final List<Byte> noTrueChildStrategies = new ArrayList<Byte>();
+		final List<Integer> segmentPredicates = new ArrayList<Integer>();
+		final List<Double> segmentWeights = new ArrayList<Double>();
+
+		final List<String> scores = new ArrayList<String>();
+		final Map<String, Integer> scoreIndex = new HashMap<String, Integer>();
+		double[] scoreValues;
+
+		List<FieldName> resultFields;
+		byte[] resultKinds;
+		Object[][] fixedResults;
+		Object[] nullResults;
+		int[] probabilityScores;
+
+		Builder(FeatureEncoder encoder) {
+			this.encoder = encoder;
+		}
+
+		int addPredicate(byte op, int feature, double value, int start, int end) {
+			this.predicateOps.add(op);
+			this.predicateFeatures.add(feature);
+			this.predicateValues.add(value);
+			this.predicateStarts.add(start);
+			this.predicateEnds.add(end);
+			return this.predicateOps.size() - 1;
+		}
+
+		int addPredicate(Predicate predicate) throws UnsupportedException {
+			if (predicate instanceof True) {
+				return addPredicate(TRUE, -1, 0, 0, 0);
+			}
+			if (predicate instanceof False) {
+				return addPredicate(FALSE, -1, 0, 0, 0);
+			}
+
+			if (predicate instanceof SimplePredicate) {
+				SimplePredicate simplePredicate = (SimplePredicate) predicate;
+				int feature = feature(simplePredicate.getField());
+				byte op;
+				switch (simplePredicate.getOperator()) {
+					case IS_MISSING:       return addPredicate(IS_MISSING, feature, 0, 0, 0);
+					case IS_NOT_MISSING:   return addPredicate(IS_NOT_MISSING, feature, 0, 0, 0);
+					case EQUAL:            op = EQUAL;            break;
+					case NOT_EQUAL:        op = NOT_EQUAL;        break;
+					case LESS_THAN:        op = LESS_THAN;        break;
+					case LESS_OR_EQUAL:    op = LESS_OR_EQUAL;    break;
+					case GREATER_THAN:     op = GREATER_THAN;     break;
+					case GREATER_OR_EQUAL: op = GREATER_OR_EQUAL; break;
+					default: throw new UnsupportedException("Operator " + simplePredicate.getOperator());
+				}
+				if (op != EQUAL && op != NOT_EQUAL && !this.encoder.isContinuous(feature)) {
+					// jpmml can not order categorical values
+					throw new UnsupportedException("Comparison of categorical " + simplePredicate.getField());
+				}
+				if (simplePredicate.getValue() == null) {
+					throw new UnsupportedException("Predicate without a value");
+				}
+				return addPredicate(op, feature, this.encoder.parse(feature, simplePredicate.getValue()), 0, 0);
+			}
+
+			if (predicate instanceof SimpleSetPredicate) {
+				SimpleSetPredicate setPredicate = (SimpleSetPredicate) predicate;
+				int feature = feature(setPredicate.getField());
+				byte op;
+				switch (setPredicate.getBooleanOperator()) {
+					case IS_IN:     op = IS_IN;     break;
+					case IS_NOT_IN: op = IS_NOT_IN; break;
+					default: throw new UnsupportedException("Operator " + setPredicate.getBooleanOperator());
+				}
+				int start = this.members.size();
+				for (String member : ArrayUtil.getContent(setPredicate.getArray())) {
+					this.members.add(this.encoder.parse(feature, member));
+				}
+				return addPredicate(op, feature, 0, start, this.members.size());
+			}
+
+			if (predicate instanceof CompoundPredicate) {
+				CompoundPredicate compoundPredicate = (CompoundPredicate) predicate;
+				byte op;
+				switch (compoundPredicate.getBooleanOperator()) {
+					case AND:       op = AND;       break;
+					case OR:        op = OR;        break;
+					case XOR:       op = XOR;       break;
+					case SURROGATE: op = SURROGATE; break;
+					default: throw new UnsupportedException("Operator " + compoundPredicate.getBooleanOperator());
+				}
+				List<Predicate> predicates = compoundPredicate.getPredicates();
+				if (predicates.size() < 2) {
+					throw new UnsupportedException("Compound predicate with fewer than two operands");
+				}
+				List<Integer> compiled = new ArrayList<Integer>(predicates.size());
+				for (Predicate operand : predicates) {
+					compiled.add(addPredicate(operand));
+				}
+				int start = this.operands.size();
+				this.operands.addAll(compiled);
+				return addPredicate(op, -1, 0, start, this.operands.size());
+			}
+
+			throw new UnsupportedException("Predicate " + predicate.getClass().getSimpleName());
+		}
+
+		private int feature(FieldName name) throws UnsupportedException {
+			int feature = this.encoder.getPosition(name);
+			if (feature < 0) {
+				throw new UnsupportedException("Predicate on " + name + ", which is not an active field");
+			}
+			return feature;
+		}
+
+		// Lays out the tree breadth first, so that the children of each node are contiguous
+		void addSegment(int predicate, double weight, TreeModel tree) throws UnsupportedException {
+			this.segmentPredicates.add(predicate);
+			this.segmentWeights.add(weight);
+			switch (tree.getMissingValueStrategy()) {
+				case NULL_PREDICTION: this.missingValueStrategies.add(NULL_STRATEGY); break;
+				case LAST_PREDICTION: this.missingValueStrategies.add(LAST_STRATEGY); break;
+				case NONE:            this.missingValueStrategies.add(NONE_STRATEGY); break;
+				default: throw new UnsupportedException("Missing value strategy " + tree.getMissingValueStrategy());
+			}
+			switch (tree.getNoTrueChildStrategy()) {
+				case RETURN_NULL_PREDICTION: this.noTrueChildStrategies.add(NULL_STRATEGY); break;
+				case RETURN_LAST_PREDICTION: this.noTrueChildStrategies.add(LAST_STRATEGY); break;
+				default: throw new UnsupportedException("No true child strategy " + tree.getNoTrueChildStrategy());
+			}
+			if (tree.getNode() == null) {
+				throw new UnsupportedException("Tree without a root");
+			}
+
+			int base = this.nodes.size();
+			this.roots.add(base);
+			List<Node> queue = new ArrayList<Node>();
+			queue.add(tree.getNode());
+			for (int q = 0; q < queue.size(); q++) {
+				Node node = queue.get(q);
+				if (node.getPredicate() == null || node.getEmbeddedModel() != null) {
+					throw new UnsupportedException("Node " + node.getId());
+				}
+				this.nodes.add(node);
+				this.nodePredicates.add(addPredicate(node.getPredicate()));
+				this.childStarts.add(base + queue.size());
+				queue.addAll(node.getNodes());
+				this.childEnds.add(base + queue.size());
+				String score = score(node);
+				this.nodeScores.add((score == null) ? -1 : scoreIndex(score));
+			}
+		}
+
+		private int scoreIndex(String score) {
+			Integer index = this.scoreIndex.get(score);
+			if (index == null) {
+				index = this.scores.size();
+				this.scores.add(score);
+				this.scoreIndex.put(score, index);
+			}
+			return index;
+		}
+
+		// As jpmml's NodeClassificationMap
+		static Map<String, Double> distribution(Node node) {
+			Map<String, Double> result = new LinkedHashMap<String, Double>();
+			double sum = 0.0;
+			for (ScoreDistribution scoreDistribution : node.getScoreDistributions()) {
+				sum += scoreDistribution.getRecordCount();
+			}
+			for (ScoreDistribution scoreDistribution : node.getScoreDistributions()) {
+				Double value = scoreDistribution.getProbability();
+				if (value == null) {
+					value = scoreDistribution.getRecordCount() / sum;
+				}
+				result.put(scoreDistribution.getValue(), value);
+			}
+			return result;
+		}
+
+		// The node's score, or else its most probable category, or null where jpmml throws
+		static String score(Node node) {
+			if (node.getScore() != null) {
+				return node.getScore();
+			}
+			Map.Entry<String, Double> best = null;
+			for (Map.Entry<String, Double> entry : distribution(node).entrySet()) {
+				if (best == null || entry.getValue().compareTo(best.getValue()) > 0) {
+					best = entry;
+				}
+			}
+			return (best == null) ? null : best.getKey();
+		}
+
+		private void allocateResults(FieldName target, List<OutputField> outputFields, int numFixed) {
+			int n = 1 + outputFields.size();
+			this.resultFields = ModelCompiler.resultFields(target, outputFields);
+			this.resultKinds = new byte[n];
+			Arrays.fill(this.resultKinds, FIXED);
+			this.fixedResults = new Object[n][numFixed];
+			this.nullResults = new Object[n];
+			this.probabilityScores = new int[n];
+		}
+
+		// A single tree: every result is fixed by the node reached
+		void singleResults(FieldName target, List<OutputField> outputFields) {
+			allocateResults(target, outputFields, this.nodes.size());
+			for (int node = 0; node < this.nodes.size(); node++) {
+				int score = this.nodeScores.get(node);
+				this.fixedResults[0][node] = (score < 0) ? FAILED_RESULT : this.scores.get(score);
+				for (int k = 0; k < outputFields.size(); k++) {
+					OutputField outputField = outputFields.get(k);
+					Object value;
+					switch (ModelCompiler.feature(outputField)) {
+						case PROBABILITY: {
+							Double probability = distribution(this.nodes.get(node)).get(outputField.getValue());
+							value = cast(outputField, (probability == null) ? 0.0 : probability);
+							break;
+						}
+						case ENTITY_ID:
+							value = cast(outputField, this.nodes.get(node).getId());
+							break;
+						default:
+							value = (score < 0) ? FAILED_RESULT : cast(outputField, this.scores.get(score));
+					}
+					this.fixedResults[k + 1][node] = value;
+				}
+			}
+			this.nullResults[0] = null;
+			for (int k = 0; k < outputFields.size(); k++) {
+				OutputField outputField = outputFields.get(k);
+				boolean predicted = ModelCompiler.feature(outputField) == ResultFeatureType.PREDICTED_VALUE;
+				this.nullResults[k + 1] = predicted ? cast(outputField, null) : FAILED_RESULT;
+			}
+		}
+
+		// A vote: predicted values are fixed by the winning category, probabilities are its share
+		void voteResults(FieldName target, List<OutputField> outputFields) throws UnsupportedException {
+			allocateResults(target, outputFields, this.scores.size());
+			for (int score = 0; score < this.scores.size(); score++) {
+				this.fixedResults[0][score] = this.scores.get(score);
+			}
+			for (int k = 0; k < outputFields.size(); k++) {
+				OutputField outputField = outputFields.get(k);
+				if (ModelCompiler.feature(outputField) == ResultFeatureType.PROBABILITY) {
+					ModelCompiler.checkDouble(outputField);
+					Integer score = this.scoreIndex.get(outputField.getValue());
+					this.resultKinds[k + 1] = PROBABILITY;
+					this.probabilityScores[k + 1] = (score == null) ? -1 : score;
+				} else {
+					for (int score = 0; score < this.scores.size(); score++) {
+						this.fixedResults[k + 1][score] = cast(outputField, this.scores.get(score));
+					}
+				}
+			}
+		}
+
+		// An average: every result is the ensemble's value
+		void valueResults(FieldName target, List<OutputField> outputFields) throws UnsupportedException {
+			allocateResults(target, outputFields, 0);
+			Arrays.fill(this.resultKinds, VALUE);
+			for (OutputField outputField : outputFields) {
+				ModelCompiler.checkDouble(outputField);
+			}
+			this.scoreValues = new double[this.scores.size()];
+			for (int score = 0; score < this.scores.size(); score++) {
+				try {
+					this.scoreValues[score] = Double.parseDouble(this.scores.get(score));
+				} catch (NumberFormatException e) {
+					throw new UnsupportedException("Non-numeric score " + this.scores.get(score));
+				}
+			}
+		}
+
+		// Keeps the results of resultFields alone, in their order, so the others are never computed
+		void projectResults(List<FieldName> resultFields) throws UnsupportedException {
+			int[] projection = ModelCompiler.projection(this.resultFields, resultFields);
+			if (projection == null) {
+				return;
+			}
+			this.resultFields = ModelCompiler.project(this.resultFields, projection);
+			this.resultKinds = ModelCompiler.project(this.resultKinds, projection);
+			this.fixedResults = ModelCompiler.project(this.fixedResults, projection);
+			this.nullResults = ModelCompiler.project(this.nullResults, projection);
+			this.probabilityScores = ModelCompiler.project(this.probabilityScores, projection);
+		}
+	}
+
+	private static byte[] toBytes(List<Byte> list) {
+		byte[] result = new byte[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	private static int[] toInts(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	private static double[] toDoubles(List<Double> list) {
+		double[] result = new double[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,81 @@
+package org.surus.batch;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.surus.math.RobustAnomalyDetector;
+
+public class RADBatchRunner_Test {
+
+	@Test
+	public void testRun() throws Exception {
+		StringBuilder input = new StringBuilder();
+		for (int s = 0; s < 20; s++) {
+			input.append("series_").append(s);
+			for (int n = 0; n < 63; n++) {
+				double value = (s == 0) ? 0 : 10 + s + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+				input.append(',').append(value);
+			}
+			input.append('\n');
+		}
+
+		RADBatchRunner runner = new RADBatchRunner(new RobustAnomalyDetector(7, 9, false), 4);
+		StringWriter output = new StringWriter();
+		runner.run(new BufferedReader(new StringReader(input.toString())), output);
+
+		String[] lines = output.toString().split("\n");
+		assertEquals(20 * 63, lines.length);
+		assertEquals(20, runner.getNumSeries());
+		assertEquals(1, runner.getNumSkipped());
+		assertTrue(runner.getSeriesPerSecond() > 0);
+		assertTrue(runner.getLatencyPercentile(50) <= runner.getLatencyPercentile(99));
+		for (String line : lines) {
+			String[] fields = line.split(",", -1);
+			assertEquals(7, fields.length);
+			if (fields[0].equals("series_0")) {
+				assertEquals("", fields[6]);
+			}
+		}
+	}
+
+	@Test
+	public void testFailedSeries() throws Exception {
+		StringBuilder input = new StringBuilder();
+		for (int s = 0; s < 4; s++) {
+			input.append("series_").append(s);
+			int length = (s == 2) ? 62 : 63;
+			for (int n = 0; n < length; n++) {
+				input.append(',').append((s == 1 && n == 5) ? "x" : String.valueOf(10 + s + Math.sin(2*Math.PI*n/7)));
+			}
+			input.append('\n');
+		}
+
+		// A malformed cell and a series of the wrong length fail only their own series
+		RADBatchRunner runner = new RADBatchRunner(new RobustAnomalyDetector(7, 9, false), 2);
+		StringWriter output = new StringWriter();
+		runner.run(new BufferedReader(new StringReader(input.toString())), output);
+
+		String[] lines = output.toString().split("\n");
+		assertEquals(3 * 63 + 62, lines.length);
+		assertEquals(4, runner.getNumSeries());
+		assertEquals(2, runner.getNumFailed());
+		assertEquals(0, runner.getNumSkipped());
+
+		// Failures are not timed, so they do not pull the percentiles down to 0
+		assertTrue(runner.getLatencyPercentile(0) > 0);
+		for (String line : lines) {
+			String[] fields = line.split(",", -1);
+			assertEquals(7, fields.length);
+			boolean failed = fields[0].equals("series_1") || fields[0].equals("series_2");
+			assertEquals(failed, fields[6].isEmpty());
+			if (fields[0].equals("series_1") && fields[1].equals("5")) {
+				assertEquals("NaN", fields[2]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.surus.hive;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Test;
+import org.surus.math.RobustAnomalyDetector;
+import org.surus.math.RobustAnomalyDetector.Decomposition;
+
+public class RAD_Test {
+
+	private double[] series() {
+		double[] ts = new double[63];
+		for (int n = 0; n < ts.length; n++) {
+			ts[n] = 10 + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+		}
+		return ts;
+	}
+
+	// Argument inspectors as Hive passes them to initialize, in a struct of col0, col1, ...
+	private static StructObjectInspector arguments(ObjectInspector... argOIs) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < argOIs.length; i++) {
+			names.add("col"+i);
+		}
+		return ObjectInspectorFactory.getStandardStructObjectInspector(names, Arrays.asList(argOIs));
+	}
+
+	@Test
+	public void testProcess() throws Exception {
+		double[] ts = series();
+		Decomposition expected = new RobustAnomalyDetector(7, 9, false).decompose(ts);
+
+		RAD rad = new RAD();
+		StructObjectInspector outputOI = rad.initialize(arguments(
+			ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector),
+			PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.intTypeInfo, new IntWritable(9)),
+			PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.intTypeInfo, new IntWritable(7)),
+			PrimitiveObjectInspectorFactory.javaBooleanObjectInspector
+		));
+		assertEquals(5, outputOI.getAllStructFieldRefs().size());
+		assertEquals("rsvd_s", outputOI.getAllStructFieldRefs().get(3).getFieldName());
+
+		final List<double[]> rows = new ArrayList<double[]>();
+		rad.setCollector(new Collector() {
+			public void collect(Object input) throws HiveException {
+				Object[] row = (Object[]) input;
+				rows.add(new double[] {
+					((IntWritable) row[0]).get(),
+					((DoubleWritable) row[1]).get(),
+					((DoubleWritable) row[2]).get(),
+					((DoubleWritable) row[3]).get(),
+					((DoubleWritable) row[4]).get()
+				});
+			}
+		});
+
+		List<Double> values = new ArrayList<Double>();
+		for (double value : ts) {
+			values.add(value);
+		}
+		rad.process(new Object[] {values, null, null, false});
+		rad.close();
+
+		assertEquals(63, rows.size());
+		for (int n = 0; n < rows.size(); n++) {
+			assertEquals(n, rows.get(n)[0], 0);
+			assertEquals(expected.getTransformed()[n], rows.get(n)[1], 0);
+			assertEquals(expected.getL()[n], rows.get(n)[2], 0);
+			assertEquals(expected.getS()[n], rows.get(n)[3], 0);
+			assertEquals(expected.getE()[n], rows.get(n)[4], 0);
+		}
+	}
+
+	@Test(expected = HiveException.class)
+	public void testWrongLength() throws Exception {
+		RAD rad = new RAD();
+		rad.initialize(arguments(
+			ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaIntObjectInspector),
+			PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+			PrimitiveObjectInspectorFactory.javaIntObjectInspector
+		));
+		List<Integer> values = new ArrayList<Integer>();
+		for (int n = 0; n < 10; n++) {
+			values.add(n);
+		}
+		rad.process(new Object[] {values, 9, 7});
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.surus.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.DoubleBuffer;
+
+import org.junit.Test;
+import org.surus.batch.RADBatchRunner;
+import org.surus.math.RobustAnomalyDetector;
+
+public class TimeSeriesStore_Test {
+
+	private double[] series(int s) {
+		double[] values = new double[63];
+		for (int n = 0; n < values.length; n++) {
+			values[n] = 10 + s + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+		}
+		return values;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		File file = File.createTempFile("surus", ".tss");
+		file.deleteOnExit();
+
+		TimeSeriesStoreWriter writer = new TimeSeriesStoreWriter(file);
+		for (int s = 0; s < 50; s++) {
+			writer.add("series_" + s, 7, series(s));
+		}
+		writer.add("empty", 7, new double[0]);
+		writer.close();
+
+		TimeSeriesStoreReader reader = new TimeSeriesStoreReader(file);
+		assertEquals(51, reader.size());
+		for (int s = 0; s < 50; s++) {
+			assertEquals("series_" + s, reader.getId(s));
+			assertEquals(7, reader.getPeriod(s));
+			assertEquals(63, reader.getLength(s));
+			DoubleBuffer values = reader.getValues(s);
+			double[] expected = series(s);
+			assertEquals(expected.length, values.remaining());
+			for (int n = 0; n < expected.length; n++) {
+				assertEquals(expected[n], values.get(n), 0);
+			}
+		}
+		assertEquals(0, reader.getValues(50).remaining());
+
+		// Decomposing a mapped view matches decomposing the array
+		RobustAnomalyDetector detector = new RobustAnomalyDetector(7, 9, false);
+		assertArrayEquals(detector.decompose(series(3)).getS(), detector.decompose(reader.getValues(3)).getS(), 0);
+		reader.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPeriod() throws Exception {
+		File file = File.createTempFile("surus", ".tss");
+		file.deleteOnExit();
+
+		TimeSeriesStoreWriter writer = new TimeSeriesStoreWriter(file);
+		try {
+			writer.add("series_0", 0, series(0));
+		} finally {
+			writer.close();
+		}
+	}
+
+	@Test
+	public void testBatchRunner() throws Exception {
+		File file = File.createTempFile("surus", ".tss");
+		file.deleteOnExit();
+
+		TimeSeriesStoreWriter writer = new TimeSeriesStoreWriter(file);
+		for (int s = 0; s < 10; s++) {
+			writer.add("series_" + s, 7, series(s));
+		}
+		writer.close();
+
+		TimeSeriesStoreReader reader = new TimeSeriesStoreReader(file);
+		RADBatchRunner runner = new RADBatchRunner(new RobustAnomalyDetector(7, 9, false), 2);
+		StringWriter output = new StringWriter();
+		runner.run(reader, output);
+		reader.close();
+
+		assertEquals(10, runner.getNumSeries());
+		assertEquals(10 * 63, output.toString().split("\n").length);
+	}
+
+}
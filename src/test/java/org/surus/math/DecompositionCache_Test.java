@@ -0,0 +1,90 @@
+package org.surus.math;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.DoubleBuffer;
+
+import org.junit.Test;
+import org.surus.math.RobustAnomalyDetector.Decomposition;
+
+public class DecompositionCache_Test {
+
+	private double[] series(double shift) {
+		double[] values = new double[63];
+		for (int n = 0; n < values.length; n++) {
+			values[n] = 10 + shift + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+		}
+		return values;
+	}
+
+	@Test
+	public void testMemoryTier() {
+		RobustAnomalyDetector detector = new RobustAnomalyDetector(7, 9, false);
+		Decomposition expected = detector.decompose(series(0));
+
+		DecompositionCache cache = new DecompositionCache(2);
+		detector.setCache(cache);
+
+		Decomposition first = detector.decompose(series(0));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		Decomposition second = detector.decompose(series(0));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertArrayEquals(expected.getS(), second.getS(), 0);
+		assertArrayEquals(expected.getL(), second.getL(), 0);
+		assertArrayEquals(expected.getE(), second.getE(), 0);
+
+		// Hits are copies
+		second.getS()[0] = 1e6;
+		assertArrayEquals(first.getS(), detector.decompose(series(0)).getS(), 0);
+
+		// Different parameters are different entries
+		RobustAnomalyDetector diffed = new RobustAnomalyDetector(7, 9, true);
+		diffed.setCache(cache);
+		diffed.decompose(series(0));
+		assertEquals(2, cache.getMisses());
+
+		// Least recently used entry is evicted
+		detector.decompose(series(1));
+		assertEquals(2, cache.size());
+		diffed.decompose(series(0));
+		assertEquals(3, cache.getMisses());
+		detector.decompose(series(0));
+		assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void testDiskTier() throws Exception {
+		File directory = File.createTempFile("surus", "cache");
+		directory.delete();
+		directory.deleteOnExit();
+
+		double[] skipped = new double[63];
+		skipped[0] = 1;
+
+		RobustAnomalyDetector detector = new RobustAnomalyDetector(7, 9, false);
+		detector.setCache(new DecompositionCache(0, directory));
+		Decomposition expected = detector.decompose(series(0));
+		assertNull(detector.decompose(skipped));
+		assertEquals(2, directory.listFiles().length);
+
+		// A fresh cache over the same directory serves both entries without solving
+		DecompositionCache cache = new DecompositionCache(16, directory);
+		detector.setCache(cache);
+		Decomposition cached = detector.decompose(DoubleBuffer.wrap(series(0)));
+		assertNull(detector.decompose(skipped));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getDiskHits());
+		assertEquals(0, cache.getMisses());
+		assertArrayEquals(expected.getTransformed(), cached.getTransformed(), 0);
+		assertArrayEquals(expected.getS(), cached.getS(), 0);
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+	}
+
+}
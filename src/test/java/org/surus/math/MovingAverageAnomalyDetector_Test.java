@@ -0,0 +1,59 @@
+package org.surus.math;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.surus.math.RobustAnomalyDetector.Decomposition;
+
+public class MovingAverageAnomalyDetector_Test {
+
+	private double[] series() {
+		double[] values = new double[63];
+		for (int n = 0; n < values.length; n++) {
+			values[n] = 10 + Math.sin(2*Math.PI*n/7) + 0.1*Math.cos(n) + ((n == 30 || n == 60) ? 5 : 0);
+		}
+		return values;
+	}
+
+	@Test
+	public void testDetect() {
+		double[] values = series();
+		boolean[] observed = new MovingAverageAnomalyDetector(7, 9).detect(values);
+
+		// Two pass mean and sd per row over the first 8 seasons, as in AnomalyDetection.ma
+		for (int i = 0; i < 7; i++) {
+			double mean = 0;
+			for (int j = 0; j < 8; j++) mean += values[i + 7*j];
+			mean /= 8;
+			double sd = 0;
+			for (int j = 0; j < 8; j++) sd += Math.pow(values[i + 7*j] - mean, 2);
+			sd = Math.sqrt(sd / 7);
+			for (int j = 0; j < 9; j++) {
+				double x = values[i + 7*j];
+				assertEquals(x > mean + 1.6*sd || x < mean - 1.6*sd, observed[i + 7*j]);
+			}
+		}
+		assertTrue(observed[30]);
+		assertTrue(observed[60]);
+	}
+
+	@Test
+	public void testDecompose() {
+		double[] values = series();
+		MovingAverageAnomalyDetector detector = new MovingAverageAnomalyDetector(7, 9);
+		boolean[] anomalous = detector.detect(values);
+		Decomposition decomposition = detector.decompose(values);
+
+		assertArrayEquals(values, decomposition.getTransformed(), 0);
+		for (int n = 0; n < values.length; n++) {
+			assertEquals(anomalous[n], decomposition.getS()[n] != 0);
+			assertEquals(values[n], decomposition.getL()[n] + decomposition.getS()[n] + decomposition.getE()[n], 1e-12);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooFewSeasons() {
+		new MovingAverageAnomalyDetector(7, 2);
+	}
+
+}
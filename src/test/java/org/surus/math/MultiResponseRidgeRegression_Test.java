@@ -0,0 +1,50 @@
+package org.surus.math;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MultiResponseRidgeRegression_Test {
+
+	@Test
+	public void testMatchesSingleResponse() {
+		Random rand = new Random(7);
+		int n = 40, p = 3, m = 300;
+		double[][] x = new double[n][p];
+		double[][] Y = new double[n][m];
+		for (int i = 0; i < n; i++) {
+			x[i][0] = 1;
+			x[i][1] = i % 7;
+			x[i][2] = i;
+			for (int j = 0; j < m; j++) {
+				Y[i][j] = j + 0.1*j*x[i][1] - 0.2*x[i][2] + rand.nextGaussian();
+			}
+		}
+
+		MultiResponseRidgeRegression regression = new MultiResponseRidgeRegression(x);
+		regression.updateCoefficients(Y, 0.5);
+
+		List<double[]> responses = new ArrayList<double[]>();
+		for (int j = 0; j < m; j++) {
+			double[] y = new double[n];
+			for (int i = 0; i < n; i++) y[i] = Y[i][j];
+			responses.add(y);
+		}
+		MultiResponseRidgeRegression streamed = new MultiResponseRidgeRegression(x);
+		streamed.updateCoefficients(responses.iterator(), 0.5);
+
+		for (int j = 0; j < m; j++) {
+			RidgeRegression single = new RidgeRegression(x, responses.get(j));
+			single.updateCoefficients(0.5);
+			assertArrayEquals(single.getCoefficients(), regression.getCoefficients()[j], 1e-8);
+			assertArrayEquals(single.getStandarderrors(), regression.getStandarderrors()[j], 1e-8);
+			assertArrayEquals(single.getCoefficients(), streamed.getCoefficients()[j], 1e-8);
+			assertArrayEquals(single.getStandarderrors(), streamed.getStandarderrors()[j], 1e-8);
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.surus.math;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RidgeRegression_Test {
+
+	private double[][] x;
+	private double[] y;
+
+	private void buildData() {
+		Random rand = new Random(42);
+		x = new double[50][3];
+		y = new double[50];
+		for (int i = 0; i < x.length; i++) {
+			x[i][0] = 1;
+			x[i][1] = rand.nextGaussian();
+			x[i][2] = i;
+			y[i] = 2 + 3*x[i][1] - 0.5*x[i][2] + rand.nextGaussian();
+		}
+	}
+
+	@Test
+	public void testRepeatedUpdates() {
+		buildData();
+		RidgeRegression regression = new RidgeRegression(x, y);
+		regression.updateCoefficients(.0001);
+		double[] first = regression.getCoefficients().clone();
+		regression.updateCoefficients(10);
+		regression.updateCoefficients(.0001);
+		assertArrayEquals(first, regression.getCoefficients(), 1e-12);
+		assertEquals(3, first[1], 0.5);
+	}
+
+	@Test
+	public void testPathMatchesSingleFits() {
+		buildData();
+		double[] grid = new double[] {0.001, 0.1, 1, 10, 100};
+		RidgeRegressionPath path = new RidgeRegression(x, y).computePath(grid);
+
+		for (int l = 0; l < grid.length; l++) {
+			RidgeRegression regression = new RidgeRegression(x, y);
+			regression.updateCoefficients(grid[l]);
+			assertArrayEquals(regression.getCoefficients(), path.getCoefficients()[l], 1e-9);
+			assertArrayEquals(regression.getStandarderrors(), path.getStandarderrors()[l], 1e-9);
+		}
+	}
+
+	@Test
+	public void testLOOCV() {
+		buildData();
+		double l2penalty = 1;
+		RidgeRegressionPath path = new RidgeRegression(x, y).computePath(new double[] {l2penalty});
+
+		// Brute force leave-one-out
+		double press = 0;
+		for (int i = 0; i < x.length; i++) {
+			double[][] xi = new double[x.length - 1][];
+			double[] yi = new double[y.length - 1];
+			for (int j = 0, k = 0; j < x.length; j++) {
+				if (j == i) continue;
+				xi[k] = x[j];
+				yi[k++] = y[j];
+			}
+			RidgeRegression regression = new RidgeRegression(xi, yi);
+			regression.updateCoefficients(l2penalty);
+			double[] beta = regression.getCoefficients();
+			double prediction = 0;
+			for (int j = 0; j < beta.length; j++) {
+				prediction += beta[j] * x[i][j];
+			}
+			press += Math.pow(y[i] - prediction, 2);
+		}
+		assertEquals(press / x.length, path.getLOOCV()[0], 1e-8);
+		assertTrue(path.getGCV()[0] > 0);
+	}
+
+}
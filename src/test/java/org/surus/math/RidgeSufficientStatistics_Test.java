@@ -0,0 +1,43 @@
+package org.surus.math;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RidgeSufficientStatistics_Test {
+
+	@Test
+	public void testMergedMatchesRidgeRegression() {
+		Random rand = new Random(11);
+		double[][] x = new double[60][3];
+		double[] y = new double[60];
+		for (int i = 0; i < x.length; i++) {
+			x[i][0] = 1;
+			x[i][1] = rand.nextGaussian();
+			x[i][2] = rand.nextDouble();
+			y[i] = 1 - 2*x[i][1] + 4*x[i][2] + 0.1*rand.nextGaussian();
+		}
+
+		RidgeSufficientStatistics left  = new RidgeSufficientStatistics(3);
+		RidgeSufficientStatistics right = new RidgeSufficientStatistics(3);
+		for (int i = 0; i < x.length; i++) {
+			if (i % 3 == 0) {
+				left.add(x[i], y[i]);
+			} else {
+				right.add(x[i], y[i]);
+			}
+		}
+		left.merge(right);
+		left.updateCoefficients(0.5);
+
+		RidgeRegression regression = new RidgeRegression(x, y);
+		regression.updateCoefficients(0.5);
+
+		assertEquals(60, left.getN());
+		assertArrayEquals(regression.getCoefficients(), left.getCoefficients(), 1e-9);
+		assertArrayEquals(regression.getStandarderrors(), left.getStandarderrors(), 1e-9);
+	}
+
+}
@@ -0,0 +1,95 @@
+package org.surus.pig;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.junit.Test;
+import org.surus.math.RidgeRegression;
+
+public class FitRidgeRegression_Test {
+
+    private TupleFactory tf = TupleFactory.getInstance();
+    private BagFactory   bf = BagFactory.getInstance();
+
+    @Test
+    public void testAlgebraicMatchesExec() throws Exception {
+        System.out.println("testAlgebraicMatchesExec");
+
+        Random rand = new Random(3);
+        double[][] x = new double[100][2];
+        double[] y = new double[100];
+        DataBag[] splits = new DataBag[] {bf.newDefaultBag(), bf.newDefaultBag(), bf.newDefaultBag()};
+        DataBag all = bf.newDefaultBag();
+        for (int i = 0; i < x.length; i++) {
+            x[i][0] = 1;
+            x[i][1] = i;
+            y[i] = 5 + 0.25*i + rand.nextGaussian();
+
+            Tuple row = tf.newTuple();
+            row.append(y[i]);
+            row.append(1L);
+            row.append(i);
+            splits[i % splits.length].add(row);
+            all.add(row);
+        }
+
+        FitRidgeRegression udf = new FitRidgeRegression("0.1");
+        Schema outputSchema = udf.outputSchema(buildInputSchema());
+        assertEquals(5, outputSchema.getField(0).schema.size());
+        Tuple observed = udf.exec(tf.newTuple(all));
+
+        // Map-side partials, one combiner round, then the final fit
+        FitRidgeRegression.Initial initial = new FitRidgeRegression.Initial("0.1");
+        FitRidgeRegression.Intermediate intermediate = new FitRidgeRegression.Intermediate("0.1");
+        FitRidgeRegression.Final last = new FitRidgeRegression.Final("0.1");
+
+        DataBag partials = bf.newDefaultBag();
+        for (DataBag split : splits) {
+            Iterator<Tuple> iter = split.iterator();
+            DataBag combined = bf.newDefaultBag();
+            while (iter.hasNext()) {
+                DataBag single = bf.newDefaultBag();
+                single.add(iter.next());
+                combined.add(initial.exec(tf.newTuple(single)));
+            }
+            partials.add(intermediate.exec(tf.newTuple(combined)));
+        }
+        Tuple algebraic = last.exec(tf.newTuple(partials));
+
+        RidgeRegression regression = new RidgeRegression(x, y);
+        regression.updateCoefficients(0.1);
+        double[] coefficients = regression.getCoefficients();
+        double[] standarderrors = regression.getStandarderrors();
+
+        assertEquals(100L, observed.get(0));
+        assertEquals(100L, algebraic.get(0));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(coefficients[i], (Double) observed.get(1 + i), 1e-8);
+            assertEquals(coefficients[i], (Double) algebraic.get(1 + i), 1e-8);
+            assertEquals(standarderrors[i], (Double) observed.get(3 + i), 1e-8);
+            assertEquals(standarderrors[i], (Double) algebraic.get(3 + i), 1e-8);
+        }
+    }
+
+    private Schema buildInputSchema() throws Exception {
+    	List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
+        fieldSchemas.add(new Schema.FieldSchema("y"        , DataType.DOUBLE));
+        fieldSchemas.add(new Schema.FieldSchema("intercept", DataType.LONG));
+        fieldSchemas.add(new Schema.FieldSchema("trend"    , DataType.INTEGER));
+
+        FieldSchema innerTupleFieldSchema = new FieldSchema(null, new Schema(fieldSchemas), DataType.TUPLE);
+        return new Schema(new Schema.FieldSchema("dummy_bag", new Schema(innerTupleFieldSchema), DataType.BAG));
+    }
+
+}
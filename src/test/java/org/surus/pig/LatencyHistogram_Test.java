@@ -0,0 +1,51 @@
+package org.surus.pig;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogram_Test {
+
+	@Test
+	public void testBuckets() {
+		// Buckets are contiguous, and each holds the values that index to it
+		long previous = -1;
+		for (int i = 0; i <= 1887; i++) {
+			long highest = LatencyHistogram.highestValue(i);
+			assertEquals(i, LatencyHistogram.index(previous + 1));
+			assertEquals(i, LatencyHistogram.index(highest));
+			previous = highest;
+		}
+		assertEquals(Long.MAX_VALUE, previous);
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		for (long v = 1; v <= 100000; v++) {
+			histogram.record(v * 1000);
+		}
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000000L, histogram.getMax());
+		assertEquals(50000500.0, histogram.getMean(), 1e-6);
+		for (double percentile : new double[] { 1, 50, 90, 99, 99.9 }) {
+			double exact = percentile * 1000000;
+			assertEquals(exact, histogram.getValueAtPercentile(percentile), exact / 32);
+		}
+		assertEquals(100000000L, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testWeighted() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(10, 99);
+		histogram.record(5000, 1);
+		histogram.record(7, 0);
+		assertEquals(100, histogram.getCount());
+		assertEquals(10, histogram.getValueAtPercentile(99));
+		assertTrue(histogram.getValueAtPercentile(100) >= 4900);
+		assertTrue(histogram.toString().startsWith("count=100 "));
+	}
+
+}
@@ -18,6 +18,7 @@ import org.apache.pig.impl.logicalLayer.FrontendException;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 
+import org.surus.math.MovingAverageAnomalyDetector;
 import org.surus.pig.RAD;
 
 
@@ -66,6 +67,257 @@ public class RAD_Test {
         
         assertTrue(approximateCompareBags(expected,observed));
 
+        // Without a task context the counters stay pending
+        assertEquals(1, rsvd.metrics.getPending(RAD.Counter.GROUPS));
+        assertEquals(ts.length, rsvd.metrics.getPending(RAD.Counter.ROWS));
+        assertEquals(1, rsvd.metrics.getPending(RAD.Counter.RPCA_DECOMPOSITIONS));
+        assertTrue(rsvd.metrics.getPending(RAD.Counter.RPCA_ITERATIONS) > 0);
+        assertEquals(0, rsvd.metrics.getPending(RAD.Counter.SKIPPED_METRICS));
+        assertEquals(1, rsvd.metrics.histogram(RAD.Phase.DECOMPOSE).getCount());
+        rsvd.finish();
+
+    }
+    
+    @Test
+    public void testAccumulator() throws Exception {
+        System.out.println("testAccumulator");
+
+        double[] ts = new double[63];
+        for (int n=0; n<ts.length; n++) {
+        	ts[n] = 10 + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+        }
+        
+        // Reference result from a single exec call
+        RAD rsvd = new RAD(argsDaily9);
+        rsvd.outputSchema(buildInputSchema2());
+        DataBag expected = rsvd.exec(tf.newTuple(buildDataBag(ts)));
+
+        // Feed the same bag in chunks of 10 tuples
+        RAD accumulator = new RAD(argsDaily9);
+        accumulator.outputSchema(buildInputSchema2());
+        for (int start=0; start<ts.length; start+=10) {
+        	double[] chunk = new double[Math.min(10, ts.length - start)];
+        	System.arraycopy(ts, start, chunk, 0, chunk.length);
+        	accumulator.accumulate(tf.newTuple(buildDataBag(chunk)));
+        }
+        DataBag observed = accumulator.getValue();
+        accumulator.cleanup();
+
+        assertEquals(expected.size(), observed.size());
+        assertTrue(approximateCompareBags(expected,observed));
+
+    }
+    
+    @Test
+    public void testMultiMetric() throws Exception {
+        System.out.println("testMultiMetric");
+
+        double[] ts1 = new double[63];
+        double[] ts2 = new double[63];
+        for (int n=0; n<ts1.length; n++) {
+        	ts1[n] = 10 + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+        	ts2[n] = 3 + Math.cos(2*Math.PI*n/7) + ((n == 45) ? -4 : 0);
+        }
+
+        // Reference results, one metric at a time
+        RAD rsvd1 = new RAD(argsDaily9);
+        rsvd1.outputSchema(buildInputSchema2());
+        DataBag expected1 = rsvd1.exec(tf.newTuple(buildDataBag(ts1)));
+        RAD rsvd2 = new RAD(argsDaily9);
+        rsvd2.outputSchema(buildInputSchema2());
+        DataBag expected2 = rsvd2.exec(tf.newTuple(buildDataBag(ts2)));
+
+        // Both metrics in a single call
+        DataBag inputBag = bf.newDefaultBag();
+        for (int n=0; n<ts1.length; n++) {
+        	Tuple newTuple = tf.newTuple();
+        	newTuple.append(ts1[n]);
+        	newTuple.append(ts2[n]);
+        	inputBag.add(newTuple);
+        }
+        List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
+        fieldSchemas.add(new Schema.FieldSchema("metric_1", DataType.DOUBLE));
+        fieldSchemas.add(new Schema.FieldSchema("metric_2", DataType.DOUBLE));
+        FieldSchema innerTupleFieldSchema = new FieldSchema(null, new Schema(fieldSchemas), DataType.TUPLE);
+        Schema inputSchema = new Schema(new Schema.FieldSchema("dummy_bag", new Schema(innerTupleFieldSchema), DataType.BAG));
+
+        RAD rsvd = new RAD("metric_1,metric_2","9","7","False","threads=2");
+        Schema outputSchema = rsvd.outputSchema(inputSchema);
+        assertEquals("metric_2_rsvd_s", outputSchema.getField(0).schema.getField(0).schema.getField(8).alias);
+        DataBag observed = rsvd.exec(tf.newTuple(inputBag));
+        rsvd.finish();
+
+        Iterator<Tuple> iter1 = expected1.iterator();
+        Iterator<Tuple> iter2 = expected2.iterator();
+        Iterator<Tuple> iter  = observed.iterator();
+        while (iter.hasNext()) {
+        	Tuple tuple  = iter.next();
+        	Tuple tuple1 = iter1.next();
+        	Tuple tuple2 = iter2.next();
+        	assertEquals(10, tuple.size());
+        	for (int k=1; k<5; k++) {
+        		assertEquals((Double) tuple1.get(k), (Double) tuple.get(1 + k), 1e-12);
+        		assertEquals((Double) tuple2.get(k), (Double) tuple.get(5 + k), 1e-12);
+        	}
+        }
+
+    }
+    
+    @Test
+    public void testOutputBag() throws Exception {
+        System.out.println("testOutputBag");
+
+        double[] ts = new double[63];
+        for (int n=0; n<ts.length; n++) {
+        	ts[n] = 10 + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+        }
+
+        RAD rsvd = new RAD(argsDaily9);
+        rsvd.outputSchema(buildInputSchema2());
+        DataBag observed = rsvd.exec(tf.newTuple(buildDataBag(ts)));
+
+        // Lazy bag should behave like a regular bag holding the same tuples
+        DataBag copy = bf.newDefaultBag();
+        copy.addAll(observed);
+        assertEquals(63, observed.size());
+        assertEquals(0, DataType.compare(observed, copy));
+        assertEquals(copy.toString(), observed.toString());
+        assertTrue(observed.getMemorySize() > 4 * 8 * ts.length);
+
+        try {
+        	observed.add(tf.newTuple());
+        	fail("Expected read-only bag");
+        } catch (UnsupportedOperationException e) {
+        }
+
+    }
+    
+    @Test
+    public void testAnomalyOutput() throws Exception {
+        System.out.println("testAnomalyOutput");
+
+        double[] ts = new double[63];
+        for (int n=0; n<ts.length; n++) {
+        	ts[n] = 10 + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+        }
+
+        RAD full = new RAD(argsDaily9);
+        full.outputSchema(buildInputSchema2());
+        DataBag all = full.exec(tf.newTuple(buildDataBag(ts)));
+
+        RAD anomalies = new RAD("metric","9","7","False","output=anomalies","threshold=0.5");
+        Schema anomalySchema = anomalies.outputSchema(buildInputSchema2());
+        assertEquals(6, anomalySchema.getField(0).schema.getField(0).schema.size());
+        DataBag observed = anomalies.exec(tf.newTuple(buildDataBag(ts)));
+
+        RAD summary = new RAD("metric","9","7","False","output=summary","threshold=0.5");
+        summary.outputSchema(buildInputSchema2());
+        Tuple summaryTuple = summary.exec(tf.newTuple(buildDataBag(ts))).iterator().next();
+
+        // Expected anomalies from the full output
+        long count = 0;
+        double total = 0;
+        Iterator<Tuple> allIter = all.iterator();
+        Iterator<Tuple> observedIter = observed.iterator();
+        while (allIter.hasNext()) {
+        	Tuple tuple = allIter.next();
+        	double s = (Double) tuple.get(3);
+        	if (Math.abs(s) > 0.5) {
+        		count++;
+        		total += Math.abs(s);
+        		Tuple anomaly = observedIter.next();
+        		assertEquals("metric", anomaly.get(1));
+        		assertEquals(tuple.get(0), anomaly.get(0));
+        		assertEquals(s, (Double) anomaly.get(4), 1e-12);
+        	}
+        }
+        assertTrue(count > 0);
+        assertEquals(count, observed.size());
+        assertEquals("metric", summaryTuple.get(0));
+        assertEquals(count, summaryTuple.get(1));
+        assertEquals(total, (Double) summaryTuple.get(3), 1e-9);
+
+    }
+    
+    @Test
+    public void testMovingAverage() throws Exception {
+        System.out.println("testMovingAverage");
+
+        double[] ts = new double[63];
+        for (int n=0; n<ts.length; n++) {
+        	ts[n] = 10 + Math.sin(2*Math.PI*n/7) + 0.1*Math.cos(n) + ((n == 30) ? 5 : 0);
+        }
+        boolean[] expected = new MovingAverageAnomalyDetector(7, 9).detect(ts);
+
+        RAD ma = new RAD("metric","9","7","False","method=ma");
+        ma.outputSchema(buildInputSchema2());
+        DataBag observed = ma.exec(tf.newTuple(buildDataBag(ts)));
+        assertEquals(63, observed.size());
+        int n = 0;
+        for (Tuple tuple : observed) {
+        	assertEquals(expected[n++], ((Double) tuple.get(3)) != 0);
+        }
+
+        // Groups above maxCells fall back to the moving average
+        RAD auto = new RAD("metric","9","7","False","method=auto","maxCells=10");
+        auto.outputSchema(buildInputSchema2());
+        assertTrue(approximateCompareBags(observed, auto.exec(tf.newTuple(buildDataBag(ts)))));
+
+        // ... while groups within it are decomposed with RPCA
+        RAD rpca = new RAD(argsDaily9);
+        rpca.outputSchema(buildInputSchema2());
+        RAD withinLimit = new RAD("metric","9","7","False","method=auto","maxCells=63");
+        withinLimit.outputSchema(buildInputSchema2());
+        assertTrue(approximateCompareBags(rpca.exec(tf.newTuple(buildDataBag(ts))), withinLimit.exec(tf.newTuple(buildDataBag(ts)))));
+
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        System.out.println("testTimeBudget");
+
+        // 1ms per metric of 63 cells: rpca until a solve is seen to be slower
+        RAD auto = new RAD("metric","9","7","False","method=auto","budgetMs=1");
+        assertFalse(auto.useMovingAverage(63));
+        auto.recordRpcaCost(100000000L, 63);
+
+        // Over budget, every PROBE_INTERVAL-th metric is still solved with rpca
+        int probes = 0;
+        for (int i = 0; i < 2 * RAD.PROBE_INTERVAL; i++) {
+        	if (!auto.useMovingAverage(63)) {
+        		probes++;
+        	}
+        }
+        assertEquals(2, probes);
+
+        // ... so that one slow early solve wears off as faster probes are recorded
+        for (int i = 0; i < 20; i++) {
+        	auto.recordRpcaCost(100000L, 63);
+        }
+        for (int i = 0; i < 2 * RAD.PROBE_INTERVAL; i++) {
+        	assertFalse(auto.useMovingAverage(63));
+        }
+    }
+
+    @Test
+    public void testTimeBudgetCacheHits() throws Exception {
+        System.out.println("testTimeBudgetCacheHits");
+
+        double[] ts = new double[63];
+        for (int n=0; n<ts.length; n++) {
+        	ts[n] = 10 + Math.sin(2*Math.PI*n/7) + ((n == 30) ? 5 : 0);
+        }
+
+        // Only the first exec solves with rpca, the cached ones must not pull the estimate down
+        RAD auto = new RAD("metric","9","7","False","method=auto","budgetMs=1000","cache=4");
+        auto.outputSchema(buildInputSchema2());
+        auto.exec(tf.newTuple(buildDataBag(ts)));
+        double nanosPerCell = auto.getRpcaNanosPerCell();
+        assertTrue(nanosPerCell > 0);
+        for (int i = 0; i < 5; i++) {
+        	auto.exec(tf.newTuple(buildDataBag(ts)));
+        }
+        assertEquals(nanosPerCell, auto.getRpcaNanosPerCell(), 0.0);
     }
     
     private Boolean approximateCompareBags(DataBag inputBag1, DataBag inputBag2) throws ExecException {
@@ -0,0 +1,123 @@
+package org.surus.pig;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
+import org.junit.Test;
+
+public class ScorePMMLBag_Test {
+
+	private String treeIrisModelPath = "./resources/examples/models/single_iris_dectree.xml";
+	private String nnIrisModelPath   = "./resources/examples/models/single_iris_mlp.xml";
+	private String irisDataPath      = "./resources/examples/data/Iris.csv";
+
+	private TupleFactory tf = TupleFactory.getInstance();
+	private BagFactory   bf = BagFactory.getInstance();
+
+	@Test
+	public void treeBagTest_Iris() throws Exception {
+		checkBag(this.treeIrisModelPath, "1");
+		checkBag(this.treeIrisModelPath, "3");
+	}
+
+	@Test
+	public void nnBagTest_Iris() throws Exception {
+		checkBag(this.nnIrisModelPath, "1");
+		checkBag(this.nnIrisModelPath, "3");
+	}
+
+	@Test
+	public void cachedBagTest_Iris() throws Exception {
+		ScorePMMLBag evalPMMLBag = checkBag(this.treeIrisModelPath, "3", "200");
+		long hits = evalPMMLBag.scorePMML.metrics.getPending(ScorePMML.Counter.CACHE_HITS);
+		long misses = evalPMMLBag.scorePMML.metrics.getPending(ScorePMML.Counter.CACHE_MISSES);
+		assertEquals(3 * ScorePMMLBag.BATCH_ROWS + 7, hits + misses);
+		assertTrue(hits > misses);
+	}
+
+	@Test
+	public void emptyBagTest_Iris() throws Exception {
+		ScorePMMLBag evalPMML = new ScorePMMLBag(this.treeIrisModelPath, "true", "2");
+		evalPMML.outputSchema(buildIrisBagSchema());
+		assertEquals(0, evalPMML.exec(tf.newTuple(bf.newDefaultBag())).size());
+	}
+
+	// Scores several batches worth of iris rows as one bag, and each row on its own with ScorePMML
+	private ScorePMMLBag checkBag(String modelPath, String threads, String... cacheCapacity) throws Exception {
+
+		DataBag rows = bf.newDefaultBag();
+		List<Tuple> iris = readIris();
+		while (rows.size() < 3 * ScorePMMLBag.BATCH_ROWS + 7) {
+			rows.add(iris.get((int) (rows.size() % iris.size())));
+		}
+
+		ScorePMMLBag evalPMMLBag = (cacheCapacity.length > 0) ? new ScorePMMLBag(modelPath, "true", threads, cacheCapacity[0]) : new ScorePMMLBag(modelPath, "true", threads);
+		Schema outputSchema = evalPMMLBag.outputSchema(buildIrisBagSchema());
+		assertEquals(DataType.BAG, outputSchema.getField(0).type);
+
+		ScorePMML evalPMML = new ScorePMML(modelPath);
+		Schema rowOutputSchema = evalPMML.outputSchema(buildIrisInputSchema());
+		assertEquals(rowOutputSchema.getField(0).schema, outputSchema.getField(0).schema.getField(0).schema);
+
+		DataBag observed = evalPMMLBag.exec(tf.newTuple(rows));
+		assertEquals(rows.size(), evalPMMLBag.scorePMML.metrics.getPending(ScorePMML.Counter.ROWS));
+		assertEquals(rows.size(), evalPMMLBag.scorePMML.metrics.histogram(ScorePMML.Phase.EVALUATE).getCount());
+		evalPMMLBag.finish();
+		assertEquals(rows.size(), observed.size());
+
+		Iterator<Tuple> it = observed.iterator();
+		for (Tuple row : rows) {
+			assertEquals(evalPMML.exec(row), it.next());
+		}
+		return evalPMMLBag;
+	}
+
+	private List<Tuple> readIris() throws Exception {
+		List<Tuple> rows = new ArrayList<Tuple>();
+		BufferedReader in = new BufferedReader(new FileReader(this.irisDataPath));
+		try {
+			in.readLine();
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] cells = line.split(",");
+				Tuple row = tf.newTuple();
+				for (int i = 1; i <= 4; i++) {
+					row.append(Double.valueOf(cells[i]));
+				}
+				row.append(cells[5].replace("\"", ""));
+				rows.add(row);
+			}
+		} finally {
+			in.close();
+		}
+		return rows;
+	}
+
+	private Schema buildIrisInputSchema() {
+		List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
+		fieldSchemas.add(new Schema.FieldSchema("sepal_length"	, DataType.DOUBLE));
+		fieldSchemas.add(new Schema.FieldSchema("sepal_width"	, DataType.DOUBLE));
+		fieldSchemas.add(new Schema.FieldSchema("petal_length"	, DataType.DOUBLE));
+		fieldSchemas.add(new Schema.FieldSchema("petal_width"	, DataType.DOUBLE));
+		fieldSchemas.add(new Schema.FieldSchema("species"		, DataType.CHARARRAY));
+		return new Schema(fieldSchemas);
+	}
+
+	private Schema buildIrisBagSchema() throws Exception {
+		FieldSchema tuple = new FieldSchema("t", buildIrisInputSchema(), DataType.TUPLE);
+		return new Schema(new FieldSchema("rows", new Schema(tuple), DataType.BAG));
+	}
+
+}
@@ -174,6 +174,127 @@ public class ScorePMML_IrisTest {
 	}
 
 
+	@Test
+	public void rfScoringTest_Iris_Reordered() throws IOException, SAXException, JAXBException {
+
+		// Build Input Schema: columns in another order than the model's, with a long and an unused column
+    	List<FieldSchema> fieldSchemas = new ArrayList<FieldSchema>();
+        fieldSchemas.add(new Schema.FieldSchema("id"			, DataType.CHARARRAY));
+        fieldSchemas.add(new Schema.FieldSchema("petal_width"	, DataType.DOUBLE));
+        fieldSchemas.add(new Schema.FieldSchema("sepal_length"  , DataType.LONG));
+        fieldSchemas.add(new Schema.FieldSchema("petal_length"  , DataType.DOUBLE));
+        fieldSchemas.add(new Schema.FieldSchema("sepal_width"   , DataType.DOUBLE));
+        Schema inputSchema = new Schema(fieldSchemas);
+
+        Tuple inputTuple = tf.newTuple();
+        inputTuple.append("row-1");
+        inputTuple.append(0.2);
+        inputTuple.append(5L);
+        inputTuple.append(1.4);
+        inputTuple.append(3.5);
+
+        Tuple expected = this.buildIrisOutputEvent("setosa","setosa",1.0,0.0,0.0);
+
+        // Initialize Class
+        ScorePMML evalPMML = new ScorePMML(this.rfIrisModelPath, "false");
+        evalPMML.outputSchema(inputSchema);
+
+        // Scored twice, as the argument and result containers are reused
+        assertEquals(expected,evalPMML.exec(inputTuple));
+        assertEquals(expected,evalPMML.exec(inputTuple));
+	}
+
+	@Test
+	public void multiModelScoringTest_Iris() throws IOException, SAXException, JAXBException {
+
+		// Build Input Schema
+        Schema inputSchema = buildIrisInputSchema();
+        Tuple inputTuple = this.buildIrisInputEvent(5.9,3.2,4.8,1.8,"Iris-versicolor");
+
+        // Champion and challengers in one pass, including the same model twice
+        ScorePMML evalPMML = new ScorePMML(this.treeIrisModelPath+", "+this.nnIrisModelPath+","+this.rfIrisModelPath+","+this.nnIrisModelPath, "false");
+        Schema outputSchema = evalPMML.outputSchema(inputSchema);
+        Schema fields = outputSchema.getField(0).schema;
+        assertEquals("single_iris_dectree_predictedField_class", fields.getField(0).alias);
+        assertEquals("single_iris_mlp_predictedField_class", fields.getField(1).alias);
+        assertEquals("example_randomforest_predictedField_species", fields.getField(2).alias);
+        assertEquals("single_iris_mlp_3_predictedField_class", fields.getField(fields.size() - 1).alias);
+
+        // Each model's results, in model order
+        Tuple expected = tf.newTuple();
+        for (String modelPath : new String[] { this.treeIrisModelPath, this.nnIrisModelPath, this.rfIrisModelPath, this.nnIrisModelPath }) {
+        	ScorePMML single = new ScorePMML(modelPath, "false");
+        	assertEquals("predictedField_", single.outputSchema(inputSchema).getField(0).schema.getField(0).alias.substring(0, 15));
+        	for (Object result : single.exec(inputTuple).getAll()) {
+        		expected.append(result);
+        	}
+        }
+        assertEquals(fields.size(), expected.size());
+        assertEquals(expected,evalPMML.exec(inputTuple));
+	}
+
+	@Test
+	public void cacheScoringTest_Iris() throws IOException, SAXException, JAXBException {
+
+		Schema inputSchema = buildIrisInputSchema();
+		Tuple a = this.buildIrisInputEvent(5.1,3.5,1.4,0.2,"Iris-setosa");
+		Tuple b = this.buildIrisInputEvent(5.9,3.2,4.8,1.8,"Iris-versicolor");
+		Tuple c = this.buildIrisInputEvent(6.3,2.9,5.6,1.8,"Iris-virginica");
+
+		ScorePMML uncached = new ScorePMML(this.rfIrisModelPath, "false");
+		uncached.outputSchema(inputSchema);
+		ScorePMML cached = new ScorePMML(this.rfIrisModelPath, "false", "2");
+		cached.outputSchema(inputSchema);
+
+		// The least recently used row, a, is evicted by c
+		for (Tuple row : new Tuple[] { a, a, b, c, a }) {
+			Tuple observed = cached.exec(row);
+			assertEquals(uncached.exec(row), observed);
+		}
+		assertEquals(1, cached.metrics.getPending(ScorePMML.Counter.CACHE_HITS));
+		assertEquals(4, cached.metrics.getPending(ScorePMML.Counter.CACHE_MISSES));
+		assertEquals(0, uncached.metrics.getPending(ScorePMML.Counter.CACHE_HITS));
+
+		// Returned tuples are the caller's to change
+		cached.exec(b).set(0, "changed");
+		assertEquals(uncached.exec(b), cached.exec(b));
+	}
+
+	@Test
+	public void projectedScoringTest_Iris() throws IOException, SAXException, JAXBException {
+
+		Schema inputSchema = buildIrisInputSchema();
+		Tuple inputTuple = this.buildIrisInputEvent(5.9,3.2,4.8,1.8,"Iris-versicolor");
+
+		ScorePMML full = new ScorePMML(this.rfIrisModelPath, "false");
+		Schema fullFields = full.outputSchema(inputSchema).getField(0).schema;
+		Tuple all = full.exec(inputTuple);
+
+		// Kept in model order, whatever the order and case of the list
+		String last = fullFields.getField(fullFields.size() - 1).alias;
+		ScorePMML projected = new ScorePMML(this.rfIrisModelPath, "false", "0", last.toUpperCase()+", predictedField_species");
+		Schema fields = projected.outputSchema(inputSchema).getField(0).schema;
+		assertEquals(2, fields.size());
+		assertEquals("predictedField_species", fields.getField(0).alias);
+		assertEquals(last, fields.getField(1).alias);
+		assertEquals(fullFields.getField(fullFields.size() - 1), fields.getField(1));
+
+		Tuple expected = tf.newTuple();
+		expected.append(all.get(0));
+		expected.append(all.get(all.size() - 1));
+		assertEquals(expected, projected.exec(inputTuple));
+
+		// Of several models, one of which keeps no field
+		ScorePMML multi = new ScorePMML(this.treeIrisModelPath+","+this.nnIrisModelPath, "false", "0", "single_iris_mlp_predictedField_class");
+		assertEquals(1, multi.outputSchema(inputSchema).getField(0).schema.size());
+		assertEquals(tf.newTuple((Object) "Iris-versicolor"), multi.exec(inputTuple));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void projectedScoringTest_Iris_Unknown() throws IOException, SAXException, JAXBException {
+		new ScorePMML(this.rfIrisModelPath, "false", "0", "outputField_nosuchfield").outputSchema(buildIrisInputSchema());
+	}
+
 
 	// --------------------------
 	// Iris Helper Functions
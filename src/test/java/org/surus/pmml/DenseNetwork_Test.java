@@ -0,0 +1,139 @@
+package org.surus.pmml;
+
+import static org.junit.Assert.*;
+import static org.surus.pmml.PMMLTestUtil.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DenseNetwork_Test {
+
+	private static final String mlpIrisModelPath = "./resources/examples/models/single_iris_mlp.xml";
+	private static final String irisDataPath     = "./resources/examples/data/Iris.csv";
+
+	// A regression network over two hidden layers, with normalized inputs and output
+	private static final String regressionModel =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+			"<PMML version=\"4.1\" xmlns=\"http://www.dmg.org/PMML-4_1\"><Header/>" +
+			"<DataDictionary>" +
+			"<DataField name=\"sepal_length\" optype=\"continuous\" dataType=\"double\"/>" +
+			"<DataField name=\"species\" optype=\"categorical\" dataType=\"string\"/>" +
+			"<DataField name=\"petal_length\" optype=\"continuous\" dataType=\"double\"/>" +
+			"</DataDictionary>" +
+			"<NeuralNetwork functionName=\"regression\" activationFunction=\"tanh\">" +
+			"<MiningSchema>" +
+			"<MiningField name=\"sepal_length\"/>" +
+			"<MiningField name=\"species\"/>" +
+			"<MiningField name=\"petal_length\" usageType=\"predicted\"/>" +
+			"</MiningSchema>" +
+			"<NeuralInputs>" +
+			"<NeuralInput id=\"0\"><DerivedField optype=\"continuous\" dataType=\"double\">" +
+			"<NormContinuous field=\"sepal_length\" outliers=\"asExtremeValues\">" +
+			"<LinearNorm orig=\"4.5\" norm=\"0\"/><LinearNorm orig=\"6\" norm=\"0.6\"/><LinearNorm orig=\"7.5\" norm=\"1\"/>" +
+			"</NormContinuous></DerivedField></NeuralInput>" +
+			"<NeuralInput id=\"1\"><DerivedField optype=\"continuous\" dataType=\"double\">" +
+			"<NormDiscrete field=\"species\" value=\"setosa\" mapMissingTo=\"0.5\"/></DerivedField></NeuralInput>" +
+			"<NeuralInput id=\"2\"><DerivedField optype=\"continuous\" dataType=\"double\">" +
+			"<NormDiscrete field=\"species\" value=\"virginica\" mapMissingTo=\"0.5\"/></DerivedField></NeuralInput>" +
+			"</NeuralInputs>" +
+			"<NeuralLayer normalizationMethod=\"softmax\">" +
+			"<Neuron id=\"10\" bias=\"0.1\"><Con from=\"0\" weight=\"1.5\"/><Con from=\"1\" weight=\"-2\"/><Con from=\"2\" weight=\"0.5\"/></Neuron>" +
+			"<Neuron id=\"11\" bias=\"-0.3\"><Con from=\"0\" weight=\"-0.75\"/><Con from=\"1\" weight=\"1\"/><Con from=\"2\" weight=\"2.25\"/></Neuron>" +
+			"</NeuralLayer>" +
+			"<NeuralLayer activationFunction=\"identity\">" +
+			"<Neuron id=\"20\" bias=\"0.2\"><Con from=\"10\" weight=\"3\"/><Con from=\"11\" weight=\"-1.25\"/></Neuron>" +
+			"</NeuralLayer>" +
+			"<NeuralOutputs><NeuralOutput outputNeuron=\"20\"><DerivedField optype=\"continuous\" dataType=\"double\">" +
+			"<NormContinuous field=\"petal_length\"><LinearNorm orig=\"1\" norm=\"0\"/><LinearNorm orig=\"7\" norm=\"1\"/></NormContinuous>" +
+			"</DerivedField></NeuralOutput></NeuralOutputs>" +
+			"</NeuralNetwork>" +
+			"</PMML>";
+
+	// Rows as they are and with each field missing, scored one by one and as a batch, against jpmml
+	private static void checkAll(PMMLModel model, List<Object[]> rows) {
+		List<Object[]> changed = new ArrayList<Object[]>();
+		for (Object[] row : rows) {
+			for (int i = -1; i < row.length; i++) {
+				Object[] copy = row.clone();
+				if (i >= 0) {
+					copy[i] = null;
+				}
+				changed.add(copy);
+			}
+		}
+
+		CompiledModel compiled = model.getCompiled();
+		CompiledModel.Scratch scratch = compiled.newScratch();
+		int n = changed.size();
+		Object[][] batch = new Object[n][compiled.getResultFields().size()];
+		boolean[] scored = new boolean[n];
+		compiled.evaluate(changed.toArray(new Object[n][]), n, scratch, batch, scored);
+
+		Object[] observed = new Object[compiled.getResultFields().size()];
+		for (int i = 0; i < n; i++) {
+			Object[] expected = jpmml(model, changed.get(i));
+			assertEquals(expected != null, compiled.evaluate(changed.get(i), scratch, observed));
+			assertEquals(expected != null, scored[i]);
+			if (expected != null) {
+				assertArrayEquals(expected, observed);
+				assertArrayEquals(expected, batch[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testClassification() throws Exception {
+		PMMLModel model = parse(mlpIrisModelPath);
+		assertTrue(model.getCompiled() instanceof DenseNetwork);
+		assertEquals(2, ((DenseNetwork) model.getCompiled()).getNumLayers());
+		checkAll(model, rows(model, irisDataPath, 1));
+	}
+
+	@Test
+	public void testRegression() throws Exception {
+		PMMLModel model = PMMLModel.parse("regression", regressionModel.getBytes("UTF-8"));
+		assertTrue(model.getCompiled() instanceof DenseNetwork);
+		assertEquals(3, ((DenseNetwork) model.getCompiled()).getNumInputs());
+		checkAll(model, rows(model, irisDataPath, 1));
+	}
+
+	@Test
+	public void testMultiply() {
+		// Wider than a tile of neurons and of inputs, over a partial block of rows
+		int rows = 3;
+		int n = DenseNetwork.BLOCK_INPUTS + 7;
+		int m = DenseNetwork.BLOCK_NEURONS + 5;
+		double[] values = new double[rows * (n + m)];
+		double[] w = new double[m * n];
+		double[] bias = new double[m];
+		for (int i = 0; i < rows * n; i++) {
+			values[i] = Math.sin(i);
+		}
+		for (int i = 0; i < w.length; i++) {
+			w[i] = Math.cos(i) / n;
+		}
+		for (int j = 0; j < m; j++) {
+			bias[j] = j * 0.01;
+		}
+		DenseNetwork.multiply(values, 0, rows, n, w, bias, m, rows * n);
+		for (int r = 0; r < rows; r++) {
+			for (int j = 0; j < m; j++) {
+				double z = bias[j];
+				for (int k = 0; k < n; k++) {
+					z += values[r * n + k] * w[j * n + k];
+				}
+				assertEquals(z, values[rows * n + r * m + j], 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testUnsupported() throws Exception {
+		// A neuron missing a connection is left to jpmml
+		String sparse = regressionModel.replace("<Con from=\"2\" weight=\"2.25\"/>", "");
+		assertNull(PMMLModel.parse("sparse", sparse.getBytes("UTF-8")).getCompiled());
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.surus.pmml;
+
+import static org.junit.Assert.*;
+import static org.surus.pmml.PMMLTestUtil.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.dmg.pmml.FieldName;
+import org.junit.Test;
+
+public class LinearModel_Test {
+
+	private static final String elNinoModelPath = "./resources/examples/models/elnino_linearReg.xml";
+	private static final String elNinoDataPath  = "./resources/examples/data/Elnino.csv";
+	private static final String irisDataPath    = "./resources/examples/data/Iris.csv";
+	private static final String auditDataPath   = "./resources/examples/data/Audit.csv";
+
+	private static final String irisDataDictionary =
+			"<DataDictionary>" +
+			"<DataField name=\"sepal_length\" optype=\"continuous\" dataType=\"double\"/>" +
+			"<DataField name=\"petal_length\" optype=\"continuous\" dataType=\"double\"/>" +
+			"<DataField name=\"petal_width\" optype=\"continuous\" dataType=\"double\"/>" +
+			"<DataField name=\"species\" optype=\"categorical\" dataType=\"string\">" +
+			"<Value value=\"setosa\"/><Value value=\"versicolor\"/><Value value=\"virginica\"/>" +
+			"</DataField>" +
+			"</DataDictionary>";
+
+	private static final String irisMiningSchema =
+			"<MiningSchema>" +
+			"<MiningField name=\"sepal_length\"/>" +
+			"<MiningField name=\"petal_length\"/>" +
+			"<MiningField name=\"petal_width\"/>" +
+			"<MiningField name=\"species\" usageType=\"predicted\"/>" +
+			"</MiningSchema>";
+
+	private static final String auditDataDictionary =
+			"<DataDictionary>" +
+			"<DataField name=\"Age\" optype=\"continuous\" dataType=\"integer\"/>" +
+			"<DataField name=\"Gender\" optype=\"categorical\" dataType=\"string\"/>" +
+			"<DataField name=\"Education\" optype=\"categorical\" dataType=\"string\"/>" +
+			"<DataField name=\"Income\" optype=\"continuous\" dataType=\"double\"/>" +
+			"<DataField name=\"Deductions\" optype=\"continuous\" dataType=\"double\"/>" +
+			"</DataDictionary>";
+
+	private static final String auditMiningSchema =
+			"<MiningSchema>" +
+			"<MiningField name=\"Age\"/>" +
+			"<MiningField name=\"Gender\"/>" +
+			"<MiningField name=\"Education\"/>" +
+			"<MiningField name=\"Income\"/>" +
+			"<MiningField name=\"Deductions\" usageType=\"predicted\"/>" +
+			"</MiningSchema>";
+
+	private static PMMLModel parseInline(String key, String dataDictionary, String model) throws Exception {
+		String pmml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+				"<PMML version=\"4.1\" xmlns=\"http://www.dmg.org/PMML-4_1\"><Header/>" +
+				dataDictionary + model + "</PMML>";
+		return PMMLModel.parse(key, pmml.getBytes("UTF-8"));
+	}
+
+	// Every row as is and with each field missing must score as jpmml does, or fail where it fails
+	private static void checkAll(PMMLModel model, List<Object[]> rows) {
+		CompiledModel compiled = model.getCompiled();
+		CompiledModel.Scratch scratch = compiled.newScratch();
+		Object[] observed = new Object[compiled.getResultFields().size()];
+		for (Object[] row : rows) {
+			for (int i = -1; i < row.length; i++) {
+				Object[] changed = row.clone();
+				if (i >= 0) {
+					changed[i] = null;
+				}
+				Object[] expected = jpmml(model, changed);
+				assertEquals(expected != null, compiled.evaluate(changed, scratch, observed));
+				if (expected != null) {
+					assertArrayEquals(expected, observed);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRegression() throws Exception {
+		PMMLModel model = parse(elNinoModelPath);
+		assertTrue(model.getCompiled() instanceof LinearModel);
+		assertEquals(7, ((LinearModel) model.getCompiled()).getNumTerms());
+
+		// Missing numeric predictors make the prediction null
+		Object[] observed = new Object[1];
+		assertTrue(model.getCompiled().evaluate(new Object[6], model.getCompiled().newScratch(), observed));
+		assertNull(observed[0]);
+
+		checkAll(model, rows(model, elNinoDataPath, 0));
+	}
+
+	@Test
+	public void testClassification() throws Exception {
+		PMMLModel model = parseInline("classification", irisDataDictionary,
+				"<RegressionModel functionName=\"classification\" normalizationMethod=\"softmax\">" +
+				irisMiningSchema +
+				"<Output>" +
+				"<OutputField name=\"predicted\" feature=\"predictedValue\"/>" +
+				"<OutputField name=\"p_setosa\" feature=\"probability\" value=\"setosa\"/>" +
+				"<OutputField name=\"p_virginica\" feature=\"probability\" value=\"virginica\"/>" +
+				"</Output>" +
+				"<RegressionTable intercept=\"7.5\" targetCategory=\"setosa\">" +
+				"<NumericPredictor name=\"petal_length\" coefficient=\"-2.5\"/>" +
+				"<NumericPredictor name=\"sepal_length\" exponent=\"2\" coefficient=\"0.01\"/>" +
+				"<CategoricalPredictor name=\"petal_width\" value=\"0.2\" coefficient=\"0.75\"/>" +
+				"</RegressionTable>" +
+				"<RegressionTable intercept=\"1.0\" targetCategory=\"versicolor\">" +
+				"<NumericPredictor name=\"petal_width\" coefficient=\"-1.25\"/>" +
+				"</RegressionTable>" +
+				"<RegressionTable intercept=\"-6.0\" targetCategory=\"virginica\">" +
+				"<NumericPredictor name=\"petal_length\" coefficient=\"1.0\"/>" +
+				"<NumericPredictor name=\"petal_width\" coefficient=\"1.5\"/>" +
+				"</RegressionTable>" +
+				"</RegressionModel>");
+		assertTrue(model.getCompiled() instanceof LinearModel);
+		assertEquals(3, ((LinearModel) model.getCompiled()).getNumTables());
+		checkAll(model, rows(model, irisDataPath, 1));
+
+		// Compiled for a reordered subset of its results, only those are scored
+		List<FieldName> kept = Arrays.asList(new FieldName("p_virginica"), new FieldName("species"));
+		CompiledModel projected = ModelCompiler.compile(model.getEvaluator(), kept);
+		assertEquals(kept, projected.getResultFields());
+		List<FieldName> all = model.getCompiled().getResultFields();
+		for (Object[] row : rows(model, irisDataPath, 1)) {
+			Object[] expected = new Object[all.size()];
+			Object[] observed = new Object[kept.size()];
+			assertTrue(model.getCompiled().evaluate(row, model.getCompiled().newScratch(), expected));
+			assertTrue(projected.evaluate(row, projected.newScratch(), observed));
+			for (int i = 0; i < kept.size(); i++) {
+				assertEquals(expected[all.indexOf(kept.get(i))], observed[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testGeneralRegression() throws Exception {
+		PMMLModel model = parseInline("generalRegression", auditDataDictionary,
+				"<GeneralRegressionModel functionName=\"regression\" modelType=\"generalizedLinear\" linkFunction=\"log\">" +
+				auditMiningSchema +
+				"<ParameterList>" +
+				"<Parameter name=\"p0\"/><Parameter name=\"p1\"/><Parameter name=\"p2\"/>" +
+				"<Parameter name=\"p3\"/><Parameter name=\"p4\"/><Parameter name=\"p5\"/>" +
+				"</ParameterList>" +
+				"<FactorList><Predictor name=\"Gender\"/><Predictor name=\"Education\"/></FactorList>" +
+				"<CovariateList><Predictor name=\"Age\"/><Predictor name=\"Income\"/></CovariateList>" +
+				"<PPMatrix>" +
+				"<PPCell value=\"Male\" predictorName=\"Gender\" parameterName=\"p1\"/>" +
+				"<PPCell value=\"College\" predictorName=\"Education\" parameterName=\"p2\"/>" +
+				"<PPCell value=\"1\" predictorName=\"Age\" parameterName=\"p3\"/>" +
+				"<PPCell value=\"2\" predictorName=\"Age\" parameterName=\"p4\"/>" +
+				"<PPCell value=\"1\" predictorName=\"Income\" parameterName=\"p5\"/>" +
+				"<PPCell value=\"Male\" predictorName=\"Gender\" parameterName=\"p5\"/>" +
+				"</PPMatrix>" +
+				"<ParamMatrix>" +
+				"<PCell parameterName=\"p0\" beta=\"2.5\"/>" +
+				"<PCell parameterName=\"p1\" beta=\"0.25\"/>" +
+				"<PCell parameterName=\"p2\" beta=\"-0.125\"/>" +
+				"<PCell parameterName=\"p3\" beta=\"0.03\"/>" +
+				"<PCell parameterName=\"p4\" beta=\"-0.0004\"/>" +
+				"<PCell parameterName=\"p5\" beta=\"0.000001\"/>" +
+				"</ParamMatrix>" +
+				"</GeneralRegressionModel>");
+		assertTrue(model.getCompiled() instanceof LinearModel);
+		assertEquals(6, ((LinearModel) model.getCompiled()).getNumTerms());
+		checkAll(model, rows(model, auditDataPath, 0));
+	}
+
+	@Test
+	public void testUnsupported() throws Exception {
+		// Contrast matrices are left to jpmml
+		PMMLModel model = parseInline("contrastMatrix", auditDataDictionary,
+				"<GeneralRegressionModel functionName=\"regression\" modelType=\"regression\">" +
+				auditMiningSchema +
+				"<ParameterList><Parameter name=\"p0\"/><Parameter name=\"p1\"/></ParameterList>" +
+				"<FactorList><Predictor name=\"Gender\" contrastMatrixType=\"dummy\">" +
+				"<Categories><Category value=\"Male\"/><Category value=\"Female\"/></Categories>" +
+				"<Matrix><Array n=\"2\" type=\"real\">1 0</Array><Array n=\"2\" type=\"real\">0 1</Array></Matrix>" +
+				"</Predictor></FactorList>" +
+				"<CovariateList/>" +
+				"<PPMatrix><PPCell value=\"Male\" predictorName=\"Gender\" parameterName=\"p1\"/></PPMatrix>" +
+				"<ParamMatrix><PCell parameterName=\"p0\" beta=\"1.0\"/><PCell parameterName=\"p1\" beta=\"2.0\"/></ParamMatrix>" +
+				"</GeneralRegressionModel>");
+		assertNull(model.getCompiled());
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.surus.pmml;
+
+import static org.junit.Assert.*;
+import static org.surus.pmml.PMMLTestUtil.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.dmg.pmml.FieldName;
+import org.jpmml.evaluator.Evaluator;
+import org.jpmml.evaluator.EvaluatorUtil;
+import org.jpmml.evaluator.FieldValue;
+import org.junit.Test;
+import org.surus.pig.ScorePMML;
+
+public class PMMLArtifact_Test {
+
+	private static final String rfIrisModelPath   = "./resources/examples/models/example.randomForest.xml";
+	private static final String treeIrisModelPath = "./resources/examples/models/single_iris_dectree.xml";
+
+	private static Object score(PMMLModel model, double... values) {
+		Evaluator evaluator = model.getEvaluator();
+		Map<FieldName, FieldValue> arguments = new LinkedHashMap<FieldName, FieldValue>();
+		int i = 0;
+		for (FieldName field : model.getActiveFields()) {
+			arguments.put(field, EvaluatorUtil.prepare(evaluator, field, values[i++]));
+		}
+		return EvaluatorUtil.decode(evaluator.evaluate(arguments).get(model.getPredictedFields().get(0)));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] content = read(rfIrisModelPath);
+		PMMLModel model = PMMLModel.parse(PMMLModelCache.key(rfIrisModelPath, content), content);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PMMLArtifact.write(model, out);
+		byte[] artifact = out.toByteArray();
+		assertTrue(artifact.length < content.length);
+		assertEquals(model.getKey(), PMMLArtifact.readKey(artifact));
+
+		PMMLModel compiled = PMMLArtifact.read(artifact);
+		assertEquals(model.getKey(), compiled.getKey());
+		assertEquals(model.getActiveFields(), compiled.getActiveFields());
+		assertEquals(model.getOutputFields(), compiled.getOutputFields());
+		assertEquals(score(model, 5.1, 3.5, 1.4, 0.2), score(compiled, 5.1, 3.5, 1.4, 0.2));
+		assertEquals(score(model, 5.9, 3.2, 4.8, 1.8), score(compiled, 5.9, 3.2, 4.8, 1.8));
+	}
+
+	@Test
+	public void testShipFiles() throws Exception {
+		ScorePMML score = new ScorePMML(rfIrisModelPath);
+		List<String> shipFiles = score.getShipFiles();
+		assertEquals(1, shipFiles.size());
+		assertNull(score.getCacheFiles());
+
+		byte[] artifact = read(shipFiles.get(0));
+		assertEquals(PMMLModelCache.key(rfIrisModelPath, read(rfIrisModelPath)), PMMLArtifact.readKey(artifact));
+	}
+
+	@Test
+	public void testForeignArtifact() throws Exception {
+		File artifact = PMMLScorer.compileArtifact(rfIrisModelPath);
+
+		// An artifact of another model under the name the tree's artifact would have
+		File foreign = new File(PMMLScorer.artifactName(treeIrisModelPath));
+		assertFalse(foreign.exists());
+		try {
+			copy(artifact, foreign);
+			PMMLModel model = PMMLScorer.load(treeIrisModelPath, new Configuration(), true).getModel();
+			assertEquals(PMMLModelCache.key(treeIrisModelPath, read(treeIrisModelPath)), model.getKey());
+		} finally {
+			foreign.delete();
+		}
+	}
+
+	@Test
+	public void testSameFileName() throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "surus-pmml-test-" + System.nanoTime());
+		File champion = new File(new File(directory, "champion"), "model.xml");
+		File challenger = new File(new File(directory, "challenger"), "model.xml");
+		champion.getParentFile().mkdirs();
+		challenger.getParentFile().mkdirs();
+		List<File> shipped = new ArrayList<File>();
+		try {
+			copy(new File(treeIrisModelPath), champion);
+			copy(new File(rfIrisModelPath), challenger);
+			String championKey = PMMLModelCache.key(champion.getPath(), read(champion.getPath()));
+			String challengerKey = PMMLModelCache.key(challenger.getPath(), read(challenger.getPath()));
+			assertFalse(PMMLScorer.cacheName(champion.getPath()).equals(PMMLScorer.cacheName(challenger.getPath())));
+
+			// Each model ships under its own name ...
+			List<String> shipFiles = new ScorePMML(champion.getPath()+","+challenger.getPath()).getShipFiles();
+			assertEquals(2, shipFiles.size());
+			for (String shipFile : shipFiles) {
+				File file = new File(shipFile);
+				assertFalse(new File(file.getName()).exists());
+				shipped.add(new File(file.getName()));
+				copy(file, shipped.get(shipped.size() - 1));
+			}
+			assertFalse(shipped.get(0).equals(shipped.get(1)));
+
+			// ... so the back end loads each from its own artifact, without the XML
+			champion.delete();
+			challenger.delete();
+			Configuration conf = new Configuration();
+			assertEquals(championKey, PMMLScorer.load(champion.getPath(), conf, true).getModel().getKey());
+			assertEquals(challengerKey, PMMLScorer.load(challenger.getPath(), conf, true).getModel().getKey());
+		} finally {
+			for (File file : shipped) {
+				file.delete();
+			}
+			champion.delete();
+			challenger.delete();
+			champion.getParentFile().delete();
+			challenger.getParentFile().delete();
+			directory.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testVersion() throws Exception {
+		byte[] content = read(rfIrisModelPath);
+		PMMLModel model = PMMLModel.parse(PMMLModelCache.key(rfIrisModelPath, content), content);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PMMLArtifact.write(model, out);
+		byte[] artifact = out.toByteArray();
+		artifact[7] = 99;
+		PMMLModelCache.getCompiled(artifact);
+	}
+
+	private static void copy(File source, File target) throws Exception {
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			out.write(read(source.getPath()));
+		} finally {
+			out.close();
+		}
+	}
+
+}
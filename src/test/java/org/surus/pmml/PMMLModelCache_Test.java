@@ -0,0 +1,34 @@
+package org.surus.pmml;
+
+import static org.junit.Assert.*;
+import static org.surus.pmml.PMMLTestUtil.*;
+
+import org.junit.Test;
+
+public class PMMLModelCache_Test {
+
+	private static final String irisTreePath = "./resources/examples/models/single_iris_dectree.xml";
+
+	@Test
+	public void testShared() throws Exception {
+		byte[] content = read(irisTreePath);
+
+		long misses = PMMLModelCache.getMisses();
+		long hits = PMMLModelCache.getHits();
+		PMMLModel first = PMMLModelCache.get(irisTreePath, content);
+		PMMLModel second = PMMLModelCache.get(irisTreePath, content.clone());
+
+		assertSame(first, second);
+		assertEquals(1, first.getPredictedFields().size());
+		assertEquals(4, first.getActiveFields().size());
+		assertTrue(PMMLModelCache.getMisses() - misses <= 1);
+		assertTrue(PMMLModelCache.getHits() - hits >= 1);
+
+		// A different document at the same path is a different model
+		byte[] changed = new String(content, "UTF-8").replace("0.6", "0.7").getBytes("UTF-8");
+		PMMLModel third = PMMLModelCache.get(irisTreePath, changed);
+		assertNotSame(first, third);
+		assertFalse(first.getKey().equals(third.getKey()));
+	}
+
+}
@@ -0,0 +1,170 @@
+package org.surus.pmml;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.dmg.pmml.FieldName;
+import org.junit.Test;
+
+public class PMMLScorer_Test {
+
+	private static final String treeIrisModelPath = "./resources/examples/models/single_iris_dectree.xml";
+	private static final String nnIrisModelPath   = "./resources/examples/models/single_iris_mlp.xml";
+	private static final String rfIrisModelPath   = "./resources/examples/models/example.randomForest.xml";
+
+	@Test
+	public void testPositions() throws Exception {
+		PMMLScorer scorer = PMMLScorer.load(treeIrisModelPath);
+		assertEquals(4, scorer.getNumArguments());
+		assertEquals(1, scorer.getNumResults());
+		int[] positions = scorer.positions(Arrays.asList("id", "petal_width", "Petal_Length", "sepal_length"));
+		assertArrayEquals(new int[] { 3, -1, 2, 1 }, positions);
+	}
+
+	@Test
+	public void testSession() throws Exception {
+		PMMLScorer scorer = PMMLScorer.load(nnIrisModelPath);
+		PMMLScorer.Session session = scorer.newSession();
+
+		Object[] arguments = session.getArguments();
+		arguments[0] = 5.9;
+		arguments[1] = 3.2;
+		arguments[2] = 4.8;
+		arguments[3] = 1.8;
+		assertArrayEquals(new Object[] { "Iris-versicolor" }, session.score());
+
+		// A row the compiled network leaves to jpmml, in a batch with a compiled one
+		Object[][] rows = { { 5.1, 3.5, 1.4, 0.2 }, { "5.1", 3.5, 1.4, 0.2 } };
+		Object[][] results = new Object[2][1];
+		session.score(rows, 2, results);
+		Object[] expected = new Object[1];
+		for (int i = 0; i < 2; i++) {
+			scorer.newSession().score(rows[i], expected);
+			assertArrayEquals(expected, results[i]);
+		}
+	}
+
+	@Test
+	public void testProjection() throws Exception {
+		PMMLScorer full = PMMLScorer.load(rfIrisModelPath);
+		List<FieldName> fields = full.getResultFields();
+		assertTrue(fields.size() > 2);
+		PMMLScorer projected = new PMMLScorer(full.getModel(), Arrays.asList(fields.get(fields.size() - 1), fields.get(0)));
+		assertEquals(2, projected.getNumResults());
+
+		// Compiled rows and a row left to jpmml, one by one and as a batch
+		Object[][] rows = { { 5.1, 3.5, 1.4, 0.2 }, { 5.9, 3.2, 4.8, 1.8 }, { "5.1", 3.5, 1.4, 0.2 } };
+		Object[][] results = new Object[rows.length][2];
+		projected.newSession().score(rows, rows.length, results);
+		for (int i = 0; i < rows.length; i++) {
+			Object[] all = new Object[full.getNumResults()];
+			full.newSession().score(rows[i], all);
+			Object[] expected = { all[all.length - 1], all[0] };
+			assertArrayEquals(expected, results[i]);
+			Object[] result = new Object[2];
+			projected.newSession().score(rows[i], result);
+			assertArrayEquals(expected, result);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownProjection() throws Exception {
+		PMMLScorer full = PMMLScorer.load(treeIrisModelPath);
+		new PMMLScorer(full.getModel(), Arrays.asList(new FieldName("nosuchfield")));
+	}
+
+	@Test
+	public void testConcurrentSessions() throws Exception {
+		final PMMLScorer scorer = PMMLScorer.load(nnIrisModelPath);
+		final List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 500; i++) {
+			rows.add(new Object[] { 4.5 + (i % 37) * 0.1, 2.0 + (i % 23) * 0.1, 1.0 + (i % 59) * 0.1, 0.1 + (i % 25) * 0.1 });
+		}
+
+		// Every thread scores all rows through its own session of the one scorer
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(pool.submit(new Callable<List<Object>>() {
+					public List<Object> call() {
+						PMMLScorer.Session session = scorer.newSession();
+						List<Object> predictions = new ArrayList<Object>();
+						for (Object[] row : rows) {
+							System.arraycopy(row, 0, session.getArguments(), 0, row.length);
+							predictions.add(session.score()[0]);
+						}
+						return predictions;
+					}
+				}));
+			}
+			List<Object> expected = futures.get(0).get();
+			for (Future<List<Object>> future : futures) {
+				assertEquals(expected, future.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testCompressedLoad() throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "surus-pmml-test-" + System.nanoTime());
+		directory.mkdirs();
+		try {
+			// By the codec of the extension, and by the gzip magic without one
+			File gz = gzip(new File(nnIrisModelPath), new File(directory, "single_iris_mlp.xml.gz"));
+			File bare = gzip(new File(nnIrisModelPath), new File(directory, "single_iris_mlp"));
+			PMMLScorer expected = PMMLScorer.load(nnIrisModelPath);
+			for (String path : Arrays.asList(gz.getPath(), bare.getPath(), gz.toURI().toString())) {
+				PMMLScorer scorer = PMMLScorer.load(path);
+				assertEquals(expected.getModel().getActiveFields(), scorer.getModel().getActiveFields());
+				Object[] row = { 5.9, 3.2, 4.8, 1.8 };
+				Object[] result = new Object[1];
+				scorer.newSession().score(row, result);
+				assertArrayEquals(new Object[] { "Iris-versicolor" }, result);
+			}
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testSchemeLoad() throws Exception {
+		PMMLScorer scorer = PMMLScorer.load(new File(treeIrisModelPath).toURI().toString());
+		assertEquals(4, scorer.getNumArguments());
+	}
+
+	private static File gzip(File source, File target) throws Exception {
+		InputStream in = new FileInputStream(source);
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(target));
+		try {
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return target;
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.surus.pmml;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dmg.pmml.DataType;
+import org.dmg.pmml.FieldName;
+import org.jpmml.evaluator.Evaluator;
+import org.jpmml.evaluator.EvaluatorUtil;
+import org.jpmml.evaluator.FieldValue;
+
+/*
+ * Model and data fixtures shared by the tests of this package.
+ */
+final class PMMLTestUtil {
+
+	private PMMLTestUtil() {}
+
+	static byte[] read(String path) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+		try {
+			byte[] content = new byte[(int) file.length()];
+			file.readFully(content);
+			return content;
+		} finally {
+			file.close();
+		}
+	}
+
+	static PMMLModel parse(String path) throws Exception {
+		return PMMLModel.parse(path, read(path));
+	}
+
+	// Rows of a CSV file as arguments for model, typed by its data dictionary, with empty or absent cells
+	// missing; offset skips leading unnamed columns, e.g. the id column of Iris.csv
+	static List<Object[]> rows(PMMLModel model, String path, int offset) throws Exception {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try {
+			List<String> header = new ArrayList<String>();
+			for (String name : in.readLine().trim().split(",")) {
+				header.add(name.replace("\"", "").toLowerCase());
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] cells = line.trim().split(",", -1);
+				List<FieldName> fields = model.getActiveFields();
+				Object[] row = new Object[fields.size()];
+				for (int i = 0; i < row.length; i++) {
+					int column = header.indexOf(fields.get(i).getValue().toLowerCase()) + offset;
+					String cell = (column < cells.length) ? cells[column].replace("\"", "") : "";
+					DataType dataType = model.getEvaluator().getDataField(fields.get(i)).getDataType();
+					if (cell.isEmpty()) {
+						row[i] = null;
+					} else if (dataType == DataType.INTEGER) {
+						row[i] = Integer.valueOf(cell);
+					} else if (dataType == DataType.DOUBLE) {
+						row[i] = Double.valueOf(cell);
+					} else {
+						row[i] = cell;
+					}
+				}
+				rows.add(row);
+			}
+		} finally {
+			in.close();
+		}
+		return rows;
+	}
+
+	// Scores with jpmml as ScorePMML does, or returns null where jpmml throws
+	static Object[] jpmml(PMMLModel model, Object[] row) {
+		Evaluator evaluator = model.getEvaluator();
+		try {
+			Map<FieldName, FieldValue> arguments = new LinkedHashMap<FieldName, FieldValue>();
+			int i = 0;
+			for (FieldName field : model.getActiveFields()) {
+				arguments.put(field, EvaluatorUtil.prepare(evaluator, field, row[i++]));
+			}
+			Map<FieldName, ?> result = evaluator.evaluate(arguments);
+			List<Object> values = new ArrayList<Object>();
+			for (FieldName field : model.getPredictedFields()) {
+				values.add(EvaluatorUtil.decode(result.get(field)));
+			}
+			for (FieldName field : model.getOutputFields()) {
+				values.add(EvaluatorUtil.decode(result.get(field)));
+			}
+			return values.toArray();
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+}
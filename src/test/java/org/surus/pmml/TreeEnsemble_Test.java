@@ -0,0 +1,91 @@
+package org.surus.pmml;
+
+import static org.junit.Assert.*;
+import static org.surus.pmml.PMMLTestUtil.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TreeEnsemble_Test {
+
+	private static final String rfIrisModelPath     = "./resources/examples/models/example.randomForest.xml";
+	private static final String irisTreeModelPath   = "./resources/examples/models/single_iris_dectree.xml";
+	private static final String auditModelPath      = "./resources/examples/models/ensemble_audit_dectree.xml";
+	private static final String irisDataPath        = "./resources/examples/data/Iris.csv";
+	private static final String auditDataPath       = "./resources/examples/data/Audit.csv";
+
+	// Checks a row against jpmml, returning whether the compiled model scored it
+	private static boolean check(PMMLModel model, Object[] row) {
+		CompiledModel compiled = model.getCompiled();
+		Object[] expected = jpmml(model, row);
+		Object[] observed = new Object[compiled.getResultFields().size()];
+		boolean scored = compiled.evaluate(row, compiled.newScratch(), observed);
+		if (expected == null) {
+			assertFalse(scored);
+		} else if (scored) {
+			assertArrayEquals(expected, observed);
+		}
+		return scored;
+	}
+
+	// Every row as is, then with each field missing and with each string field unknown; returns
+	// how many of the changed rows the compiled model scored
+	private static int checkAll(PMMLModel model, List<Object[]> rows) {
+		int scored = 0;
+		for (Object[] row : rows) {
+			assertEquals(jpmml(model, row) != null, check(model, row));
+			for (int i = 0; i < row.length; i++) {
+				Object[] changed = row.clone();
+				changed[i] = null;
+				scored += check(model, changed) ? 1 : 0;
+				if (row[i] instanceof String) {
+					changed[i] = "Unknown";
+					scored += check(model, changed) ? 1 : 0;
+				}
+			}
+		}
+		return scored;
+	}
+
+	@Test
+	public void testRandomForest() throws Exception {
+		PMMLModel model = parse(rfIrisModelPath);
+		assertTrue(model.getCompiled() instanceof TreeEnsemble);
+		assertTrue(((TreeEnsemble) model.getCompiled()).getNumTrees() > 1);
+		// Without a missing value strategy jpmml fails on any missing field, so nothing is left to compare
+		checkAll(model, rows(model, irisDataPath, 1));
+	}
+
+	@Test
+	public void testTree() throws Exception {
+		PMMLModel model = parse(irisTreeModelPath);
+		assertTrue(model.getCompiled() instanceof TreeEnsemble);
+		assertEquals(1, ((TreeEnsemble) model.getCompiled()).getNumTrees());
+		assertTrue(checkAll(model, rows(model, irisDataPath, 1)) > 0);
+	}
+
+	@Test
+	public void testEnsemble() throws Exception {
+		PMMLModel model = parse(auditModelPath);
+		assertTrue(model.getCompiled() instanceof TreeEnsemble);
+		assertTrue(checkAll(model, rows(model, auditDataPath, 0)) > 0);
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+		String content = new String(read(irisTreeModelPath), "UTF-8");
+
+		// Rows jpmml rejects are left to it
+		PMMLModel model = PMMLModel.parse("returnInvalid", content.replace("\"asIs\"", "\"returnInvalid\"").getBytes("UTF-8"));
+		assertNotNull(model.getCompiled());
+		assertTrue(check(model, new Object[] {5.1, 3.5, 1.4, 0.2}));
+		assertFalse(check(model, new Object[] {15.1, 3.5, 1.4, 0.2}));
+		assertFalse(check(model, new Object[] {5L, 3.5, 1.4, 0.2}));
+
+		// Models using unsupported constructs are left to it entirely
+		model = PMMLModel.parse("defaultChild", content.replace("lastPrediction", "defaultChild").getBytes("UTF-8"));
+		assertNull(model.getCompiled());
+	}
+
+}